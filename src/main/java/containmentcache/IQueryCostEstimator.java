@@ -0,0 +1,27 @@
+package containmentcache;
+
+/**
+ * Cheap estimates of the work a containment cache does to answer a sub/superset query, in a unit common to all caches: the number of
+ * distinct cached sets the query examines (i.e. its candidates), at most the size of the cache. Estimates are used to pick, for every query,
+ * the cheapest of several caches holding the same entries, so they must be much cheaper to obtain than the query itself.
+ *
+ * The work per candidate (a word-wise bitset test, a tree step, a posting list increment) differs between caches and is not part of the
+ * estimate, so comparisons between caches are only ordinal: they are reliable when candidate counts differ by more than these constant factors.
+ *
+ * @param <E> - type of elements in set representing entry.
+ */
+public interface IQueryCostEstimator<E> {
+
+	/**
+	 * @param set - a query set.
+	 * @return an estimate of the work needed to find the subsets of the given set.
+	 */
+	public long estimateSubsetQueryCost(ICacheEntry<E> set);
+
+	/**
+	 * @param set - a query set.
+	 * @return an estimate of the work needed to find the supersets of the given set.
+	 */
+	public long estimateSupersetQueryCost(ICacheEntry<E> set);
+
+}
@@ -0,0 +1,200 @@
+package containmentcache.bitset.hash;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import lombok.NonNull;
+import net.jcip.annotations.NotThreadSafe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.BiMap;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.SetMultimap;
+
+import containmentcache.ICacheEntry;
+import containmentcache.IContainmentCache;
+
+/**
+ * A bitset containment cache for small subset queries. Entries are hashed by their bitset, and the subsets of a query set Q
+ * with at most a cutoff number of elements are found by enumerating all the 2^|Q| subsets of Q and probing the hash table
+ * for each of them.
+ *
+ * Queries with more elements than the cutoff, as well as all superset queries, are answered by a fallback cache, which
+ * is kept in sync with this cache.
+ *
+ * @param <E> - the elements the sets.
+ * @param <C> - the type of cache entries.
+ */
+@NotThreadSafe
+public class SubsetEnumerationBitSetCache<E,C extends ICacheEntry<E>> implements IContainmentCache<E,C> {
+
+	private final static int DEFAULT_CUTOFF = 20;
+	//Subsets of sets with more elements cannot be counted with an int.
+	private final static int MAX_CUTOFF = 30;
+
+	private final ImmutableBiMap<E, Integer> permutation;
+	//The entries of the data structure, hashed by their bitset representation.
+	private final SetMultimap<BitSet,C> entries;
+	//Cache used for queries that are too large to enumerate.
+	private final IContainmentCache<E,C> fallback;
+	//Maximum number of elements of a query for its subsets to be enumerated.
+	private final int cutoff;
+
+	public SubsetEnumerationBitSetCache(@NonNull BiMap<E, Integer> permutation, @NonNull IContainmentCache<E,C> fallback)
+	{
+		this(permutation, fallback, DEFAULT_CUTOFF);
+	}
+
+	/**
+	 * @param permutation - the permutation of the universe used by the cache entries.
+	 * @param fallback - an empty cache used to answer queries that are not enumerated.
+	 * @param cutoff - maximum number of elements of a query for its subsets to be enumerated.
+	 */
+	public SubsetEnumerationBitSetCache(@NonNull BiMap<E, Integer> permutation, @NonNull IContainmentCache<E,C> fallback, int cutoff)
+	{
+		Preconditions.checkArgument(fallback.size() == 0, "Fallback cache must be empty.");
+		Preconditions.checkArgument(cutoff >= 0 && cutoff <= MAX_CUTOFF, "Cutoff must be between 0 and "+MAX_CUTOFF+".");
+		this.permutation = ImmutableBiMap.copyOf(permutation);
+		this.fallback = fallback;
+		this.cutoff = cutoff;
+		entries = HashMultimap.create();
+	}
+
+	@Override
+	public void add(C set) {
+		final BitSet bs = getBitSet(set);
+		if(entries.put(bs, set))
+		{
+			fallback.add(set);
+		}
+	}
+
+	@Override
+	public void remove(C set) {
+		final BitSet bs = getBitSet(set);
+		if(entries.remove(bs, set))
+		{
+			fallback.remove(set);
+		}
+	}
+
+	@Override
+	public boolean contains(C set) {
+		final BitSet bs = getBitSet(set);
+		return entries.containsEntry(bs, set);
+	}
+
+	@Override
+	public Iterable<C> getSets() {
+		return entries.values();
+	}
+
+	@Override
+	public Iterable<C> getSubsets(ICacheEntry<E> set) {
+		final BitSet bs = getBitSet(set);
+		if(bs.cardinality() > cutoff)
+		{
+			return fallback.getSubsets(set);
+		}
+		return new Iterable<C>(){
+			@Override
+			public Iterator<C> iterator() {
+				return Iterables.concat(getSubsetBuckets(bs, false)).iterator();
+			}};
+	}
+
+	@Override
+	public int getNumberSubsets(ICacheEntry<E> set) {
+		final BitSet bs = getBitSet(set);
+		if(bs.cardinality() > cutoff)
+		{
+			return fallback.getNumberSubsets(set);
+		}
+		int numsubsets = 0;
+		for(Collection<C> bucket : getSubsetBuckets(bs, false))
+		{
+			numsubsets += bucket.size();
+		}
+		return numsubsets;
+	}
+
+	/**
+	 * @param set - set for which to check the presence of subsets in the cache.
+	 * @return true if and only if the cache contains a subset of the given set.
+	 */
+	public boolean containsSubset(ICacheEntry<E> set) {
+		final BitSet bs = getBitSet(set);
+		if(bs.cardinality() > cutoff)
+		{
+			return !Iterables.isEmpty(fallback.getSubsets(set));
+		}
+		return !getSubsetBuckets(bs, true).isEmpty();
+	}
+
+	@Override
+	public Iterable<C> getSupersets(ICacheEntry<E> set) {
+		getBitSet(set);
+		return fallback.getSupersets(set);
+	}
+
+	@Override
+	public int getNumberSupersets(ICacheEntry<E> set) {
+		getBitSet(set);
+		return fallback.getNumberSupersets(set);
+	}
+
+	@Override
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Enumerate the subsets of the given bitset in Gray code order (flipping a single bit between consecutive subsets),
+	 * probing the entries for every one of them.
+	 *
+	 * @param bs - a query bitset.
+	 * @param first - whether to stop at the first subset found.
+	 * @return the buckets of entries of the subsets of the given bitset present in the cache.
+	 */
+	private List<Collection<C>> getSubsetBuckets(BitSet bs, boolean first)
+	{
+		final int[] elements = bs.stream().toArray();
+		final Map<BitSet,Collection<C>> buckets = entries.asMap();
+		final List<Collection<C>> subsetbuckets = new ArrayList<Collection<C>>();
+
+		//Probe bitset, only used for lookups so it can be modified in place.
+		final BitSet probe = new BitSet();
+		final long numsubsets = 1L << elements.length;
+		for(long i=0;i<numsubsets;i++)
+		{
+			if(i > 0)
+			{
+				probe.flip(elements[Long.numberOfTrailingZeros(i)]);
+			}
+			final Collection<C> bucket = buckets.get(probe);
+			if(bucket != null)
+			{
+				subsetbuckets.add(bucket);
+				if(first)
+				{
+					break;
+				}
+			}
+		}
+		return subsetbuckets;
+	}
+
+	private BitSet getBitSet(ICacheEntry<E> set) {
+		Preconditions.checkNotNull(set);
+		Preconditions.checkNotNull(set.getBitSet());
+		Preconditions.checkArgument(permutation.keySet().containsAll(set.getElements()));
+		return set.getBitSet();
+	}
+
+}
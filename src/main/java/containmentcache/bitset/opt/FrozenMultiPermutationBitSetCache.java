@@ -0,0 +1,635 @@
+package containmentcache.bitset.opt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+import net.jcip.annotations.Immutable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.BiMap;
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.SetMultimap;
+
+import containmentcache.ICacheEntry;
+import containmentcache.IContainmentCache;
+import containmentcache.util.PackedBitSets;
+
+/**
+ * Immutable snapshot of a {@link MultiPermutationBitSetCache}, obtained with {@link MultiPermutationBitSetCache#freeze()}.
+ *
+ * Every permutation's sorted set of bitsets is replaced by a sorted array of packed keys, each key being the bitset with its bits
+ * reordered by the permutation, so that the integer order of the keys is the order of the permutation. The rank of a bitset in a permutation
+ * is thus its index in that permutation's array, found by binary search, and the smaller/larger bitsets are contiguous ranges of the array.
+ * The entries of every distinct bitset are stored in compressed sparse row form: one array of all the entries, along with the offset of every
+ * bitset's entries in it.
+ *
+ * The packed keys, the rank arrays and the bucket offsets are primitive buffers, which can be allocated off-heap (as direct buffers) so that
+ * the index adds no objects for the garbage collector to trace, whatever its size. Only the array of entries, mapping entry positions to the
+ * entry objects, stays on the heap. Every buffer holds at most {@link Integer#MAX_VALUE} bytes.
+ *
+ * The buffers can also be written to a file (see {@link #write(Path)}) and later memory-mapped read-only (see {@link #map(Path, BiMap, BiFunction)}),
+ * in which case queries run directly on the mapped file, and processes mapping the same file share its page cached copy. A mapped cache has no
+ * array of entries: it creates the entries of a bitset from the bitset when a query returns them, so mapping takes time independent of the
+ * number of entries. With a single permutation, the mapped cache is the ordered scan of the {@link containmentcache.bitset.simple.SimpleBitSetCache}.
+ *
+ * Being immutable, the snapshot can be shared between threads without locking. Its add and remove operations throw {@link UnsupportedOperationException}.
+ *
+ * @param <E> - the elements the sets.
+ * @param <C> - the type of cache entries.
+ */
+@Immutable
+public class FrozenMultiPermutationBitSetCache<E,C extends ICacheEntry<E>> implements IContainmentCache<E,C> {
+
+	//File format identifier and version.
+	private final static int MAGIC = 0x434D5042;
+	private final static int VERSION = 1;
+	//Size of the file header, in bytes.
+	private final static int HEADER_BYTES = 4 * Integer.BYTES;
+	//Size of the chunks in which buffers are written.
+	private final static int WRITE_CHUNK_BYTES = 1 << 16;
+
+	private final ImmutableBiMap<E, Integer> canonicalPermutation;
+	//Number of words per packed bitset.
+	private final int numWords;
+	//Number of distinct bitsets.
+	private final int numKeys;
+
+	//The distinct bitsets packed in the canonical order, the bitset with id i occupying words [i*numWords,(i+1)*numWords).
+	private final LongBuffer canonicalKeys;
+	//The entries of the bitset with id i are entries[offsets[i]], ..., entries[offsets[i+1]-1].
+	private final IntBuffer offsets;
+	//The entries, null if they are created on demand by the entry factory.
+	private final Object[] entries;
+	//Creates the entries of a bitset from the bitset and the index of the entry among its entries, null if the entries are stored.
+	private final BiFunction<BitSet,Integer,C> entryFactory;
+
+	//For every permutation, the position in the permuted keys of every bit of the canonical bitsets.
+	private final int[][] positions;
+	//For every permutation, the packed permuted keys sorted by integer value.
+	private final LongBuffer[] permutedKeys;
+	//For every permutation, the id of the bitset at every rank.
+	private final IntBuffer[] rankIds;
+
+	/**
+	 * @param canonicalPermutation - the canonical permutation of the universe.
+	 * @param positions - for every permutation, the position in the permuted keys of every bit of the canonical bitsets.
+	 * @param canonicalKeys - the distinct bitsets packed in the canonical order.
+	 * @param offsets - the offsets of the entries of every bitset, followed by the number of entries.
+	 * @param entries - the entries, null to create them on demand with the entry factory.
+	 * @param entryFactory - creates the entries of a bitset from the bitset and the index of the entry among its entries, null if the entries are given.
+	 * @param permutedKeys - for every permutation, the sorted packed permuted keys.
+	 * @param rankIds - for every permutation, the id of the bitset at every rank.
+	 */
+	FrozenMultiPermutationBitSetCache(ImmutableBiMap<E, Integer> canonicalPermutation, int[][] positions, LongBuffer canonicalKeys, IntBuffer offsets, Object[] entries, BiFunction<BitSet,Integer,C> entryFactory, LongBuffer[] permutedKeys, IntBuffer[] rankIds)
+	{
+		Preconditions.checkArgument((entries == null) != (entryFactory == null), "Must provide either the entries or an entry factory.");
+		this.canonicalPermutation = canonicalPermutation;
+		this.numWords = PackedBitSets.getNumWords(canonicalPermutation.size());
+		this.numKeys = offsets.capacity()-1;
+		this.positions = positions;
+		this.canonicalKeys = canonicalKeys;
+		this.offsets = offsets;
+		this.entries = entries;
+		this.entryFactory = entryFactory;
+		this.permutedKeys = permutedKeys;
+		this.rankIds = rankIds;
+	}
+
+	/**
+	 * @param canonicalPermutation - the canonical permutation of the universe.
+	 * @param permutations - for every permutation, the bitset index that is the i-th least significant bit of the permutation's order
+	 * (see {@link MultiPermutationBitSetCache#getPermutations}).
+	 * @param cacheEntries - the entries of the cache, hashed by their bitset representation.
+	 * @param offHeap - whether to allocate the buffers off-heap.
+	 * @return a frozen cache with the given entries.
+	 */
+	static <E,C extends ICacheEntry<E>> FrozenMultiPermutationBitSetCache<E,C> create(ImmutableBiMap<E, Integer> canonicalPermutation, int[][] permutations, SetMultimap<BitSet,C> cacheEntries, boolean offHeap)
+	{
+		final int numWords = PackedBitSets.getNumWords(canonicalPermutation.size());
+
+		//Lay out the distinct bitsets and their entries.
+		final Map<BitSet,Collection<C>> buckets = cacheEntries.asMap();
+		final int numKeys = buckets.size();
+		//Check the size of the key buffers before any allocation, as the number of words may not even fit in an int.
+		final long numKeyWords = (long) numKeys*numWords;
+		Preconditions.checkArgument(numKeyWords*Long.BYTES <= Integer.MAX_VALUE, "Too many words ("+numKeyWords+") for a single buffer.");
+		final long[] canonicalKeys = new long[(int) numKeyWords];
+		final int[] offsets = new int[numKeys+1];
+		final Object[] entries = new Object[cacheEntries.size()];
+		int id = 0;
+		int offset = 0;
+		for(Map.Entry<BitSet,Collection<C>> bucket : buckets.entrySet())
+		{
+			PackedBitSets.pack(bucket.getKey(), canonicalKeys, id*numWords, numWords);
+			offsets[id] = offset;
+			for(C entry : bucket.getValue())
+			{
+				entries[offset++] = entry;
+			}
+			id++;
+		}
+		offsets[numKeys] = offset;
+
+		//Sort the permuted keys of every permutation.
+		final int[][] positions = new int[permutations.length][];
+		final LongBuffer[] permutedKeys = new LongBuffer[permutations.length];
+		final IntBuffer[] rankIds = new IntBuffer[permutations.length];
+		for(int p=0;p<permutations.length;p++)
+		{
+			final int[] permutation = permutations[p];
+			positions[p] = new int[permutation.length];
+			for(int i=0;i<permutation.length;i++)
+			{
+				positions[p][permutation[i]] = i;
+			}
+
+			final long[] keys = new long[(int) numKeyWords];
+			for(int i=0;i<numKeys;i++)
+			{
+				permute(positions[p], canonicalKeys, i*numWords, keys, i*numWords, numWords);
+			}
+			final Integer[] sortedids = new Integer[numKeys];
+			for(int i=0;i<numKeys;i++)
+			{
+				sortedids[i] = i;
+			}
+			Arrays.sort(sortedids, (id1, id2) -> PackedBitSets.compare(keys, id1*numWords, keys, id2*numWords, numWords));
+
+			permutedKeys[p] = allocateLongs((int) numKeyWords, offHeap);
+			rankIds[p] = allocateInts(numKeys, offHeap);
+			for(int rank=0;rank<numKeys;rank++)
+			{
+				rankIds[p].put(rank, sortedids[rank]);
+				for(int w=0;w<numWords;w++)
+				{
+					permutedKeys[p].put(rank*numWords + w, keys[sortedids[rank]*numWords + w]);
+				}
+			}
+		}
+
+		final LongBuffer canonicalKeysBuffer = allocateLongs(canonicalKeys.length, offHeap);
+		canonicalKeysBuffer.put(canonicalKeys).clear();
+		final IntBuffer offsetsBuffer = allocateInts(offsets.length, offHeap);
+		offsetsBuffer.put(offsets).clear();
+
+		return new FrozenMultiPermutationBitSetCache<E,C>(canonicalPermutation, positions, canonicalKeysBuffer, offsetsBuffer, entries, null, permutedKeys, rankIds);
+	}
+
+	private static LongBuffer allocateLongs(int size, boolean offHeap)
+	{
+		Preconditions.checkArgument((long) size * Long.BYTES <= Integer.MAX_VALUE, "Too many words ("+size+") for a single buffer.");
+		return offHeap ? ByteBuffer.allocateDirect(size * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer() : LongBuffer.allocate(size);
+	}
+
+	private static IntBuffer allocateInts(int size, boolean offHeap)
+	{
+		Preconditions.checkArgument((long) size * Integer.BYTES <= Integer.MAX_VALUE, "Too many ints ("+size+") for a single buffer.");
+		return offHeap ? ByteBuffer.allocateDirect(size * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer() : IntBuffer.allocate(size);
+	}
+
+	/**
+	 * Write the index of the cache to the given file, to be memory-mapped with {@link #map(Path, BiMap, BiFunction)}. The file contains, after a header,
+	 * the bit positions of every permutation, the canonical packed keys, the bucket offsets and, for every permutation, the sorted permuted keys and
+	 * the bitset ids by rank, all little-endian, each section starting on a multiple of 8 bytes.
+	 *
+	 * The entries themselves are not written, only their number for every distinct bitset (through the bucket offsets): a mapped cache creates
+	 * as many entries for every bitset, on demand, so that it has the same size and counts as the written one.
+	 *
+	 * @param file - file to write to, replaced if it exists.
+	 * @throws IOException if the file cannot be written.
+	 */
+	public void write(Path file) throws IOException
+	{
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+		{
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(positions.length).putInt(numKeys).flip();
+			writeFully(channel, header);
+
+			final ByteBuffer chunk = ByteBuffer.allocate(WRITE_CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			for(int[] position : positions)
+			{
+				writeInts(channel, chunk, IntBuffer.wrap(position));
+			}
+			writeLongs(channel, chunk, canonicalKeys);
+			writeInts(channel, chunk, offsets);
+			for(int p=0;p<positions.length;p++)
+			{
+				writeLongs(channel, chunk, permutedKeys[p]);
+				writeInts(channel, chunk, rankIds[p]);
+			}
+		}
+	}
+
+	/**
+	 * Memory-map a cache written with {@link #write(Path)}. The mapping is read-only and stays valid after the file is closed.
+	 * No entry is created when mapping: the entries of a bitset are created every time a query returns them, and counts only read the bucket offsets.
+	 *
+	 * @param file - file to map.
+	 * @param canonicalPermutation - the canonical permutation of the universe, the same as the one of the written cache.
+	 * @param entryFactory - creates the entries of every distinct bitset written, from (a copy of) the bitset and the index of the entry
+	 * among the entries of that bitset. It is called concurrently by the threads querying the cache.
+	 * @return a frozen cache querying the mapped file.
+	 * @throws IOException if the file cannot be read.
+	 * @throws IllegalArgumentException if the file is not a cache written on a universe of the given permutation's size.
+	 */
+	public static <E,C extends ICacheEntry<E>> FrozenMultiPermutationBitSetCache<E,C> map(Path file, BiMap<E, Integer> canonicalPermutation, BiFunction<BitSet,Integer,C> entryFactory) throws IOException
+	{
+		final ImmutableBiMap<E, Integer> permutation = ImmutableBiMap.copyOf(canonicalPermutation);
+		final int universeSize = permutation.size();
+		final int numWords = PackedBitSets.getNumWords(universeSize);
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			final ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			Preconditions.checkArgument(header.getInt() == MAGIC && header.getInt() == VERSION, "File "+file+" is not a frozen cache file.");
+			final int numPermutations = header.getInt();
+			final int numKeys = header.getInt();
+
+			long position = HEADER_BYTES;
+			final long expectedsize = position
+					+ numPermutations * getSectionBytes(universeSize, Integer.BYTES)
+					+ getSectionBytes((long) numKeys*numWords, Long.BYTES)
+					+ getSectionBytes(numKeys+1, Integer.BYTES)
+					+ numPermutations * (getSectionBytes((long) numKeys*numWords, Long.BYTES) + getSectionBytes(numKeys, Integer.BYTES));
+			Preconditions.checkArgument(channel.size() == expectedsize, "File "+file+" does not contain a cache on a universe of "+universeSize+" elements.");
+
+			final int[][] positions = new int[numPermutations][universeSize];
+			for(int p=0;p<numPermutations;p++)
+			{
+				mapSection(channel, position, (long) universeSize*Integer.BYTES).asIntBuffer().get(positions[p]);
+				position += getSectionBytes(universeSize, Integer.BYTES);
+			}
+			final LongBuffer canonicalKeys = mapSection(channel, position, (long) numKeys*numWords*Long.BYTES).asLongBuffer();
+			position += getSectionBytes((long) numKeys*numWords, Long.BYTES);
+			final IntBuffer offsets = mapSection(channel, position, (long) (numKeys+1)*Integer.BYTES).asIntBuffer();
+			position += getSectionBytes(numKeys+1, Integer.BYTES);
+			final LongBuffer[] permutedKeys = new LongBuffer[numPermutations];
+			final IntBuffer[] rankIds = new IntBuffer[numPermutations];
+			for(int p=0;p<numPermutations;p++)
+			{
+				permutedKeys[p] = mapSection(channel, position, (long) numKeys*numWords*Long.BYTES).asLongBuffer();
+				position += getSectionBytes((long) numKeys*numWords, Long.BYTES);
+				rankIds[p] = mapSection(channel, position, (long) numKeys*Integer.BYTES).asIntBuffer();
+				position += getSectionBytes(numKeys, Integer.BYTES);
+			}
+
+			//Every bitset has at least one entry.
+			Preconditions.checkArgument(offsets.get(0) == 0 && offsets.get(numKeys) >= numKeys, "File "+file+" has invalid bucket offsets.");
+
+			return new FrozenMultiPermutationBitSetCache<E,C>(permutation, positions, canonicalKeys, offsets, null, Preconditions.checkNotNull(entryFactory), permutedKeys, rankIds);
+		}
+	}
+
+	/**
+	 * @return the number of bytes taken by a file section of the given number of values of the given size, padded to a multiple of 8 bytes.
+	 */
+	private static long getSectionBytes(long numValues, int valueBytes)
+	{
+		return (numValues * valueBytes + Long.BYTES - 1) / Long.BYTES * Long.BYTES;
+	}
+
+	private static ByteBuffer mapSection(FileChannel channel, long position, long size) throws IOException
+	{
+		Preconditions.checkArgument(size <= Integer.MAX_VALUE, "File section of "+size+" bytes is too large to be mapped.");
+		return channel.map(MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static void writeLongs(FileChannel channel, ByteBuffer chunk, LongBuffer values) throws IOException
+	{
+		for(int i=0;i<values.capacity();i++)
+		{
+			if(chunk.remaining() < Long.BYTES)
+			{
+				chunk.flip();
+				writeFully(channel, chunk);
+				chunk.clear();
+			}
+			chunk.putLong(values.get(i));
+		}
+		//Longs are aligned by construction.
+		chunk.flip();
+		writeFully(channel, chunk);
+		chunk.clear();
+	}
+
+	private static void writeInts(FileChannel channel, ByteBuffer chunk, IntBuffer values) throws IOException
+	{
+		for(int i=0;i<values.capacity();i++)
+		{
+			if(chunk.remaining() < Integer.BYTES)
+			{
+				chunk.flip();
+				writeFully(channel, chunk);
+				chunk.clear();
+			}
+			chunk.putInt(values.get(i));
+		}
+		//Pad to a multiple of 8 bytes.
+		if(values.capacity() % 2 == 1)
+		{
+			chunk.putInt(0);
+		}
+		chunk.flip();
+		writeFully(channel, chunk);
+		chunk.clear();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while(buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+	}
+
+	@Override
+	public void add(C set) {
+		throw new UnsupportedOperationException("Cannot add to a frozen cache.");
+	}
+
+	@Override
+	public void remove(C set) {
+		throw new UnsupportedOperationException("Cannot remove from a frozen cache.");
+	}
+
+	@Override
+	public boolean contains(C set) {
+		final long[] key = getKey(set);
+		//Find the bitset with its rank in the first permutation.
+		final int rank = search(0, key);
+		if(rank < 0)
+		{
+			return false;
+		}
+		final int id = rankIds[0].get(rank);
+		for(int i=offsets.get(id);i<offsets.get(id+1);i++)
+		{
+			if(getEntry(id, i).equals(set))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Iterable<C> getSets() {
+		if(entries != null)
+		{
+			return Collections.unmodifiableList((List<C>) (List<?>) Arrays.asList(entries));
+		}
+		return () -> new AbstractIterator<C>() {
+			private int fId = 0;
+			private int fEntry = 0;
+
+			@Override
+			protected C computeNext() {
+				if(fEntry == offsets.get(numKeys))
+				{
+					return endOfData();
+				}
+				while(fEntry == offsets.get(fId+1))
+				{
+					fId++;
+				}
+				return getEntry(fId, fEntry++);
+			}
+		};
+	}
+
+	@Override
+	public Iterable<C> getSubsets(ICacheEntry<E> set) {
+		return getSubsetEntries(getKey(set));
+	}
+
+	@Override
+	public int getNumberSubsets(ICacheEntry<E> set) {
+		return getSubsetEntries(getKey(set)).count();
+	}
+
+	@Override
+	public Iterable<C> getSupersets(ICacheEntry<E> set) {
+		return getSupersetEntries(getKey(set));
+	}
+
+	@Override
+	public int getNumberSupersets(ICacheEntry<E> set) {
+		return getSupersetEntries(getKey(set)).count();
+	}
+
+	@Override
+	public int size() {
+		return offsets.get(numKeys);
+	}
+
+	/**
+	 * @return the entry at the given position, of the bitset with the given id, created from the bitset if the entries are not stored.
+	 */
+	@SuppressWarnings("unchecked")
+	private C getEntry(int id, int entry)
+	{
+		if(entries != null)
+		{
+			return (C) entries[entry];
+		}
+		final long[] key = new long[numWords];
+		for(int w=0;w<numWords;w++)
+		{
+			key[w] = canonicalKeys.get(id*numWords + w);
+		}
+		return Preconditions.checkNotNull(entryFactory.apply(BitSet.valueOf(key), entry - offsets.get(id)));
+	}
+
+	/**
+	 * @return the entries of the subsets of the given canonical key, taken from the permutation with the smallest number of bitsets smaller than the key.
+	 */
+	private EntryIterable getSubsetEntries(long[] key)
+	{
+		int best = 0;
+		int bestend = Integer.MAX_VALUE;
+		for(int p=0;p<permutedKeys.length;p++)
+		{
+			final int end = getEndSmaller(p, key);
+			if(end < bestend)
+			{
+				best = p;
+				bestend = end;
+			}
+		}
+		return new EntryIterable(best, 0, bestend, key, true);
+	}
+
+	/**
+	 * @return the entries of the supersets of the given canonical key, taken from the permutation with the smallest number of bitsets larger than the key.
+	 */
+	private EntryIterable getSupersetEntries(long[] key)
+	{
+		int best = 0;
+		int beststart = -1;
+		for(int p=0;p<permutedKeys.length;p++)
+		{
+			final int start = getStartLarger(p, key);
+			if(start > beststart)
+			{
+				best = p;
+				beststart = start;
+			}
+		}
+		return new EntryIterable(best, beststart, numKeys, key, false);
+	}
+
+	/**
+	 * Permute the given canonical packed bitset with the given positions.
+	 */
+	private static void permute(int[] position, long[] src, int srcoffset, long[] dest, int destoffset, int numWords)
+	{
+		for(int w=0;w<numWords;w++)
+		{
+			long word = src[srcoffset+w];
+			while(word != 0L)
+			{
+				final int permuted = position[w*Long.SIZE + Long.numberOfTrailingZeros(word)];
+				dest[destoffset + (permuted >>> 6)] |= 1L << permuted;
+				word &= word - 1;
+			}
+		}
+	}
+
+	/**
+	 * @return the (exclusive) end rank of the bitsets that are smaller or equal to the given canonical key in the given permutation.
+	 */
+	private int getEndSmaller(int p, long[] key)
+	{
+		final int index = search(p, key);
+		return index >= 0 ? index+1 : -(index+1);
+	}
+
+	/**
+	 * @return the (inclusive) start rank of the bitsets that are larger or equal to the given canonical key in the given permutation.
+	 */
+	private int getStartLarger(int p, long[] key)
+	{
+		final int index = search(p, key);
+		return index >= 0 ? index : -(index+1);
+	}
+
+	private int search(int p, long[] key)
+	{
+		final long[] permuted = new long[numWords];
+		permute(positions[p], key, 0, permuted, 0, numWords);
+		return PackedBitSets.search(permutedKeys[p], numKeys, permuted, numWords);
+	}
+
+	private BitSet getBitSet(ICacheEntry<E> set) {
+		Preconditions.checkNotNull(set);
+		Preconditions.checkNotNull(set.getBitSet());
+		Preconditions.checkArgument(canonicalPermutation.keySet().containsAll(set.getElements()));
+		return set.getBitSet();
+	}
+
+	private long[] getKey(ICacheEntry<E> set) {
+		return PackedBitSets.pack(getBitSet(set), numWords);
+	}
+
+	/**
+	 * Lazy iterable over the entries of the bitsets in a rank range of a permutation that are subsets (or supersets) of a given key.
+	 */
+	private class EntryIterable implements Iterable<C>
+	{
+		private final int fPermutation;
+		private final int fStart;
+		private final int fEnd;
+		//Query key in the order of the permutation, so candidates are tested in rank order against the permuted keys.
+		private final long[] fPermutedKey;
+		private final boolean fSubsets;
+
+		public EntryIterable(int permutation, int start, int end, long[] key, boolean subsets)
+		{
+			fPermutation = permutation;
+			fStart = start;
+			fEnd = end;
+			fPermutedKey = new long[numWords];
+			permute(positions[permutation], key, 0, fPermutedKey, 0, numWords);
+			fSubsets = subsets;
+		}
+
+		/**
+		 * @return the number of entries, counted bucket by bucket.
+		 */
+		public int count()
+		{
+			final IntBuffer ids = rankIds[fPermutation];
+			int count = 0;
+			for(int rank=fStart;rank<fEnd;rank++)
+			{
+				if(matches(rank))
+				{
+					final int id = ids.get(rank);
+					count += offsets.get(id+1) - offsets.get(id);
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * @return true if the bitset at the given rank of the permutation is a subset (or superset) of the query. A permutation of the bits
+		 * preserves containment, so the sorted permuted keys are scanned sequentially.
+		 */
+		private boolean matches(int rank)
+		{
+			final LongBuffer keys = permutedKeys[fPermutation];
+			return fSubsets ?
+					PackedBitSets.isSubset(keys, rank*numWords, fPermutedKey, 0, numWords) :
+					PackedBitSets.isSubset(fPermutedKey, 0, keys, rank*numWords, numWords);
+		}
+
+		@Override
+		public Iterator<C> iterator() {
+			return new AbstractIterator<C>() {
+				private final IntBuffer fIds = rankIds[fPermutation];
+				private int fRank = fStart;
+				//The current bucket, and the range of its entries left to return.
+				private int fId = -1;
+				private int fEntry = 0;
+				private int fEntryEnd = 0;
+
+				@Override
+				protected C computeNext() {
+					while(fEntry == fEntryEnd)
+					{
+						if(fRank >= fEnd)
+						{
+							return endOfData();
+						}
+						final int rank = fRank++;
+						if(matches(rank))
+						{
+							fId = fIds.get(rank);
+							fEntry = offsets.get(fId);
+							fEntryEnd = offsets.get(fId+1);
+						}
+					}
+					return getEntry(fId, fEntry++);
+				}
+			};
+		}
+	}
+
+}
@@ -0,0 +1,361 @@
+package containmentcache.bitset.opt;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import lombok.NonNull;
+import net.jcip.annotations.NotThreadSafe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.BiMap;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+
+import containmentcache.ICacheEntry;
+import containmentcache.IContainmentCache;
+import containmentcache.decorators.BufferedThreadSafeCacheDecorator;
+import containmentcache.util.NestedIterables;
+
+/**
+ * A write-optimized version of the {@link MultiPermutationBitSetCache}, structured as a log-structured merge tree.
+ *
+ * New entries are appended to a small mutable delta, which is scanned linearly by queries. When the delta is full, it is frozen
+ * into an immutable run (see {@link FrozenMultiPermutationBitSetCache}) with one sorted array per permutation. Runs are merged so that every
+ * run is more than twice as large as the next (newer) one, keeping a logarithmic number of runs, each entry being re-sorted a logarithmic
+ * number of times. Removing an entry from a run records a tombstone in that run, which is dropped when the run is merged, or when the run is rebuilt
+ * because a quarter of its entries are tombstoned. The run of every entry is indexed, so that writes do not query every run.
+ * Queries merge the results of the delta and of every run; a run with tombstones filters its results instead of just counting them.
+ *
+ * A burst of additions thus costs a hash insertion per entry, plus the amortized cost of sorting the runs, instead of a balanced tree insertion
+ * per permutation per entry. Flushes and merges happen synchronously, in the add that fills the delta; to take them off a latency sensitive
+ * path, wrap the cache in a {@link BufferedThreadSafeCacheDecorator}.
+ *
+ * @param <E> - the elements the sets.
+ * @param <C> - the type of cache entries.
+ */
+@NotThreadSafe
+public class LogStructuredBitSetCache<E,C extends ICacheEntry<E>> implements IContainmentCache<E,C> {
+
+	private final static int DEFAULT_DELTA_CAPACITY = 1024;
+	//A run is rebuilt once more than that fraction of its entries are tombstoned.
+	private final static int MAX_TOMBSTONES_DIVISOR = 4;
+
+	private final ImmutableBiMap<E, Integer> canonicalPermutation;
+	//The permutations of the runs (see MultiPermutationBitSetCache#getPermutations).
+	private final int[][] permutations;
+	//Number of entries in the delta triggering a flush.
+	private final int deltaCapacity;
+	//Whether the runs are stored off-heap.
+	private final boolean offHeap;
+
+	//The newest entries, hashed by their bitset representation.
+	private final SetMultimap<BitSet,C> delta;
+	//The runs, from oldest (largest) to newest.
+	private final List<Run> runs;
+	//The run of every entry in a run (tombstoned or not).
+	private final Map<C,Run> entryRuns;
+	//Total number of tombstones.
+	private int numTombstones;
+
+	public LogStructuredBitSetCache(@NonNull BiMap<E, Integer> canonicalPermutation, @NonNull List<BiMap<E, Integer>> additionalPermutations)
+	{
+		this(canonicalPermutation, additionalPermutations, DEFAULT_DELTA_CAPACITY, false);
+	}
+
+	/**
+	 * @param canonicalPermutation - the permutation of the universe used by the cache entries.
+	 * @param additionalPermutations - the additional permutations of the universe, as in {@link MultiPermutationBitSetCache}.
+	 * @param deltaCapacity - number of entries in the mutable delta triggering a flush to a new run.
+	 * @param offHeap - whether to store the keys, ranks and bucket offsets of the runs off-heap (see {@link FrozenMultiPermutationBitSetCache}).
+	 */
+	public LogStructuredBitSetCache(@NonNull BiMap<E, Integer> canonicalPermutation, @NonNull List<BiMap<E, Integer>> additionalPermutations, int deltaCapacity, boolean offHeap)
+	{
+		//Check that the canonicalPermutation maps to a permutation of [0,...,n-1].
+		Preconditions.checkArgument(Sets.newHashSet(canonicalPermutation.values()).equals(IntStream.range(0, canonicalPermutation.size()).boxed().collect(Collectors.toSet())), "Ordering must map to a permutation of [0,...,n-1].");
+		for (BiMap<E, Integer> additionalPermutation : additionalPermutations) {
+			Preconditions.checkArgument(additionalPermutation.keySet().equals(canonicalPermutation.keySet()), "Not all of the orderings are on the same elements");
+			Preconditions.checkArgument(additionalPermutation.values().equals(canonicalPermutation.values()), "Not all of the orderings are on the same elements");
+		}
+		Preconditions.checkArgument(deltaCapacity > 0, "Delta capacity must be positive.");
+
+		this.canonicalPermutation = ImmutableBiMap.copyOf(canonicalPermutation);
+		this.permutations = MultiPermutationBitSetCache.getPermutations(this.canonicalPermutation, additionalPermutations);
+		this.deltaCapacity = deltaCapacity;
+		this.offHeap = offHeap;
+
+		delta = HashMultimap.create();
+		runs = new ArrayList<Run>();
+		entryRuns = new HashMap<C,Run>();
+		numTombstones = 0;
+	}
+
+	@Override
+	public void add(C set) {
+		final BitSet bs = getBitSet(set);
+		final Run run = entryRuns.get(set);
+		if(run != null)
+		{
+			//The entry is in its run, bring it back if it was removed.
+			if(run.tombstones.remove(set))
+			{
+				numTombstones--;
+			}
+			return;
+		}
+		delta.put(bs, set);
+		if(delta.size() >= deltaCapacity)
+		{
+			flush();
+		}
+	}
+
+	@Override
+	public void remove(C set) {
+		final BitSet bs = getBitSet(set);
+		if(delta.remove(bs, set))
+		{
+			return;
+		}
+		final Run run = entryRuns.get(set);
+		if(run != null && run.tombstones.add(set))
+		{
+			numTombstones++;
+			if(run.tombstones.size() * MAX_TOMBSTONES_DIVISOR > run.cache.size())
+			{
+				rebuild(run);
+			}
+		}
+	}
+
+	@Override
+	public boolean contains(C set) {
+		final BitSet bs = getBitSet(set);
+		if(delta.containsEntry(bs, set))
+		{
+			return true;
+		}
+		final Run run = entryRuns.get(set);
+		return run != null && !run.tombstones.contains(set);
+	}
+
+	@Override
+	public Iterable<C> getSets() {
+		final List<Iterable<C>> sets = new ArrayList<Iterable<C>>();
+		sets.add(delta.values());
+		for(Run run : runs)
+		{
+			sets.add(run.withoutTombstones(run.cache.getSets()));
+		}
+		return Iterables.concat(sets);
+	}
+
+	@Override
+	public Iterable<C> getSubsets(ICacheEntry<E> set) {
+		final BitSet bs = getBitSet(set);
+		final List<Iterable<C>> subsets = new ArrayList<Iterable<C>>();
+		subsets.add(NestedIterables.nest(Iterables.filter(delta.keySet(), deltabs -> isSubset(deltabs, bs)), delta.asMap()));
+		for(Run run : runs)
+		{
+			subsets.add(run.withoutTombstones(run.cache.getSubsets(set)));
+		}
+		return Iterables.concat(subsets);
+	}
+
+	@Override
+	public int getNumberSubsets(ICacheEntry<E> set) {
+		final BitSet bs = getBitSet(set);
+		int numsubsets = 0;
+		for(Map.Entry<BitSet,Collection<C>> bucket : delta.asMap().entrySet())
+		{
+			if(isSubset(bucket.getKey(), bs))
+			{
+				numsubsets += bucket.getValue().size();
+			}
+		}
+		for(Run run : runs)
+		{
+			numsubsets += run.tombstones.isEmpty() ? run.cache.getNumberSubsets(set) : Iterables.size(run.withoutTombstones(run.cache.getSubsets(set)));
+		}
+		return numsubsets;
+	}
+
+	@Override
+	public Iterable<C> getSupersets(ICacheEntry<E> set) {
+		final BitSet bs = getBitSet(set);
+		final List<Iterable<C>> supersets = new ArrayList<Iterable<C>>();
+		supersets.add(NestedIterables.nest(Iterables.filter(delta.keySet(), deltabs -> isSubset(bs, deltabs)), delta.asMap()));
+		for(Run run : runs)
+		{
+			supersets.add(run.withoutTombstones(run.cache.getSupersets(set)));
+		}
+		return Iterables.concat(supersets);
+	}
+
+	@Override
+	public int getNumberSupersets(ICacheEntry<E> set) {
+		final BitSet bs = getBitSet(set);
+		int numsupersets = 0;
+		for(Map.Entry<BitSet,Collection<C>> bucket : delta.asMap().entrySet())
+		{
+			if(isSubset(bs, bucket.getKey()))
+			{
+				numsupersets += bucket.getValue().size();
+			}
+		}
+		for(Run run : runs)
+		{
+			numsupersets += run.tombstones.isEmpty() ? run.cache.getNumberSupersets(set) : Iterables.size(run.withoutTombstones(run.cache.getSupersets(set)));
+		}
+		return numsupersets;
+	}
+
+	@Override
+	public int size() {
+		int size = delta.size() - numTombstones;
+		for(Run run : runs)
+		{
+			size += run.cache.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Flush the delta and merge all the runs into a single one, dropping all the tombstones. Useful once a burst of additions is over.
+	 */
+	public void compact()
+	{
+		final SetMultimap<BitSet,C> merged = HashMultimap.create(delta);
+		for(Run run : runs)
+		{
+			addLiveEntries(run, merged);
+		}
+		delta.clear();
+		runs.clear();
+		if(!merged.isEmpty())
+		{
+			runs.add(newRun(merged));
+		}
+	}
+
+	/**
+	 * @return the number of immutable runs.
+	 */
+	public int getNumberRuns()
+	{
+		return runs.size();
+	}
+
+	/**
+	 * @return the number of tombstones over all runs.
+	 */
+	public int getNumberTombstones()
+	{
+		return numTombstones;
+	}
+
+	/**
+	 * Freeze the delta into a new run, then merge the newest runs until every run is more than twice as large as the next one.
+	 */
+	private void flush()
+	{
+		SetMultimap<BitSet,C> merged = HashMultimap.create(delta);
+		delta.clear();
+		while(!runs.isEmpty() && runs.get(runs.size()-1).cache.size() <= 2*merged.size())
+		{
+			addLiveEntries(runs.remove(runs.size()-1), merged);
+		}
+		runs.add(newRun(merged));
+	}
+
+	/**
+	 * Replace the given run with a run of its entries that are not tombstoned.
+	 */
+	private void rebuild(Run run)
+	{
+		final SetMultimap<BitSet,C> live = HashMultimap.create();
+		addLiveEntries(run, live);
+		final int index = runs.indexOf(run);
+		if(live.isEmpty())
+		{
+			runs.remove(index);
+		}
+		else
+		{
+			runs.set(index, newRun(live));
+		}
+	}
+
+	/**
+	 * @return a new run of the given entries, indexing their run.
+	 */
+	private Run newRun(SetMultimap<BitSet,C> entries)
+	{
+		final Run run = new Run(FrozenMultiPermutationBitSetCache.create(canonicalPermutation, permutations, entries, offHeap));
+		for(C entry : entries.values())
+		{
+			entryRuns.put(entry, run);
+		}
+		return run;
+	}
+
+	/**
+	 * Add the entries of the given run that are not tombstoned to the given multimap, dropping the run's tombstones and entry index.
+	 */
+	private void addLiveEntries(Run run, SetMultimap<BitSet,C> merged)
+	{
+		for(C entry : run.cache.getSets())
+		{
+			entryRuns.remove(entry);
+			if(!run.tombstones.contains(entry))
+			{
+				merged.put(entry.getBitSet(), entry);
+			}
+		}
+		numTombstones -= run.tombstones.size();
+		run.tombstones.clear();
+	}
+
+	// true iff a is a subset of b
+	private static boolean isSubset(final BitSet a, final BitSet b) {
+		return a.stream().allMatch(b::get);
+	}
+
+	private BitSet getBitSet(ICacheEntry<E> set) {
+		Preconditions.checkNotNull(set);
+		Preconditions.checkNotNull(set.getBitSet());
+		Preconditions.checkArgument(canonicalPermutation.keySet().containsAll(set.getElements()));
+		return set.getBitSet();
+	}
+
+	/**
+	 * An immutable run, with the entries removed from it.
+	 */
+	private class Run
+	{
+		private final FrozenMultiPermutationBitSetCache<E,C> cache;
+		private final Set<C> tombstones;
+
+		public Run(FrozenMultiPermutationBitSetCache<E,C> cache)
+		{
+			this.cache = cache;
+			tombstones = new HashSet<C>();
+		}
+
+		public Iterable<C> withoutTombstones(Iterable<C> entries)
+		{
+			return Iterables.filter(entries, entry -> !tombstones.contains(entry));
+		}
+	}
+
+}
@@ -18,13 +18,16 @@ import lombok.Value;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.HashMultiset;
 import com.google.common.collect.ImmutableBiMap;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Multiset;
 import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Sets;
 
 import containmentcache.ICacheEntry;
 import containmentcache.IContainmentCache;
+import containmentcache.IQueryCostEstimator;
 import containmentcache.bitset.opt.sortedset.ISortedSet;
 import containmentcache.bitset.simple.SimpleBitSetCache;
 import containmentcache.util.NestedIterables;
@@ -35,14 +38,22 @@ import containmentcache.util.NestedIterables;
  * <p/>
  * First discussed in
  * Fréchette, Alexandre and Newman, Neil and Leyton-Brown, Kevin. "Solving the Station Repacking Problem" IJCAI. 2015.
+ * <p/>
+ * In count-only mode, the cache keeps a multiplicity per distinct bitset instead of the entries themselves. Every addition of an entry
+ * counts, even if an equal entry is already in the cache, every removal discounts one entry with the same bitset, and {@link #contains}
+ * checks for any entry with the same bitset. Only the counting queries and {@link #size()} are supported, the other
+ * ones throw {@link UnsupportedOperationException}.
  *
  * @param <E> - the elements the sets.
  * @author afrechet
  */
-public class MultiPermutationBitSetCache<E, C extends ICacheEntry<E>> implements IContainmentCache<E, C> {
+public class MultiPermutationBitSetCache<E, C extends ICacheEntry<E>> implements IContainmentCache<E, C>, IQueryCostEstimator<E> {
 
     private final List<SetContainer> sets;
+    //The entries hashed by their bitset representation, null in count-only mode.
     private final SetMultimap<BitSet, C> entries;
+    //The multiplicity of every bitset, null unless in count-only mode.
+    private final Multiset<BitSet> counts;
     private final ImmutableBiMap<E, Integer> canonicalPermutation;
 
     public interface ISortedSetFactory<T> {
@@ -55,6 +66,13 @@ public class MultiPermutationBitSetCache<E, C extends ICacheEntry<E>> implements
      * 
      */
     public <T> MultiPermutationBitSetCache(@NonNull BiMap<E, Integer> canonicalPermutation, @NonNull List<BiMap<E, Integer>> additionalPermutations, @NonNull ISortedSetFactory<BitSet> sortedSetFactory) {
+    	this(canonicalPermutation, additionalPermutations, sortedSetFactory, false);
+    }
+    
+    /**
+     * @param countOnly - whether to only keep the multiplicity of every bitset instead of the entries (see class documentation).
+     */
+    public <T> MultiPermutationBitSetCache(@NonNull BiMap<E, Integer> canonicalPermutation, @NonNull List<BiMap<E, Integer>> additionalPermutations, @NonNull ISortedSetFactory<BitSet> sortedSetFactory, boolean countOnly) {
 		//Check that the canonicalPermutation maps to a permutation of [0,...,n-1].
     	Preconditions.checkArgument(Sets.newHashSet(canonicalPermutation.values()).equals(IntStream.range(0, canonicalPermutation.size()).boxed().collect(Collectors.toSet())), "Ordering must map to a permutation of [0,...,n-1].");
     	
@@ -67,7 +85,22 @@ public class MultiPermutationBitSetCache<E, C extends ICacheEntry<E>> implements
     	this.canonicalPermutation = ImmutableBiMap.copyOf(canonicalPermutation);
         //Create the container set
         sets = new ArrayList<>();
-        entries = HashMultimap.create();
+        entries = countOnly ? null : HashMultimap.create();
+        counts = countOnly ? HashMultiset.create() : null;
+        final int[][] permutations = getPermutations(canonicalPermutation, additionalPermutations);
+        for (int[] permutation : permutations) {
+        	final PermutableBitSetComparator comparator = new PermutableBitSetComparator(permutation);
+            final ISortedSet<BitSet> set = sortedSetFactory.create(comparator);
+            final SetContainer container = new SetContainer(set, permutation);
+            sets.add(container);
+        }
+    }
+
+    /**
+     * @return for every permutation (the canonical one first), the bitset index of the element at every position of the canonical permutation's key set,
+     * which is the bitset index compared at that significance by the permutation's comparator.
+     */
+    static <E> int[][] getPermutations(BiMap<E, Integer> canonicalPermutation, List<BiMap<E, Integer>> additionalPermutations) {
         int numPermutations = 1 + additionalPermutations.size();
         int numElements = canonicalPermutation.keySet().size();
         final int[][] permutations = new int[numPermutations][numElements];
@@ -79,42 +112,52 @@ public class MultiPermutationBitSetCache<E, C extends ICacheEntry<E>> implements
             }
             j++;
         }
-
-        for (int[] permutation : permutations) {
-        	final PermutableBitSetComparator comparator = new PermutableBitSetComparator(permutation);
-            final ISortedSet<BitSet> set = sortedSetFactory.create(comparator);
-            final SetContainer container = new SetContainer(set, permutation);
-            sets.add(container);
-        }
+        return permutations;
     }
 
     @Override
     public void add(C set) {
     	final BitSet bs = getBitSet(set);
-    	entries.get(bs).add(set);
+    	if (counts != null) {
+    		counts.add(bs);
+    	} else {
+    		entries.put(bs, set);
+    	}
     	sets.forEach(setContainer-> setContainer.set.add(bs));
     }
 
     @Override
     public void remove(C set) {
     	final BitSet bs = getBitSet(set);
-    	entries.get(bs).remove(set);
-    	sets.forEach(setContainer-> setContainer.set.remove(bs));
+    	if (counts != null) {
+    		counts.remove(bs);
+    	} else {
+    		entries.remove(bs, set);
+    	}
+    	//Keep the bitset in the containers as long as other entries have it.
+    	if (getCount(bs) == 0) {
+    		sets.forEach(setContainer-> setContainer.set.remove(bs));
+    	}
     }
 
     @Override
     public boolean contains(C set) {
     	final BitSet bs = getBitSet(set);
-        return entries.get(bs).contains(set);
+    	if (counts != null) {
+    		return counts.contains(bs);
+    	}
+        return entries.containsEntry(bs, set);
     }
 
     @Override
     public Iterable<C> getSets() {
+    	checkEntries();
         return entries.values();
     }
 
     @Override
     public Iterable<C> getSubsets(ICacheEntry<E> set) {
+    	checkEntries();
     	final BitSet bs = getBitSet(set);
         //Get the set container with smallest number of sets smaller than given set.
         Optional<SetContainer> bestcontaineroptional = getMin(new NumSmallerContainerFunction(bs));
@@ -142,7 +185,7 @@ public class MultiPermutationBitSetCache<E, C extends ICacheEntry<E>> implements
 
             return StreamSupport.stream(tree.getSmaller(bs).spliterator(), false)
                     .filter(smallerbs -> isSubset(smallerbs, bs))
-                    .map(smallerbs -> entries.get(smallerbs).size())
+                    .map(this::getCount)
                     .reduce(0, Integer::sum);
         } else {
             return 0;
@@ -151,6 +194,7 @@ public class MultiPermutationBitSetCache<E, C extends ICacheEntry<E>> implements
 
     @Override
     public Iterable<C> getSupersets(ICacheEntry<E> set) {
+    	checkEntries();
     	final BitSet bs = getBitSet(set);
 
         //Get the set container with smallest number of sets larger than given set.
@@ -180,7 +224,7 @@ public class MultiPermutationBitSetCache<E, C extends ICacheEntry<E>> implements
 
             return StreamSupport.stream(tree.getLarger(bs).spliterator(), false)
                     .filter(bitset -> isSubset(bs, bitset))
-                    .map(largerbs -> entries.get(largerbs).size())
+                    .map(this::getCount)
                     .reduce(0, Integer::sum);
         } else {
             return 0;
@@ -190,7 +234,56 @@ public class MultiPermutationBitSetCache<E, C extends ICacheEntry<E>> implements
 
     @Override
     public int size() {
-        return entries.size();
+        return counts != null ? counts.size() : entries.size();
+    }
+    
+    /**
+     * @return the number of entries with the given bitset.
+     */
+    private int getCount(BitSet bs) {
+    	return counts != null ? counts.count(bs) : entries.get(bs).size();
+    }
+    
+    private void checkEntries() {
+    	if (counts != null) {
+    		throw new UnsupportedOperationException("Cannot get entries from a count-only cache.");
+    	}
+    }
+
+    /**
+     * @return the smallest number of sets smaller than the given set in any container, which are the sets examined by a subset query.
+     */
+    @Override
+    public long estimateSubsetQueryCost(ICacheEntry<E> set) {
+        final BitSet bs = getBitSet(set);
+        return sets.stream().mapToLong(container -> container.set.getNumberSmaller(bs)).min().orElse(0L);
+    }
+
+    /**
+     * @return the smallest number of sets larger than the given set in any container, which are the sets examined by a superset query.
+     */
+    @Override
+    public long estimateSupersetQueryCost(ICacheEntry<E> set) {
+        final BitSet bs = getBitSet(set);
+        return sets.stream().mapToLong(container -> container.set.getNumberLarger(bs)).min().orElse(0L);
+    }
+
+    /**
+     * @return an immutable snapshot of the cache, with sorted array containers and entries in compressed sparse row form (see {@link FrozenMultiPermutationBitSetCache}).
+     * Later changes to this cache are not reflected in the snapshot.
+     */
+    public FrozenMultiPermutationBitSetCache<E, C> freeze() {
+        return freeze(false);
+    }
+
+    /**
+     * @param offHeap - whether to store the snapshot's keys, ranks and bucket offsets off-heap, leaving only the entries on the heap.
+     * @return an immutable snapshot of the cache (see {@link #freeze()}).
+     */
+    public FrozenMultiPermutationBitSetCache<E, C> freeze(boolean offHeap) {
+    	checkEntries();
+        final int[][] permutations = sets.stream().map(SetContainer::getPermutation).toArray(int[][]::new);
+        return FrozenMultiPermutationBitSetCache.create(canonicalPermutation, permutations, entries, offHeap);
     }
 
     /**
@@ -246,7 +339,8 @@ public class MultiPermutationBitSetCache<E, C extends ICacheEntry<E>> implements
 	private BitSet getBitSet(ICacheEntry<E> set) {
 		Preconditions.checkNotNull(set);
 		Preconditions.checkNotNull(set.getBitSet());
-		Preconditions.checkArgument(canonicalPermutation.keySet().containsAll(set.getElements()));
+		//Entries built on the cache's own permutation instance are in its universe, skip looking up their elements.
+		Preconditions.checkArgument(set.getPermutation() == canonicalPermutation || canonicalPermutation.keySet().containsAll(set.getElements()));
 		return set.getBitSet();
 	}
 
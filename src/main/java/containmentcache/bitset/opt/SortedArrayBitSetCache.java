@@ -0,0 +1,279 @@
+package containmentcache.bitset.opt;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import lombok.NonNull;
+import net.jcip.annotations.NotThreadSafe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.BiMap;
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.Iterables;
+
+import containmentcache.ICacheEntry;
+import containmentcache.IContainmentCache;
+import containmentcache.bitset.simple.SimpleBitSetCache;
+import containmentcache.util.PackedBitSets;
+
+/**
+ * A bitset containment cache with the same principle as the {@link SimpleBitSetCache}, namely using the integer representation
+ * of bitsets to limit the number of sets to search for sub/supersets, but with a packed, contiguous memory layout.
+ *
+ * The distinct bitsets present in the cache are packed into plain 64-bit {@code long} words (bit i of the bitset being bit i%64 of word i/64),
+ * and kept in a single sorted array, so that:
+ * <ul>
+ * <li> comparisons and subset tests are done word by word (instead of bit by bit),</li>
+ * <li> the bounds of the smaller/larger sets are obtained by binary search,</li>
+ * <li> the candidate sub/supersets are scanned sequentially in memory.</li>
+ * </ul>
+ *
+ * Additions and removals shift the arrays, so this cache is best suited for read-mostly workloads.
+ *
+ * @param <E> - the elements the sets.
+ * @param <C> - the type of cache entries.
+ */
+@NotThreadSafe
+public class SortedArrayBitSetCache<E,C extends ICacheEntry<E>> implements IContainmentCache<E,C> {
+
+	private final static int INITIAL_CAPACITY = 16;
+
+	private final ImmutableBiMap<E, Integer> permutation;
+	//Number of words per packed bitset.
+	private final int numWords;
+
+	//Packed bitsets, sorted by integer value, the i-th one occupying words [i*numWords,(i+1)*numWords).
+	private long[] keys;
+	//The entries of the i-th bitset.
+	private Set<C>[] buckets;
+	//Number of distinct bitsets.
+	private int numKeys;
+	//Number of entries.
+	private int numEntries;
+
+	public SortedArrayBitSetCache(@NonNull BiMap<E, Integer> permutation)
+	{
+		//Check that permutation is from 0 .. N-1.
+		int N = permutation.size()-1;
+		Collection<Integer> image = permutation.values();
+		for(int i=0;i<=N;i++)
+		{
+			if(!image.contains(i))
+			{
+				throw new IllegalArgumentException("Permutation does not map any element to valid index "+i+", must be an invalid permutation.");
+			}
+		}
+		this.permutation = ImmutableBiMap.copyOf(permutation);
+
+		numWords = PackedBitSets.getNumWords(permutation.size());
+		keys = new long[INITIAL_CAPACITY*numWords];
+		buckets = newBuckets(INITIAL_CAPACITY);
+		numKeys = 0;
+		numEntries = 0;
+	}
+
+	@Override
+	public void add(C set) {
+		final long[] key = getKey(set);
+		int index = search(key);
+		if(index < 0)
+		{
+			index = -(index+1);
+			insertKey(index, key);
+		}
+		if(buckets[index].add(set))
+		{
+			numEntries++;
+		}
+	}
+
+	@Override
+	public void remove(C set) {
+		final long[] key = getKey(set);
+		final int index = search(key);
+		if(index >= 0 && buckets[index].remove(set))
+		{
+			numEntries--;
+			if(buckets[index].isEmpty())
+			{
+				removeKey(index);
+			}
+		}
+	}
+
+	@Override
+	public boolean contains(C set) {
+		final long[] key = getKey(set);
+		final int index = search(key);
+		return index >= 0 && buckets[index].contains(set);
+	}
+
+	@Override
+	public Iterable<C> getSets() {
+		return Iterables.concat(Arrays.asList(buckets).subList(0, numKeys));
+	}
+
+	@Override
+	public Iterable<C> getSubsets(ICacheEntry<E> set) {
+		final long[] key = getKey(set);
+		//All subsets are smaller or equal to the given set.
+		final int end = getEndSmaller(key);
+		return Iterables.concat(new BucketIterable(0, end, key, true));
+	}
+
+	@Override
+	public int getNumberSubsets(ICacheEntry<E> set) {
+		final long[] key = getKey(set);
+		final int end = getEndSmaller(key);
+		int numsubsets = 0;
+		for(int i=0;i<end;i++)
+		{
+			if(PackedBitSets.isSubset(keys, i*numWords, key, 0, numWords))
+			{
+				numsubsets += buckets[i].size();
+			}
+		}
+		return numsubsets;
+	}
+
+	@Override
+	public Iterable<C> getSupersets(ICacheEntry<E> set) {
+		final long[] key = getKey(set);
+		//All supersets are larger or equal to the given set.
+		final int start = getStartLarger(key);
+		return Iterables.concat(new BucketIterable(start, numKeys, key, false));
+	}
+
+	@Override
+	public int getNumberSupersets(ICacheEntry<E> set) {
+		final long[] key = getKey(set);
+		final int start = getStartLarger(key);
+		int numsupersets = 0;
+		for(int i=start;i<numKeys;i++)
+		{
+			if(PackedBitSets.isSubset(key, 0, keys, i*numWords, numWords))
+			{
+				numsupersets += buckets[i].size();
+			}
+		}
+		return numsupersets;
+	}
+
+	@Override
+	public int size() {
+		return numEntries;
+	}
+
+	/**
+	 * @param key - a packed bitset.
+	 * @return the index of the given key in the sorted keys if present, otherwise (-(insertion point) - 1) (following {@link Arrays#binarySearch(long[], long)}).
+	 */
+	private int search(long[] key)
+	{
+		return PackedBitSets.search(keys, numKeys, key, numWords);
+	}
+
+	/**
+	 * @return the (exclusive) end index of the keys that are smaller or equal to the given key.
+	 */
+	private int getEndSmaller(long[] key)
+	{
+		final int index = search(key);
+		return index >= 0 ? index+1 : -(index+1);
+	}
+
+	/**
+	 * @return the (inclusive) start index of the keys that are larger or equal to the given key.
+	 */
+	private int getStartLarger(long[] key)
+	{
+		final int index = search(key);
+		return index >= 0 ? index : -(index+1);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <C> Set<C>[] newBuckets(int capacity)
+	{
+		//Generic arrays cannot be created, but the array never escapes and only holds sets of entries.
+		return (Set<C>[]) new Set<?>[capacity];
+	}
+
+	private void insertKey(int index, long[] key)
+	{
+		if(numKeys == buckets.length)
+		{
+			final int capacity = 2*buckets.length;
+			keys = Arrays.copyOf(keys, capacity*numWords);
+			buckets = Arrays.copyOf(buckets, capacity);
+		}
+		System.arraycopy(keys, index*numWords, keys, (index+1)*numWords, (numKeys-index)*numWords);
+		System.arraycopy(buckets, index, buckets, index+1, numKeys-index);
+		System.arraycopy(key, 0, keys, index*numWords, numWords);
+		buckets[index] = new HashSet<C>(2);
+		numKeys++;
+	}
+
+	private void removeKey(int index)
+	{
+		System.arraycopy(keys, (index+1)*numWords, keys, index*numWords, (numKeys-index-1)*numWords);
+		System.arraycopy(buckets, index+1, buckets, index, numKeys-index-1);
+		numKeys--;
+		buckets[numKeys] = null;
+	}
+
+	private long[] getKey(ICacheEntry<E> set) {
+		Preconditions.checkNotNull(set);
+		final BitSet bs = set.getBitSet();
+		Preconditions.checkNotNull(bs);
+		Preconditions.checkArgument(permutation.keySet().containsAll(set.getElements()));
+		return PackedBitSets.pack(bs, numWords);
+	}
+
+	/**
+	 * Lazy iterable over the buckets of the keys in a range that are subsets (or supersets) of a given key.
+	 */
+	private class BucketIterable implements Iterable<Set<C>>
+	{
+		private final int fStart;
+		private final int fEnd;
+		private final long[] fKey;
+		private final boolean fSubsets;
+
+		public BucketIterable(int start, int end, long[] key, boolean subsets)
+		{
+			fStart = start;
+			fEnd = end;
+			fKey = key;
+			fSubsets = subsets;
+		}
+
+		@Override
+		public Iterator<Set<C>> iterator() {
+			return new AbstractIterator<Set<C>>() {
+				private int fIndex = fStart;
+
+				@Override
+				protected Set<C> computeNext() {
+					while(fIndex < fEnd)
+					{
+						final int index = fIndex++;
+						final boolean match = fSubsets ?
+								PackedBitSets.isSubset(keys, index*numWords, fKey, 0, numWords) :
+								PackedBitSets.isSubset(fKey, 0, keys, index*numWords, numWords);
+						if(match)
+						{
+							return buckets[index];
+						}
+					}
+					return endOfData();
+				}
+			};
+		}
+	}
+
+}
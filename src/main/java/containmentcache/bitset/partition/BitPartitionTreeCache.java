@@ -0,0 +1,474 @@
+package containmentcache.bitset.partition;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import lombok.NonNull;
+import net.jcip.annotations.NotThreadSafe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.BiMap;
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.Iterables;
+
+import containmentcache.ICacheEntry;
+import containmentcache.IContainmentCache;
+import containmentcache.ubt.UBTree;
+import containmentcache.util.PackedBitSets;
+
+/**
+ * A containment cache recursively partitioning its (distinct) bitsets in two, a k-d tree over bits. Every inner node splits
+ * the bitsets below it on a single element, into the ones where the element is absent and the ones where it is present.
+ * The bitsets themselves are kept packed in leaf buckets of bounded capacity.
+ *
+ * A superset query Q skips the absent branch of every node splitting on an element of Q, and a subset query skips the present
+ * branch of every node splitting on an element not in Q. Contrary to the {@link UBTree}, the split elements are not fixed by
+ * an ordering of the universe but chosen from the data: a full leaf is split on the element whose presence divides it the most evenly,
+ * so the pruning adapts to skewed element frequencies.
+ *
+ * Removals collapse the subtrees that are left with fewer bitsets than half a leaf back into a single leaf.
+ *
+ * @param <E> - the elements the sets.
+ * @param <C> - the type of cache entries.
+ */
+@NotThreadSafe
+public class BitPartitionTreeCache<E,C extends ICacheEntry<E>> implements IContainmentCache<E,C> {
+
+	private final static int DEFAULT_LEAF_CAPACITY = 32;
+
+	private final ImmutableBiMap<E, Integer> permutation;
+	//Number of words per packed bitset.
+	private final int numWords;
+	//Maximum number of distinct bitsets in a leaf before it is split.
+	private final int leafCapacity;
+
+	private Node root;
+	//Number of entries.
+	private int numEntries;
+
+	public BitPartitionTreeCache(@NonNull BiMap<E, Integer> permutation)
+	{
+		this(permutation, DEFAULT_LEAF_CAPACITY);
+	}
+
+	/**
+	 * @param permutation - the permutation of the universe used by the cache entries.
+	 * @param leafCapacity - maximum number of distinct bitsets in a leaf before it is split.
+	 */
+	public BitPartitionTreeCache(@NonNull BiMap<E, Integer> permutation, int leafCapacity)
+	{
+		//Check that permutation is from 0 .. N-1.
+		int N = permutation.size()-1;
+		Collection<Integer> image = permutation.values();
+		for(int i=0;i<=N;i++)
+		{
+			if(!image.contains(i))
+			{
+				throw new IllegalArgumentException("Permutation does not map any element to valid index "+i+", must be an invalid permutation.");
+			}
+		}
+		Preconditions.checkArgument(leafCapacity >= 2, "Leaf capacity must be at least 2.");
+		this.permutation = ImmutableBiMap.copyOf(permutation);
+		this.leafCapacity = leafCapacity;
+
+		numWords = PackedBitSets.getNumWords(permutation.size());
+		root = new Node(leafCapacity);
+		numEntries = 0;
+	}
+
+	@Override
+	public void add(C set) {
+		final long[] key = getKey(set);
+		Node node = root;
+		while(!node.isLeaf())
+		{
+			node = node.getChild(key);
+		}
+		int index = node.search(key);
+		if(index < 0)
+		{
+			index = node.insertKey(key);
+			//Update the subtree sizes along the path.
+			for(Node ancestor = node.parent; ancestor != null; ancestor = ancestor.parent)
+			{
+				ancestor.size++;
+			}
+		}
+		if(node.buckets[index].add(set))
+		{
+			numEntries++;
+		}
+		if(node.size > leafCapacity)
+		{
+			node.split();
+		}
+	}
+
+	@Override
+	public void remove(C set) {
+		final long[] key = getKey(set);
+		Node node = root;
+		while(!node.isLeaf())
+		{
+			node = node.getChild(key);
+		}
+		final int index = node.search(key);
+		if(index >= 0 && node.buckets[index].remove(set))
+		{
+			numEntries--;
+			if(node.buckets[index].isEmpty())
+			{
+				node.removeKey(index);
+				//Update the subtree sizes along the path, keeping track of the highest subtree small enough to be collapsed.
+				Node collapse = null;
+				for(Node ancestor = node.parent; ancestor != null; ancestor = ancestor.parent)
+				{
+					ancestor.size--;
+					if(2*ancestor.size <= leafCapacity)
+					{
+						collapse = ancestor;
+					}
+				}
+				if(collapse != null)
+				{
+					collapse.collapse();
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean contains(C set) {
+		final long[] key = getKey(set);
+		Node node = root;
+		while(!node.isLeaf())
+		{
+			node = node.getChild(key);
+		}
+		final int index = node.search(key);
+		return index >= 0 && node.buckets[index].contains(set);
+	}
+
+	@Override
+	public Iterable<C> getSets() {
+		return Iterables.concat(new BucketIterable(null, true));
+	}
+
+	@Override
+	public Iterable<C> getSubsets(ICacheEntry<E> set) {
+		final long[] key = getKey(set);
+		return Iterables.concat(new BucketIterable(key, true));
+	}
+
+	@Override
+	public int getNumberSubsets(ICacheEntry<E> set) {
+		final long[] key = getKey(set);
+		int numsubsets = 0;
+		for(Set<C> bucket : new BucketIterable(key, true))
+		{
+			numsubsets += bucket.size();
+		}
+		return numsubsets;
+	}
+
+	@Override
+	public Iterable<C> getSupersets(ICacheEntry<E> set) {
+		final long[] key = getKey(set);
+		return Iterables.concat(new BucketIterable(key, false));
+	}
+
+	@Override
+	public int getNumberSupersets(ICacheEntry<E> set) {
+		final long[] key = getKey(set);
+		int numsupersets = 0;
+		for(Set<C> bucket : new BucketIterable(key, false))
+		{
+			numsupersets += bucket.size();
+		}
+		return numsupersets;
+	}
+
+	@Override
+	public int size() {
+		return numEntries;
+	}
+
+	private long[] getKey(ICacheEntry<E> set) {
+		Preconditions.checkNotNull(set);
+		final BitSet bs = set.getBitSet();
+		Preconditions.checkNotNull(bs);
+		Preconditions.checkArgument(permutation.keySet().containsAll(set.getElements()));
+		return PackedBitSets.pack(bs, numWords);
+	}
+
+	private static boolean isSet(long[] words, int offset, int element)
+	{
+		return (words[offset + (element >>> 6)] & (1L << element)) != 0L;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <C> Set<C>[] newBuckets(int capacity)
+	{
+		//Generic arrays cannot be created, but the array never escapes and only holds sets of entries.
+		return (Set<C>[]) new Set<?>[capacity];
+	}
+
+	/**
+	 * A node of the partition tree, either an inner node splitting on an element or a leaf bucket of packed bitsets.
+	 */
+	private final class Node
+	{
+		private Node parent;
+		//Number of distinct bitsets in the subtree rooted at the node.
+		private int size;
+
+		//Inner node fields: the split element (-1 for a leaf) and the children without and with it.
+		private int element;
+		private Node absent;
+		private Node present;
+
+		//Leaf fields: the packed bitsets, the i-th one occupying words [i*numWords,(i+1)*numWords), and their entries.
+		private long[] keys;
+		private Set<C>[] buckets;
+
+		public Node(int capacity)
+		{
+			element = -1;
+			keys = new long[capacity*numWords];
+			buckets = newBuckets(capacity);
+			size = 0;
+		}
+
+		public boolean isLeaf()
+		{
+			return element < 0;
+		}
+
+		public Node getChild(long[] key)
+		{
+			return isSet(key, 0, element) ? present : absent;
+		}
+
+		/**
+		 * @return the index of the given key in the leaf, or -1 if absent.
+		 */
+		public int search(long[] key)
+		{
+			for(int i=0;i<size;i++)
+			{
+				if(PackedBitSets.compare(keys, i*numWords, key, 0, numWords) == 0)
+				{
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Append the given key (with an empty bucket) to the leaf.
+		 * @return the index of the key.
+		 */
+		public int insertKey(long[] key)
+		{
+			return insertKey(key, 0, new HashSet<C>(2));
+		}
+
+		private int insertKey(long[] src, int offset, Set<C> bucket)
+		{
+			if(size == buckets.length)
+			{
+				final int capacity = 2*buckets.length;
+				keys = Arrays.copyOf(keys, capacity*numWords);
+				buckets = Arrays.copyOf(buckets, capacity);
+			}
+			System.arraycopy(src, offset, keys, size*numWords, numWords);
+			buckets[size] = bucket;
+			return size++;
+		}
+
+		/**
+		 * Remove the key at the given index by replacing it with the last key of the leaf.
+		 */
+		public void removeKey(int index)
+		{
+			size--;
+			System.arraycopy(keys, size*numWords, keys, index*numWords, numWords);
+			buckets[index] = buckets[size];
+			buckets[size] = null;
+		}
+
+		/**
+		 * Turn this leaf into an inner node, splitting its keys on the element whose presence count is the closest to half of them.
+		 */
+		public void split()
+		{
+			//Count the presence of every element in the leaf.
+			final int[] counts = new int[numWords*Long.SIZE];
+			for(int i=0;i<size;i++)
+			{
+				for(int w=0;w<numWords;w++)
+				{
+					long word = keys[i*numWords+w];
+					while(word != 0L)
+					{
+						counts[w*Long.SIZE + Long.numberOfTrailingZeros(word)]++;
+						word &= word - 1;
+					}
+				}
+			}
+			//Distinct keys differ on at least one element, so there is one with a count strictly between 0 and size.
+			int best = -1;
+			int bestdistance = Integer.MAX_VALUE;
+			for(int e=0;e<counts.length;e++)
+			{
+				final int distance = Math.abs(2*counts[e] - size);
+				if(counts[e] > 0 && counts[e] < size && distance < bestdistance)
+				{
+					best = e;
+					bestdistance = distance;
+				}
+			}
+
+			absent = new Node(leafCapacity);
+			present = new Node(leafCapacity);
+			absent.parent = this;
+			present.parent = this;
+			for(int i=0;i<size;i++)
+			{
+				final Node child = isSet(keys, i*numWords, best) ? present : absent;
+				child.insertKey(keys, i*numWords, buckets[i]);
+			}
+			element = best;
+			keys = null;
+			buckets = null;
+		}
+
+		/**
+		 * Turn this inner node back into a leaf containing all the keys of its subtree.
+		 */
+		public void collapse()
+		{
+			final int numkeys = size;
+			keys = new long[Math.max(numkeys, leafCapacity)*numWords];
+			buckets = newBuckets(Math.max(numkeys, leafCapacity));
+			size = 0;
+
+			final Deque<Node> stack = new ArrayDeque<Node>();
+			stack.push(absent);
+			stack.push(present);
+			while(!stack.isEmpty())
+			{
+				final Node node = stack.pop();
+				if(node.isLeaf())
+				{
+					for(int i=0;i<node.size;i++)
+					{
+						insertKey(node.keys, i*numWords, node.buckets[i]);
+					}
+				}
+				else
+				{
+					stack.push(node.absent);
+					stack.push(node.present);
+				}
+			}
+			element = -1;
+			absent = null;
+			present = null;
+		}
+	}
+
+	/**
+	 * Lazy iterable over the buckets of the bitsets that are subsets (or supersets) of a given key, visiting the tree depth first
+	 * and pruning the branches that cannot contain any.
+	 */
+	private class BucketIterable implements Iterable<Set<C>>
+	{
+		//Query key, null to visit all the buckets.
+		private final long[] fKey;
+		private final boolean fSubsets;
+
+		public BucketIterable(long[] key, boolean subsets)
+		{
+			fKey = key;
+			fSubsets = subsets;
+		}
+
+		@Override
+		public Iterator<Set<C>> iterator() {
+			return new AbstractIterator<Set<C>>() {
+				private final List<Node> fStack = new ArrayList<Node>(Arrays.asList(root));
+				private Node fLeaf = null;
+				private int fIndex = 0;
+
+				@Override
+				protected Set<C> computeNext() {
+					while(true)
+					{
+						if(fLeaf != null)
+						{
+							while(fIndex < fLeaf.size)
+							{
+								final int index = fIndex++;
+								if(matches(fLeaf, index))
+								{
+									return fLeaf.buckets[index];
+								}
+							}
+							fLeaf = null;
+						}
+						if(fStack.isEmpty())
+						{
+							return endOfData();
+						}
+						final Node node = fStack.remove(fStack.size()-1);
+						if(node.isLeaf())
+						{
+							fLeaf = node;
+							fIndex = 0;
+						}
+						else if(fKey == null)
+						{
+							fStack.add(node.absent);
+							fStack.add(node.present);
+						}
+						else
+						{
+							final boolean inquery = isSet(fKey, 0, node.element);
+							//Subsets cannot contain elements outside the query, supersets must contain all the query's elements.
+							if(!fSubsets || inquery)
+							{
+								fStack.add(node.present);
+							}
+							if(fSubsets || !inquery)
+							{
+								fStack.add(node.absent);
+							}
+						}
+					}
+				}
+			};
+		}
+
+		private boolean matches(Node leaf, int index)
+		{
+			if(fKey == null)
+			{
+				return true;
+			}
+			return fSubsets ?
+					PackedBitSets.isSubset(leaf.keys, index*numWords, fKey, 0, numWords) :
+					PackedBitSets.isSubset(fKey, 0, leaf.keys, index*numWords, numWords);
+		}
+	}
+
+}
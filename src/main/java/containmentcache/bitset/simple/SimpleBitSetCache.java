@@ -180,7 +180,8 @@ public class SimpleBitSetCache<E,C extends ICacheEntry<E>> implements IContainme
 	private BitSet getBitSet(ICacheEntry<E> set) {
 		Preconditions.checkNotNull(set);
 		Preconditions.checkNotNull(set.getBitSet());
-		Preconditions.checkArgument(permutation.keySet().containsAll(set.getElements()));
+		//Entries built on the cache's own permutation instance are in its universe, skip looking up their elements.
+		Preconditions.checkArgument(set.getPermutation() == permutation || permutation.keySet().containsAll(set.getElements()));
 		return set.getBitSet();
 	}
 	
@@ -0,0 +1,315 @@
+package containmentcache.bitset.vertical;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import lombok.NonNull;
+import net.jcip.annotations.NotThreadSafe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.BiMap;
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.Iterables;
+
+import containmentcache.ICacheEntry;
+import containmentcache.IContainmentCache;
+
+/**
+ * A column-store containment cache. Every cache entry occupies a slot, and every element of the universe has a dense bitmap
+ * (a column) over the slots, with a bit set for every entry containing that element.
+ *
+ * Given a query set Q:
+ * <ul>
+ * <li> the supersets of Q are the slots in the AND of the columns of Q's elements, </li>
+ * <li> the subsets of Q are the slots that are not in the OR of the columns of the elements outside of Q, </li>
+ * <li> the number of sub/supersets is the popcount of the resulting bitmap.</li>
+ * </ul>
+ *
+ * All these operations are branch-free sequential sweeps over {@code long} words, which makes this cache well suited for
+ * mid-size caches. Columns of elements not contained in any entry are not allocated.
+ *
+ * @param <E> - the elements the sets.
+ * @param <C> - the type of cache entries.
+ */
+@NotThreadSafe
+public class VerticalBitmapCache<E,C extends ICacheEntry<E>> implements IContainmentCache<E,C> {
+
+	private final static int INITIAL_NUM_WORDS = 1;
+
+	private final ImmutableBiMap<E, Integer> permutation;
+
+	//Column of every element index, null if no entry contains the element.
+	private final long[][] columns;
+	//Number of entries containing every element index.
+	private final int[] columnSizes;
+	//The slots in use.
+	private long[] live;
+	//Number of words in every bitmap over slots.
+	private int numWords;
+
+	//The entry at every slot, null for free slots.
+	private final List<C> slotEntries;
+	//The slot of every entry.
+	private final Map<C,Integer> slots;
+	//Slots that have been freed and can be reused.
+	private final Deque<Integer> freeSlots;
+
+	public VerticalBitmapCache(@NonNull BiMap<E, Integer> permutation)
+	{
+		//Check that permutation is from 0 .. N-1.
+		int N = permutation.size()-1;
+		Collection<Integer> image = permutation.values();
+		for(int i=0;i<=N;i++)
+		{
+			if(!image.contains(i))
+			{
+				throw new IllegalArgumentException("Permutation does not map any element to valid index "+i+", must be an invalid permutation.");
+			}
+		}
+		this.permutation = ImmutableBiMap.copyOf(permutation);
+
+		columns = new long[permutation.size()][];
+		columnSizes = new int[permutation.size()];
+		numWords = INITIAL_NUM_WORDS;
+		live = new long[numWords];
+
+		slotEntries = new ArrayList<>();
+		slots = new HashMap<>();
+		freeSlots = new ArrayDeque<>();
+	}
+
+	@Override
+	public void add(C set) {
+		final BitSet bs = getBitSet(set);
+		if(slots.containsKey(set))
+		{
+			return;
+		}
+		final int slot = newSlot();
+		slotEntries.set(slot, set);
+		slots.put(set, slot);
+
+		final int word = slot >>> 6;
+		final long mask = 1L << slot;
+		live[word] |= mask;
+		for(int e = bs.nextSetBit(0); e >= 0; e = bs.nextSetBit(e+1))
+		{
+			if(columns[e] == null)
+			{
+				columns[e] = new long[numWords];
+			}
+			columns[e][word] |= mask;
+			columnSizes[e]++;
+		}
+	}
+
+	@Override
+	public void remove(C set) {
+		final BitSet bs = getBitSet(set);
+		final Integer slot = slots.remove(set);
+		if(slot == null)
+		{
+			return;
+		}
+		slotEntries.set(slot, null);
+		freeSlots.push(slot);
+
+		final int word = slot >>> 6;
+		final long mask = ~(1L << slot);
+		live[word] &= mask;
+		for(int e = bs.nextSetBit(0); e >= 0; e = bs.nextSetBit(e+1))
+		{
+			if(--columnSizes[e] == 0)
+			{
+				columns[e] = null;
+			}
+			else
+			{
+				columns[e][word] &= mask;
+			}
+		}
+	}
+
+	@Override
+	public boolean contains(C set) {
+		getBitSet(set);
+		return slots.containsKey(set);
+	}
+
+	@Override
+	public Iterable<C> getSets() {
+		return Iterables.filter(slotEntries, Objects::nonNull);
+	}
+
+	@Override
+	public Iterable<C> getSubsets(ICacheEntry<E> set) {
+		final BitSet bs = getBitSet(set);
+		return new Iterable<C>(){
+			@Override
+			public Iterator<C> iterator() {
+				return new SlotIterator(getSubsetSlots(bs));
+			}};
+	}
+
+	@Override
+	public int getNumberSubsets(ICacheEntry<E> set) {
+		final BitSet bs = getBitSet(set);
+		return cardinality(getSubsetSlots(bs));
+	}
+
+	@Override
+	public Iterable<C> getSupersets(ICacheEntry<E> set) {
+		final BitSet bs = getBitSet(set);
+		return new Iterable<C>(){
+			@Override
+			public Iterator<C> iterator() {
+				return new SlotIterator(getSupersetSlots(bs));
+			}};
+	}
+
+	@Override
+	public int getNumberSupersets(ICacheEntry<E> set) {
+		final BitSet bs = getBitSet(set);
+		return cardinality(getSupersetSlots(bs));
+	}
+
+	@Override
+	public int size() {
+		return slots.size();
+	}
+
+	/**
+	 * @param bs - a query bitset.
+	 * @return the bitmap of the slots of the entries that are subsets of the given bitset.
+	 */
+	private long[] getSubsetSlots(BitSet bs)
+	{
+		//OR of all the columns outside of the query.
+		final long[] outside = new long[numWords];
+		for(int e=0;e<columns.length;e++)
+		{
+			final long[] column = columns[e];
+			if(column != null && !bs.get(e))
+			{
+				for(int i=0;i<numWords;i++)
+				{
+					outside[i] |= column[i];
+				}
+			}
+		}
+		for(int i=0;i<numWords;i++)
+		{
+			outside[i] = live[i] & ~outside[i];
+		}
+		return outside;
+	}
+
+	/**
+	 * @param bs - a query bitset.
+	 * @return the bitmap of the slots of the entries that are supersets of the given bitset.
+	 */
+	private long[] getSupersetSlots(BitSet bs)
+	{
+		//AND of all the columns of the query.
+		final long[] result = Arrays.copyOf(live, numWords);
+		for(int e = bs.nextSetBit(0); e >= 0; e = bs.nextSetBit(e+1))
+		{
+			final long[] column = columns[e];
+			if(column == null)
+			{
+				return new long[numWords];
+			}
+			for(int i=0;i<numWords;i++)
+			{
+				result[i] &= column[i];
+			}
+		}
+		return result;
+	}
+
+	private static int cardinality(long[] bitmap)
+	{
+		int cardinality = 0;
+		for(final long word : bitmap)
+		{
+			cardinality += Long.bitCount(word);
+		}
+		return cardinality;
+	}
+
+	/**
+	 * @return a free slot, growing the bitmaps if needed.
+	 */
+	private int newSlot()
+	{
+		if(!freeSlots.isEmpty())
+		{
+			return freeSlots.pop();
+		}
+		final int slot = slotEntries.size();
+		slotEntries.add(null);
+		if(slot >= numWords * Long.SIZE)
+		{
+			numWords *= 2;
+			live = Arrays.copyOf(live, numWords);
+			for(int e=0;e<columns.length;e++)
+			{
+				if(columns[e] != null)
+				{
+					columns[e] = Arrays.copyOf(columns[e], numWords);
+				}
+			}
+		}
+		return slot;
+	}
+
+	private BitSet getBitSet(ICacheEntry<E> set) {
+		Preconditions.checkNotNull(set);
+		Preconditions.checkNotNull(set.getBitSet());
+		Preconditions.checkArgument(permutation.keySet().containsAll(set.getElements()));
+		return set.getBitSet();
+	}
+
+	/**
+	 * Iterator over the entries at the slots set in a bitmap.
+	 */
+	private class SlotIterator extends AbstractIterator<C>
+	{
+		private final long[] fBitmap;
+		private int fWordIndex;
+		private long fWord;
+
+		public SlotIterator(long[] bitmap)
+		{
+			fBitmap = bitmap;
+			fWordIndex = 0;
+			fWord = bitmap.length > 0 ? bitmap[0] : 0L;
+		}
+
+		@Override
+		protected C computeNext() {
+			while(fWord == 0L)
+			{
+				if(++fWordIndex >= fBitmap.length)
+				{
+					return endOfData();
+				}
+				fWord = fBitmap[fWordIndex];
+			}
+			final int slot = fWordIndex * Long.SIZE + Long.numberOfTrailingZeros(fWord);
+			fWord &= fWord - 1;
+			return slotEntries.get(slot);
+		}
+	}
+
+}
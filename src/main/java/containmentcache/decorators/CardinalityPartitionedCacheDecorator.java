@@ -0,0 +1,142 @@
+package containmentcache.decorators;
+
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+
+import containmentcache.ICacheEntry;
+import containmentcache.IContainmentCache;
+
+/**
+ * Cache decorator that partitions entries by the cardinality of their set, each partition being its own containment cache.
+ *
+ * A set can only be a subset (resp. superset) of a query if it has a cardinality smaller (resp. larger) or equal to the query's,
+ * so sub/superset queries only visit the partitions on one side of the query's cardinality. When set cardinalities are concentrated,
+ * entire cardinality bands are skipped before the underlying caches do any work.
+ *
+ * @param <E> - type of elements in set representing entry.
+ * @param <C> - type of cache entry.
+ */
+@NotThreadSafe
+public class CardinalityPartitionedCacheDecorator<E,C extends ICacheEntry<E>> implements IContainmentCache<E, C> {
+
+	//Factory for the caches used as partitions.
+	private final Supplier<? extends IContainmentCache<E,C>> fPartitionFactory;
+	//The non-empty partitions, indexed by the cardinality of their sets.
+	private final NavigableMap<Integer,IContainmentCache<E,C>> fPartitions;
+
+	/**
+	 * @param partitionFactory - factory creating a new empty cache for every cardinality partition.
+	 */
+	public CardinalityPartitionedCacheDecorator(Supplier<? extends IContainmentCache<E,C>> partitionFactory)
+	{
+		fPartitionFactory = Preconditions.checkNotNull(partitionFactory);
+		fPartitions = new TreeMap<Integer,IContainmentCache<E,C>>();
+	}
+
+	@Override
+	public void add(C set) {
+		final int cardinality = getCardinality(set);
+		IContainmentCache<E,C> partition = fPartitions.get(cardinality);
+		if(partition == null)
+		{
+			partition = fPartitionFactory.get();
+			fPartitions.put(cardinality, partition);
+		}
+		partition.add(set);
+	}
+
+	@Override
+	public void remove(C set) {
+		final int cardinality = getCardinality(set);
+		final IContainmentCache<E,C> partition = fPartitions.get(cardinality);
+		if(partition != null)
+		{
+			partition.remove(set);
+			if(partition.size() == 0)
+			{
+				fPartitions.remove(cardinality);
+			}
+		}
+	}
+
+	@Override
+	public boolean contains(C set) {
+		final IContainmentCache<E,C> partition = fPartitions.get(getCardinality(set));
+		return partition != null && partition.contains(set);
+	}
+
+	@Override
+	public Iterable<C> getSets() {
+		return Iterables.concat(Iterables.transform(fPartitions.values(), partition -> partition.getSets()));
+	}
+
+	@Override
+	public Iterable<C> getSubsets(ICacheEntry<E> set) {
+		return Iterables.concat(Iterables.transform(getSmallerPartitions(set).values(), partition -> partition.getSubsets(set)));
+	}
+
+	@Override
+	public int getNumberSubsets(ICacheEntry<E> set) {
+		int numsubsets = 0;
+		for(IContainmentCache<E,C> partition : getSmallerPartitions(set).values())
+		{
+			numsubsets += partition.getNumberSubsets(set);
+		}
+		return numsubsets;
+	}
+
+	@Override
+	public Iterable<C> getSupersets(ICacheEntry<E> set) {
+		return Iterables.concat(Iterables.transform(getLargerPartitions(set).values(), partition -> partition.getSupersets(set)));
+	}
+
+	@Override
+	public int getNumberSupersets(ICacheEntry<E> set) {
+		int numsupersets = 0;
+		for(IContainmentCache<E,C> partition : getLargerPartitions(set).values())
+		{
+			numsupersets += partition.getNumberSupersets(set);
+		}
+		return numsupersets;
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for(IContainmentCache<E,C> partition : fPartitions.values())
+		{
+			size += partition.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return the partitions containing sets of cardinality smaller or equal to the given set's.
+	 */
+	private NavigableMap<Integer,IContainmentCache<E,C>> getSmallerPartitions(ICacheEntry<E> set)
+	{
+		return fPartitions.headMap(getCardinality(set), true);
+	}
+
+	/**
+	 * @return the partitions containing sets of cardinality larger or equal to the given set's.
+	 */
+	private NavigableMap<Integer,IContainmentCache<E,C>> getLargerPartitions(ICacheEntry<E> set)
+	{
+		return fPartitions.tailMap(getCardinality(set), true);
+	}
+
+	private int getCardinality(ICacheEntry<E> set)
+	{
+		Preconditions.checkNotNull(set);
+		Preconditions.checkNotNull(set.getBitSet());
+		return set.getBitSet().cardinality();
+	}
+
+}
@@ -0,0 +1,153 @@
+package containmentcache.decorators;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Multiset;
+
+import containmentcache.ICacheEntry;
+import containmentcache.IContainmentCache;
+import containmentcache.IQueryCostEstimator;
+
+/**
+ * Cache decorator keeping the same entries in several caches (backends), and answering every sub/superset query with the backend
+ * that is estimated to be the cheapest for that query. For example, a UBTree is usually best for subset queries with few elements,
+ * while bitset caches are better for dense superset queries.
+ *
+ * Backends implementing {@link IQueryCostEstimator} provide their own estimates of the number of distinct candidate sets a query examines,
+ * the cost of a query on any other backend is estimated to be the number of distinct sets in the cache (i.e. a full scan examining every set),
+ * which the decorator keeps track of itself since backends differ in what their size counts. All estimates are thus in the same unit,
+ * however many entries share a set. The work per candidate is not accounted for, so the routing is ordinal: it picks the backend with the fewest
+ * candidates, which is the cheapest when candidate counts differ by more than the backends' constant factors. Ties go to the first backend.
+ *
+ * @param <E> - type of elements in set representing entry.
+ * @param <C> - type of cache entry.
+ */
+@NotThreadSafe
+public class CostRoutingCacheDecorator<E,C extends ICacheEntry<E>> implements IContainmentCache<E, C> {
+
+	private final List<IContainmentCache<E,C>> fBackends;
+	//The bitsets of the entries, to know the number of distinct sets.
+	private final Multiset<BitSet> fBitSets;
+
+	/**
+	 * @param backends - the empty caches in which to keep the entries.
+	 */
+	public CostRoutingCacheDecorator(List<? extends IContainmentCache<E,C>> backends)
+	{
+		Preconditions.checkArgument(!backends.isEmpty(), "Must provide at least one backend cache.");
+		for(IContainmentCache<E,C> backend : backends)
+		{
+			Preconditions.checkArgument(backend.size() == 0, "Backend caches must be empty.");
+		}
+		fBackends = ImmutableList.copyOf(backends);
+		fBitSets = HashMultiset.create();
+	}
+
+	@Override
+	public void add(C set) {
+		if(!contains(set))
+		{
+			fBitSets.add(set.getBitSet());
+		}
+		for(IContainmentCache<E,C> backend : fBackends)
+		{
+			backend.add(set);
+		}
+	}
+
+	@Override
+	public void remove(C set) {
+		if(contains(set))
+		{
+			fBitSets.remove(set.getBitSet());
+		}
+		for(IContainmentCache<E,C> backend : fBackends)
+		{
+			backend.remove(set);
+		}
+	}
+
+	@Override
+	public boolean contains(C set) {
+		return fBackends.get(0).contains(set);
+	}
+
+	@Override
+	public Iterable<C> getSets() {
+		return fBackends.get(0).getSets();
+	}
+
+	@Override
+	public Iterable<C> getSubsets(ICacheEntry<E> set) {
+		return getSubsetBackend(set).getSubsets(set);
+	}
+
+	@Override
+	public int getNumberSubsets(ICacheEntry<E> set) {
+		return getSubsetBackend(set).getNumberSubsets(set);
+	}
+
+	@Override
+	public Iterable<C> getSupersets(ICacheEntry<E> set) {
+		return getSupersetBackend(set).getSupersets(set);
+	}
+
+	@Override
+	public int getNumberSupersets(ICacheEntry<E> set) {
+		return getSupersetBackend(set).getNumberSupersets(set);
+	}
+
+	@Override
+	public int size() {
+		return fBackends.get(0).size();
+	}
+
+	/**
+	 * @return the backend estimated to be the cheapest to find the subsets of the given set.
+	 */
+	IContainmentCache<E,C> getSubsetBackend(ICacheEntry<E> set)
+	{
+		return getCheapest(estimator -> estimator.estimateSubsetQueryCost(set));
+	}
+
+	/**
+	 * @return the backend estimated to be the cheapest to find the supersets of the given set.
+	 */
+	IContainmentCache<E,C> getSupersetBackend(ICacheEntry<E> set)
+	{
+		return getCheapest(estimator -> estimator.estimateSupersetQueryCost(set));
+	}
+
+	/**
+	 * @return the number of distinct sets of the entries, the cost of a full scan.
+	 */
+	long getNumberDistinctSets()
+	{
+		return fBitSets.elementSet().size();
+	}
+
+	@SuppressWarnings("unchecked")
+	private IContainmentCache<E,C> getCheapest(ToLongFunction<IQueryCostEstimator<E>> estimate)
+	{
+		IContainmentCache<E,C> cheapest = null;
+		long cheapestcost = Long.MAX_VALUE;
+		for(IContainmentCache<E,C> backend : fBackends)
+		{
+			final long cost = backend instanceof IQueryCostEstimator ? estimate.applyAsLong((IQueryCostEstimator<E>) backend) : getNumberDistinctSets();
+			if(cheapest == null || cost < cheapestcost)
+			{
+				cheapest = backend;
+				cheapestcost = cost;
+			}
+		}
+		return cheapest;
+	}
+
+}
@@ -0,0 +1,386 @@
+package containmentcache.inverted;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.IntConsumer;
+
+import lombok.NonNull;
+import net.jcip.annotations.NotThreadSafe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.BiMap;
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.Iterables;
+import com.google.common.primitives.Ints;
+
+import containmentcache.ICacheEntry;
+import containmentcache.IContainmentCache;
+import containmentcache.IQueryCostEstimator;
+import containmentcache.util.NestedIterables;
+
+/**
+ * An inverted index containment cache, keeping for every element of the universe a compressed posting list
+ * ({@link PostingList}) of the ids of the (distinct) sets containing that element.
+ *
+ * Supersets of a query set are obtained by intersecting the posting lists of the query's elements, starting
+ * from the rarest one, so the work is proportional to the frequency of the query's rarest element instead of the size of the cache.
+ *
+ * Subsets of a query set are obtained by counting, for every set appearing in the posting lists of the query's elements, how many
+ * of the query's elements it contains; a set is a subset if and only if that count is equal to its cardinality.
+ *
+ * @param <E> - the elements the sets.
+ * @param <C> - the type of cache entries.
+ */
+@NotThreadSafe
+public class InvertedIndexCache<E,C extends ICacheEntry<E>> implements IContainmentCache<E,C>, IQueryCostEstimator<E> {
+
+	private final ImmutableBiMap<E, Integer> permutation;
+
+	//The posting list of every element index, null if no set contains the element.
+	private final PostingList[] postings;
+
+	//The id of every distinct bitset in the cache.
+	private final Map<BitSet,Integer> ids;
+	//The entries, cardinality and bitset of every id, null/0 for free ids.
+	private final List<Set<C>> buckets;
+	private final List<BitSet> bitsets;
+	private int[] cardinalities;
+	//Ids that have been freed and can be reused.
+	private final Deque<Integer> freeIds;
+	//Scratch space of subset queries, one per thread so that concurrent queries do not interfere.
+	private final ThreadLocal<SubsetCounter> counters;
+
+	private int numEntries;
+
+	public InvertedIndexCache(@NonNull BiMap<E, Integer> permutation)
+	{
+		//Check that permutation is from 0 .. N-1.
+		int N = permutation.size()-1;
+		Collection<Integer> image = permutation.values();
+		for(int i=0;i<=N;i++)
+		{
+			if(!image.contains(i))
+			{
+				throw new IllegalArgumentException("Permutation does not map any element to valid index "+i+", must be an invalid permutation.");
+			}
+		}
+		this.permutation = ImmutableBiMap.copyOf(permutation);
+
+		postings = new PostingList[permutation.size()];
+		ids = new HashMap<>();
+		buckets = new ArrayList<>();
+		bitsets = new ArrayList<>();
+		cardinalities = new int[16];
+		freeIds = new ArrayDeque<>();
+		counters = ThreadLocal.withInitial(SubsetCounter::new);
+		numEntries = 0;
+	}
+
+	@Override
+	public void add(C set) {
+		final BitSet bs = getBitSet(set);
+		Integer id = ids.get(bs);
+		if(id == null)
+		{
+			id = newId(bs);
+		}
+		if(buckets.get(id).add(set))
+		{
+			numEntries++;
+		}
+	}
+
+	@Override
+	public void remove(C set) {
+		final BitSet bs = getBitSet(set);
+		final Integer id = ids.get(bs);
+		if(id != null && buckets.get(id).remove(set))
+		{
+			numEntries--;
+			if(buckets.get(id).isEmpty())
+			{
+				freeId(id);
+			}
+		}
+	}
+
+	@Override
+	public boolean contains(C set) {
+		final BitSet bs = getBitSet(set);
+		final Integer id = ids.get(bs);
+		return id != null && buckets.get(id).contains(set);
+	}
+
+	@Override
+	public Iterable<C> getSets() {
+		return Iterables.concat(Iterables.filter(buckets, Objects::nonNull));
+	}
+
+	@Override
+	public Iterable<C> getSubsets(ICacheEntry<E> set) {
+		final BitSet bs = getBitSet(set);
+		return new Iterable<C>(){
+			@Override
+			public Iterator<C> iterator() {
+				return NestedIterables.nest(Ints.asList(getSubsetIds(bs)), buckets::get).iterator();
+			}};
+	}
+
+	@Override
+	public int getNumberSubsets(ICacheEntry<E> set) {
+		final BitSet bs = getBitSet(set);
+		int numsubsets = 0;
+		for(final int id : getSubsetIds(bs))
+		{
+			numsubsets += buckets.get(id).size();
+		}
+		return numsubsets;
+	}
+
+	@Override
+	public Iterable<C> getSupersets(ICacheEntry<E> set) {
+		final BitSet bs = getBitSet(set);
+		return new Iterable<C>(){
+			@Override
+			public Iterator<C> iterator() {
+				return NestedIterables.nest(Ints.asList(getSupersetIds(bs)), buckets::get).iterator();
+			}};
+	}
+
+	@Override
+	public int getNumberSupersets(ICacheEntry<E> set) {
+		final BitSet bs = getBitSet(set);
+		int numsupersets = 0;
+		for(final int id : getSupersetIds(bs))
+		{
+			numsupersets += buckets.get(id).size();
+		}
+		return numsupersets;
+	}
+
+	@Override
+	public int size() {
+		return numEntries;
+	}
+
+	/**
+	 * @return the total length of the posting lists of the given set's elements, which are all scanned by a subset query, bounded by the number
+	 * of distinct sets (each set touched by the scan is a candidate).
+	 */
+	@Override
+	public long estimateSubsetQueryCost(ICacheEntry<E> set) {
+		final BitSet bs = getBitSet(set);
+		long cost = 0;
+		for(int e = bs.nextSetBit(0); e >= 0; e = bs.nextSetBit(e+1))
+		{
+			if(postings[e] != null)
+			{
+				cost += postings[e].cardinality();
+			}
+		}
+		return Math.min(cost, ids.size());
+	}
+
+	/**
+	 * @return the length of the shortest posting list of the given set's elements, which drives a superset query.
+	 */
+	@Override
+	public long estimateSupersetQueryCost(ICacheEntry<E> set) {
+		final BitSet bs = getBitSet(set);
+		if(bs.isEmpty())
+		{
+			return ids.size();
+		}
+		long cost = Long.MAX_VALUE;
+		for(int e = bs.nextSetBit(0); e >= 0; e = bs.nextSetBit(e+1))
+		{
+			cost = Math.min(cost, postings[e] == null ? 0 : postings[e].cardinality());
+		}
+		return cost;
+	}
+
+	/**
+	 * @param bs - a query bitset.
+	 * @return the ids of the sets in the cache that are subsets of the given bitset.
+	 */
+	private int[] getSubsetIds(BitSet bs)
+	{
+		//Count the number of query elements every set contains, remembering which ids were touched.
+		final SubsetCounter counter = counters.get();
+		counter.reset(buckets.size());
+		for(int e = bs.nextSetBit(0); e >= 0; e = bs.nextSetBit(e+1))
+		{
+			final PostingList posting = postings[e];
+			if(posting != null)
+			{
+				posting.forEach(counter);
+			}
+		}
+
+		//The empty set has no posting, but is a subset of everything.
+		final Integer emptyid = ids.get(new BitSet());
+		final int[] subsetids = new int[counter.numTouched + (emptyid != null ? 1 : 0)];
+		int numsubsets = 0;
+		if(emptyid != null)
+		{
+			subsetids[numsubsets++] = emptyid;
+		}
+		for(int i=0;i<counter.numTouched;i++)
+		{
+			final int id = counter.touched[i];
+			if(counter.hits[id] == cardinalities[id])
+			{
+				subsetids[numsubsets++] = id;
+			}
+			counter.hits[id] = 0;
+		}
+		return Arrays.copyOf(subsetids, numsubsets);
+	}
+
+	/**
+	 * @param bs - a query bitset.
+	 * @return the ids of the sets in the cache that are supersets of the given bitset.
+	 */
+	private int[] getSupersetIds(BitSet bs)
+	{
+		if(bs.isEmpty())
+		{
+			return Ints.toArray(ids.values());
+		}
+
+		//Gather the query's posting lists, rarest first.
+		final PostingList[] querypostings = new PostingList[bs.cardinality()];
+		int p = 0;
+		for(int e = bs.nextSetBit(0); e >= 0; e = bs.nextSetBit(e+1))
+		{
+			if(postings[e] == null)
+			{
+				return new int[0];
+			}
+			querypostings[p++] = postings[e];
+		}
+		Arrays.sort(querypostings, (a,b) -> Integer.compare(a.cardinality(), b.cardinality()));
+
+		//Intersect the rarest posting list with all the others.
+		final int[] supersetids = querypostings[0].toArray();
+		int numsupersets = 0;
+		for(final int id : supersetids)
+		{
+			boolean superset = true;
+			for(int i=1;i<querypostings.length && superset;i++)
+			{
+				superset = querypostings[i].contains(id);
+			}
+			if(superset)
+			{
+				supersetids[numsupersets++] = id;
+			}
+		}
+		return Arrays.copyOf(supersetids, numsupersets);
+	}
+
+	private int newId(BitSet bs)
+	{
+		final int id;
+		if(freeIds.isEmpty())
+		{
+			id = buckets.size();
+			buckets.add(null);
+			bitsets.add(null);
+			if(id == cardinalities.length)
+			{
+				cardinalities = Arrays.copyOf(cardinalities, 2*cardinalities.length);
+			}
+		}
+		else
+		{
+			id = freeIds.pop();
+		}
+		buckets.set(id, new HashSet<C>(2));
+		bitsets.set(id, bs);
+		cardinalities[id] = bs.cardinality();
+		ids.put(bs, id);
+		for(int e = bs.nextSetBit(0); e >= 0; e = bs.nextSetBit(e+1))
+		{
+			if(postings[e] == null)
+			{
+				postings[e] = new PostingList();
+			}
+			postings[e].add(id);
+		}
+		return id;
+	}
+
+	private void freeId(int id)
+	{
+		final BitSet bs = bitsets.get(id);
+		for(int e = bs.nextSetBit(0); e >= 0; e = bs.nextSetBit(e+1))
+		{
+			postings[e].remove(id);
+			if(postings[e].cardinality() == 0)
+			{
+				postings[e] = null;
+			}
+		}
+		ids.remove(bs);
+		buckets.set(id, null);
+		bitsets.set(id, null);
+		cardinalities[id] = 0;
+		freeIds.push(id);
+	}
+
+	private BitSet getBitSet(ICacheEntry<E> set) {
+		Preconditions.checkNotNull(set);
+		Preconditions.checkNotNull(set.getBitSet());
+		Preconditions.checkArgument(permutation.keySet().containsAll(set.getElements()));
+		return set.getBitSet();
+	}
+	
+	/**
+	 * Scratch counts of the query elements every set id contains, with the list of ids counted so far.
+	 */
+	private static class SubsetCounter implements IntConsumer
+	{
+		//Counts per id, kept zeroed between queries.
+		private int[] hits = new int[16];
+		private int[] touched = new int[16];
+		private int numTouched;
+		
+		/**
+		 * Prepare for a new query.
+		 * @param numIds - the number of ids.
+		 */
+		public void reset(int numIds)
+		{
+			if(hits.length < numIds)
+			{
+				hits = new int[Math.max(numIds, 2*hits.length)];
+			}
+			numTouched = 0;
+		}
+
+		@Override
+		public void accept(int id) {
+			if(hits[id]++ == 0)
+			{
+				if(numTouched == touched.length)
+				{
+					touched = Arrays.copyOf(touched, 2*numTouched);
+				}
+				touched[numTouched++] = id;
+			}
+		}
+	}
+
+}
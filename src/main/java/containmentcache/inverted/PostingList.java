@@ -0,0 +1,309 @@
+package containmentcache.inverted;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * A compressed set of non-negative integer ids, organized in the manner of roaring bitmaps from
+ * Chambi, Samy, et al. "Better bitmap performance with Roaring bitmaps." Software: Practice and Experience (2016).
+ *
+ * Ids are split into their 16 most significant bits, used to find a container, and their 16 least significant bits stored
+ * in that container. Containers are sorted arrays when they are sparse (at most {@value #ARRAY_CONTAINER_MAX_SIZE} values) and
+ * plain bitmaps otherwise.
+ */
+@NotThreadSafe
+public class PostingList {
+
+	//Maximum number of values in an array container before it is converted to a bitmap container.
+	private final static int ARRAY_CONTAINER_MAX_SIZE = 4096;
+
+	//Sorted high 16 bits of the containers.
+	private char[] fKeys;
+	private Container[] fContainers;
+	private int fNumContainers;
+	private int fCardinality;
+
+	public PostingList()
+	{
+		fKeys = new char[4];
+		fContainers = new Container[4];
+		fNumContainers = 0;
+		fCardinality = 0;
+	}
+
+	/**
+	 * @param id - a non-negative id.
+	 * @return true if the id was not already in the list.
+	 */
+	public boolean add(int id)
+	{
+		final char high = high(id);
+		int index = search(high);
+		if(index < 0)
+		{
+			index = -(index+1);
+			insertContainer(index, high, new ArrayContainer());
+		}
+		final Container container = fContainers[index];
+		final int cardinality = container.cardinality();
+		fContainers[index] = container.add(low(id));
+		if(fContainers[index].cardinality() != cardinality)
+		{
+			fCardinality++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param id - a non-negative id.
+	 * @return true if the id was in the list.
+	 */
+	public boolean remove(int id)
+	{
+		final int index = search(high(id));
+		if(index < 0)
+		{
+			return false;
+		}
+		final Container container = fContainers[index];
+		final int cardinality = container.cardinality();
+		fContainers[index] = container.remove(low(id));
+		if(fContainers[index].cardinality() == cardinality)
+		{
+			return false;
+		}
+		fCardinality--;
+		if(fContainers[index].cardinality() == 0)
+		{
+			removeContainer(index);
+		}
+		return true;
+	}
+
+	/**
+	 * @param id - a non-negative id.
+	 * @return true if and only if the id is in the list.
+	 */
+	public boolean contains(int id)
+	{
+		final int index = search(high(id));
+		return index >= 0 && fContainers[index].contains(low(id));
+	}
+
+	/**
+	 * @return the number of ids in the list.
+	 */
+	public int cardinality()
+	{
+		return fCardinality;
+	}
+
+	/**
+	 * @param consumer - consumer to apply to every id in the list, in increasing order.
+	 */
+	public void forEach(IntConsumer consumer)
+	{
+		for(int i=0;i<fNumContainers;i++)
+		{
+			fContainers[i].forEach(fKeys[i] << 16, consumer);
+		}
+	}
+
+	/**
+	 * @return the ids of the list in increasing order.
+	 */
+	public int[] toArray()
+	{
+		final int[] ids = new int[fCardinality];
+		final int[] index = new int[1];
+		forEach(id -> ids[index[0]++] = id);
+		return ids;
+	}
+
+	private static char high(int id)
+	{
+		return (char) (id >>> 16);
+	}
+
+	private static char low(int id)
+	{
+		return (char) id;
+	}
+
+	private int search(char high)
+	{
+		return Arrays.binarySearch(fKeys, 0, fNumContainers, high);
+	}
+
+	private void insertContainer(int index, char high, Container container)
+	{
+		if(fNumContainers == fKeys.length)
+		{
+			fKeys = Arrays.copyOf(fKeys, 2*fKeys.length);
+			fContainers = Arrays.copyOf(fContainers, 2*fContainers.length);
+		}
+		System.arraycopy(fKeys, index, fKeys, index+1, fNumContainers-index);
+		System.arraycopy(fContainers, index, fContainers, index+1, fNumContainers-index);
+		fKeys[index] = high;
+		fContainers[index] = container;
+		fNumContainers++;
+	}
+
+	private void removeContainer(int index)
+	{
+		System.arraycopy(fKeys, index+1, fKeys, index, fNumContainers-index-1);
+		System.arraycopy(fContainers, index+1, fContainers, index, fNumContainers-index-1);
+		fNumContainers--;
+		fContainers[fNumContainers] = null;
+	}
+
+	/**
+	 * A container for the low 16 bits of ids sharing the same high 16 bits.
+	 * Modifications return the container to use from then on, as containers may change representation.
+	 */
+	private static abstract class Container
+	{
+		abstract Container add(char value);
+		abstract Container remove(char value);
+		abstract boolean contains(char value);
+		abstract int cardinality();
+		abstract void forEach(int high, IntConsumer consumer);
+	}
+
+	/**
+	 * Sparse container, a sorted array of values.
+	 */
+	private static class ArrayContainer extends Container
+	{
+		private char[] fValues = new char[4];
+		private int fSize = 0;
+
+		@Override
+		Container add(char value) {
+			int index = Arrays.binarySearch(fValues, 0, fSize, value);
+			if(index >= 0)
+			{
+				return this;
+			}
+			if(fSize == ARRAY_CONTAINER_MAX_SIZE)
+			{
+				return new BitmapContainer(this).add(value);
+			}
+			index = -(index+1);
+			if(fSize == fValues.length)
+			{
+				fValues = Arrays.copyOf(fValues, Math.min(2*fValues.length, ARRAY_CONTAINER_MAX_SIZE));
+			}
+			System.arraycopy(fValues, index, fValues, index+1, fSize-index);
+			fValues[index] = value;
+			fSize++;
+			return this;
+		}
+
+		@Override
+		Container remove(char value) {
+			final int index = Arrays.binarySearch(fValues, 0, fSize, value);
+			if(index >= 0)
+			{
+				System.arraycopy(fValues, index+1, fValues, index, fSize-index-1);
+				fSize--;
+			}
+			return this;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return Arrays.binarySearch(fValues, 0, fSize, value) >= 0;
+		}
+
+		@Override
+		int cardinality() {
+			return fSize;
+		}
+
+		@Override
+		void forEach(int high, IntConsumer consumer) {
+			for(int i=0;i<fSize;i++)
+			{
+				consumer.accept(high | fValues[i]);
+			}
+		}
+	}
+
+	/**
+	 * Dense container, a bitmap over the 2^16 possible values.
+	 */
+	private static class BitmapContainer extends Container
+	{
+		private final long[] fWords = new long[(1 << 16) / Long.SIZE];
+		private int fCardinality = 0;
+
+		public BitmapContainer(ArrayContainer container)
+		{
+			for(int i=0;i<container.fSize;i++)
+			{
+				final char value = container.fValues[i];
+				fWords[value >>> 6] |= 1L << value;
+			}
+			fCardinality = container.fSize;
+		}
+
+		@Override
+		Container add(char value) {
+			final long word = fWords[value >>> 6];
+			final long newword = word | (1L << value);
+			if(word != newword)
+			{
+				fWords[value >>> 6] = newword;
+				fCardinality++;
+			}
+			return this;
+		}
+
+		@Override
+		Container remove(char value) {
+			final long word = fWords[value >>> 6];
+			final long newword = word & ~(1L << value);
+			if(word != newword)
+			{
+				fWords[value >>> 6] = newword;
+				fCardinality--;
+				if(fCardinality <= ARRAY_CONTAINER_MAX_SIZE)
+				{
+					final ArrayContainer container = new ArrayContainer();
+					container.fValues = new char[fCardinality];
+					forEach(0, v -> container.fValues[container.fSize++] = (char) v);
+					return container;
+				}
+			}
+			return this;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return (fWords[value >>> 6] & (1L << value)) != 0L;
+		}
+
+		@Override
+		int cardinality() {
+			return fCardinality;
+		}
+
+		@Override
+		void forEach(int high, IntConsumer consumer) {
+			for(int i=0;i<fWords.length;i++)
+			{
+				long word = fWords[i];
+				while(word != 0L)
+				{
+					consumer.accept(high | (i * Long.SIZE + Long.numberOfTrailingZeros(word)));
+					word &= word - 1;
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,271 @@
+package containmentcache.lsh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import lombok.NonNull;
+import net.jcip.annotations.NotThreadSafe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.BiMap;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.SetMultimap;
+
+import containmentcache.ICacheEntry;
+import containmentcache.IContainmentCache;
+
+/**
+ * A containment cache that can also answer approximate near-superset queries, namely find the cached sets that contain most
+ * of the elements of a query set, using MinHash signatures and locality sensitive hashing (LSH).
+ *
+ * Plain MinHash banding finds sets with a large Jaccard similarity, which a large near-superset of a small query never has. The hashing is
+ * thus asymmetric, so that the collision probability depends on containment only: every one of the (bands x rows) MinHash functions maps the query
+ * to its element with the smallest hash, and a cached set collides with the query on that function if and only if it contains that element.
+ * As the element is uniformly drawn from the query, this happens with probability equal to the containment of the set in the query, whatever its size.
+ * A set is a candidate if it collides on all the rows of at least one band, which for a containment c happens with probability 1-(1-c^rows)^bands.
+ * Candidates of a band are found by intersecting the lists of the distinct sets containing each of the band's elements. Increasing the number of bands
+ * raises the recall, increasing the number of rows per band lowers the number of candidates with a small containment to check.
+ *
+ * The exact sub/superset queries are answered by a fallback cache, which is kept in sync with this cache.
+ *
+ * @param <E> - the elements the sets.
+ * @param <C> - the type of cache entries.
+ */
+@NotThreadSafe
+public class MinHashLSHCache<E,C extends ICacheEntry<E>> implements IContainmentCache<E,C> {
+
+	private final static int DEFAULT_NUM_BANDS = 16;
+	private final static int DEFAULT_NUM_ROWS = 4;
+	//Seed of the MinHash functions, fixed so that results are reproducible.
+	private final static long SEED = 0x5DEECE66DL;
+
+	private final ImmutableBiMap<E, Integer> permutation;
+	//The entries of the data structure, hashed by their bitset representation.
+	private final SetMultimap<BitSet,C> entries;
+	//Cache used for exact queries.
+	private final IContainmentCache<E,C> fallback;
+
+	private final int numBands;
+	private final int numRows;
+	//Multipliers of the MinHash functions, one per signature value.
+	private final long[] hashes;
+	//The distinct bitsets containing every element index.
+	private final SetMultimap<Integer,BitSet> postings;
+
+	public MinHashLSHCache(@NonNull BiMap<E, Integer> permutation, @NonNull IContainmentCache<E,C> fallback)
+	{
+		this(permutation, fallback, DEFAULT_NUM_BANDS, DEFAULT_NUM_ROWS);
+	}
+
+	/**
+	 * @param permutation - the permutation of the universe used by the cache entries.
+	 * @param fallback - an empty cache used to answer exact queries.
+	 * @param numBands - number of LSH bands.
+	 * @param numRows - number of MinHash values per band.
+	 */
+	public MinHashLSHCache(@NonNull BiMap<E, Integer> permutation, @NonNull IContainmentCache<E,C> fallback, int numBands, int numRows)
+	{
+		Preconditions.checkArgument(fallback.size() == 0, "Fallback cache must be empty.");
+		Preconditions.checkArgument(numBands > 0, "Number of bands must be positive.");
+		Preconditions.checkArgument(numRows > 0, "Number of rows must be positive.");
+		this.permutation = ImmutableBiMap.copyOf(permutation);
+		this.fallback = fallback;
+		this.numBands = numBands;
+		this.numRows = numRows;
+		entries = HashMultimap.create();
+
+		final Random random = new Random(SEED);
+		hashes = new long[numBands*numRows];
+		for(int i=0;i<hashes.length;i++)
+		{
+			//Odd multipliers.
+			hashes[i] = random.nextLong() | 1L;
+		}
+		postings = HashMultimap.create();
+	}
+
+	@Override
+	public void add(C set) {
+		final BitSet bs = getBitSet(set);
+		final boolean newbitset = !entries.containsKey(bs);
+		if(entries.put(bs, set))
+		{
+			if(newbitset)
+			{
+				bs.stream().forEach(index -> postings.put(index, bs));
+			}
+			fallback.add(set);
+		}
+	}
+
+	@Override
+	public void remove(C set) {
+		final BitSet bs = getBitSet(set);
+		if(entries.remove(bs, set))
+		{
+			if(!entries.containsKey(bs))
+			{
+				bs.stream().forEach(index -> postings.remove(index, bs));
+			}
+			fallback.remove(set);
+		}
+	}
+
+	@Override
+	public boolean contains(C set) {
+		final BitSet bs = getBitSet(set);
+		return entries.containsEntry(bs, set);
+	}
+
+	@Override
+	public Iterable<C> getSets() {
+		return entries.values();
+	}
+
+	@Override
+	public Iterable<C> getSubsets(ICacheEntry<E> set) {
+		getBitSet(set);
+		return fallback.getSubsets(set);
+	}
+
+	@Override
+	public int getNumberSubsets(ICacheEntry<E> set) {
+		getBitSet(set);
+		return fallback.getNumberSubsets(set);
+	}
+
+	@Override
+	public Iterable<C> getSupersets(ICacheEntry<E> set) {
+		getBitSet(set);
+		return fallback.getSupersets(set);
+	}
+
+	@Override
+	public int getNumberSupersets(ICacheEntry<E> set) {
+		getBitSet(set);
+		return fallback.getNumberSupersets(set);
+	}
+
+	/**
+	 * Approximate near-superset query. The containment of a set S in a query Q is the fraction of the elements of Q that are in S
+	 * (1 if and only if S is a superset of Q). Only the sets colliding with the query on all the rows of a band are considered, so some sets with
+	 * a large enough containment may be missed.
+	 *
+	 * @param set - query set.
+	 * @param minContainment - minimum containment of the returned sets in the query set, between 0 and 1.
+	 * @return cached entries whose set contains at least the given fraction of the query's elements, by decreasing containment.
+	 */
+	public List<C> getNearSupersets(ICacheEntry<E> set, double minContainment) {
+		Preconditions.checkArgument(minContainment >= 0 && minContainment <= 1, "Minimum containment must be between 0 and 1.");
+		final BitSet bs = getBitSet(set);
+		final int cardinality = bs.cardinality();
+
+		//Collect the candidates colliding with the query in some band, with their containment.
+		final Map<BitSet,Double> containments = new HashMap<BitSet,Double>();
+		if(cardinality == 0)
+		{
+			entries.keySet().forEach(candidate -> containments.put(candidate, 1.0));
+		}
+		final int[] signature = getSignature(bs);
+		for(int b=0;b<numBands && cardinality > 0;b++)
+		{
+			//Go through the sets containing the band's rarest element, which must contain all of the band's elements.
+			final int[] band = Arrays.copyOfRange(signature, b*numRows, (b+1)*numRows);
+			int rarest = band[0];
+			for(int index : band)
+			{
+				if(postings.get(index).size() < postings.get(rarest).size())
+				{
+					rarest = index;
+				}
+			}
+			for(BitSet candidate : postings.get(rarest))
+			{
+				if(!containments.containsKey(candidate) && Arrays.stream(band).allMatch(candidate::get))
+				{
+					final BitSet intersection = (BitSet) candidate.clone();
+					intersection.and(bs);
+					containments.put(candidate, (double) intersection.cardinality() / cardinality);
+				}
+			}
+		}
+
+		final List<BitSet> candidates = new ArrayList<BitSet>();
+		for(Map.Entry<BitSet,Double> entry : containments.entrySet())
+		{
+			if(entry.getValue() >= minContainment)
+			{
+				candidates.add(entry.getKey());
+			}
+		}
+		Collections.sort(candidates, (bs1, bs2) -> Double.compare(containments.get(bs2), containments.get(bs1)));
+
+		final List<C> nearsupersets = new ArrayList<C>();
+		for(BitSet candidate : candidates)
+		{
+			nearsupersets.addAll(entries.get(candidate));
+		}
+		return nearsupersets;
+	}
+
+	@Override
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @param bs - a non-empty bitset.
+	 * @return the query side MinHash signature of the given bitset, namely the index of its element with the smallest hash for every hash function.
+	 */
+	private int[] getSignature(BitSet bs)
+	{
+		//Hash the indices of the elements (rather than the elements themselves).
+		final int[] signature = new int[hashes.length];
+		final long[] minhashes = new long[hashes.length];
+		Arrays.fill(minhashes, Long.MAX_VALUE);
+		for(int index = bs.nextSetBit(0); index >= 0; index = bs.nextSetBit(index+1))
+		{
+			for(int i=0;i<signature.length;i++)
+			{
+				final long hash = mix((index + 1) * hashes[i]) >>> 1;
+				if(hash < minhashes[i])
+				{
+					minhashes[i] = hash;
+					signature[i] = index;
+				}
+			}
+		}
+		return signature;
+	}
+
+	/**
+	 * @return a well mixed hash of the given value.
+	 */
+	private static long mix(long value)
+	{
+		long hash = value;
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+		hash *= 0xC4CEB9FE1A85EC53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	private BitSet getBitSet(ICacheEntry<E> set) {
+		Preconditions.checkNotNull(set);
+		Preconditions.checkNotNull(set.getBitSet());
+		Preconditions.checkArgument(permutation.keySet().containsAll(set.getElements()));
+		return set.getBitSet();
+	}
+
+}
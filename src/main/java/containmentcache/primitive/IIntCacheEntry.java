@@ -0,0 +1,16 @@
+package containmentcache.primitive;
+
+import containmentcache.ICacheEntry;
+
+/**
+ * A cache entry over integer elements (e.g. station ids), that also gives its set directly as sorted permutation indices.
+ */
+public interface IIntCacheEntry extends ICacheEntry<Integer> {
+
+	/**
+	 * @return the indices, in the permutation given by {@link #getPermutation()}, of the elements of the entry, in increasing order.
+	 * The returned array must not be modified.
+	 */
+	int[] getIndices();
+
+}
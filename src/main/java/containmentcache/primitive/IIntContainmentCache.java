@@ -0,0 +1,44 @@
+package containmentcache.primitive;
+
+import com.google.common.collect.ImmutableBiMap;
+
+import containmentcache.IContainmentCache;
+
+/**
+ * A containment cache over integer elements that can also be queried directly with sorted arrays of permutation indices,
+ * without creating cache entries or element sets.
+ * 
+ * @param <C> - type of cache entry.
+ */
+public interface IIntContainmentCache<C extends IIntCacheEntry> extends IContainmentCache<Integer,C> {
+
+	/**
+	 * @return the permutation of the universe of the cache. Entries created with this very instance skip the check that their elements are in the universe.
+	 */
+	public ImmutableBiMap<Integer, Integer> getPermutation();
+	
+	/**
+	 * @param indices - permutation indices of the query set, in increasing order.
+	 * @return an iterable over every set currently in the cache that is a subset of the given set.
+	 */
+	public Iterable<C> getSubsets(int[] indices);
+	
+	/**
+	 * @param indices - permutation indices of the query set, in increasing order.
+	 * @return the number of subsets present in the cache for the given set.
+	 */
+	public int getNumberSubsets(int[] indices);
+	
+	/**
+	 * @param indices - permutation indices of the query set, in increasing order.
+	 * @return an iterable over every set currently in the cache that is a superset of the given set.
+	 */
+	public Iterable<C> getSupersets(int[] indices);
+	
+	/**
+	 * @param indices - permutation indices of the query set, in increasing order.
+	 * @return the number of supersets present in the cache for the given set.
+	 */
+	public int getNumberSupersets(int[] indices);
+	
+}
@@ -0,0 +1,83 @@
+package containmentcache.primitive;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import lombok.EqualsAndHashCode;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.BiMap;
+import com.google.common.collect.ImmutableBiMap;
+
+/**
+ * A simple integer cache set entry, created directly from permutation indices (or from the words of a bitset over them), 
+ * without boxing or looking up its elements.
+ */
+@EqualsAndHashCode(of = {"bitSet", "permutation"})
+public class IntCacheSet implements IIntCacheEntry {
+
+	private final int[] indices;
+	private final BitSet bitSet;
+	private final ImmutableBiMap<Integer, Integer> permutation;
+	
+	/**
+	 * @param indices - permutation indices of the elements of the set, in increasing order.
+	 * @param permutation - the permutation of the universe.
+	 */
+	public IntCacheSet(int[] indices, BiMap<Integer, Integer> permutation) {
+		this.permutation = ImmutableBiMap.copyOf(permutation);
+		this.indices = indices.clone();
+		bitSet = new BitSet();
+		int previous = -1;
+		for(int index : this.indices)
+		{
+			Preconditions.checkArgument(index > previous, "Indices must be increasing.");
+			Preconditions.checkArgument(index < this.permutation.size(), "Index "+index+" is not in the permutation.");
+			bitSet.set(index);
+			previous = index;
+		}
+	}
+	
+	/**
+	 * @param words - the words of a bitset over permutation indices, as in {@link BitSet#valueOf(long[])}.
+	 * @param permutation - the permutation of the universe.
+	 * @return the entry for the set of elements at the set bits.
+	 */
+	public static IntCacheSet fromWords(long[] words, BiMap<Integer, Integer> permutation) {
+		return new IntCacheSet(BitSet.valueOf(words).stream().toArray(), permutation);
+	}
+	
+	@Override
+	public int[] getIndices() {
+		return indices;
+	}
+	
+	@Override
+	public Set<Integer> getElements() {
+		final ImmutableBiMap<Integer, Integer> inverse = permutation.inverse();
+		final Set<Integer> set = new HashSet<>(2*indices.length);
+		for(int index : indices)
+		{
+			set.add(inverse.get(index));
+		}
+		return set;
+	}
+
+	@Override
+	public BitSet getBitSet() {
+		return bitSet;
+	}
+
+	@Override
+	public ImmutableBiMap<Integer, Integer> getPermutation() {
+		return permutation;
+	}
+	
+	@Override
+	public String toString() {
+		return Arrays.toString(indices);
+	}
+	
+}
@@ -0,0 +1,149 @@
+package containmentcache.primitive;
+
+import java.util.BitSet;
+
+import lombok.NonNull;
+import net.jcip.annotations.NotThreadSafe;
+
+import com.google.common.collect.BiMap;
+import com.google.common.collect.ImmutableBiMap;
+
+import containmentcache.ICacheEntry;
+import containmentcache.IContainmentCache;
+import containmentcache.bitset.opt.MultiPermutationBitSetCache;
+import containmentcache.bitset.opt.sortedset.redblacktree.RedBlackTree;
+import containmentcache.bitset.simple.SimpleBitSetCache;
+import containmentcache.ubt.UBTree;
+import containmentcache.util.PermutationUtils;
+
+/**
+ * Adapts a containment cache over integer elements to {@link IIntContainmentCache}.
+ * 
+ * Index queries are wrapped in {@link IntCacheSet} entries sharing the permutation instance of the cache, so that the
+ * adapted cache recognizes them and skips looking up their elements in the universe. 
+ * 
+ * @param <C> - type of cache entry.
+ */
+@NotThreadSafe
+public class IntContainmentCacheAdapter<C extends IIntCacheEntry> implements IIntContainmentCache<C> {
+
+	private final IContainmentCache<Integer, C> cache;
+	private final ImmutableBiMap<Integer, Integer> permutation;
+	
+	/**
+	 * @param cache - the cache to adapt, over the universe of the given permutation.
+	 * @param permutation - the permutation of the universe.
+	 */
+	public IntContainmentCacheAdapter(@NonNull IContainmentCache<Integer, C> cache, @NonNull BiMap<Integer, Integer> permutation)
+	{
+		this.cache = cache;
+		this.permutation = ImmutableBiMap.copyOf(permutation);
+	}
+	
+	/**
+	 * @param permutation - the permutation of the universe.
+	 * @return an adapted {@link SimpleBitSetCache}.
+	 */
+	public static <C extends IIntCacheEntry> IntContainmentCacheAdapter<C> createSimpleBitSetCache(BiMap<Integer, Integer> permutation)
+	{
+		final ImmutableBiMap<Integer, Integer> immutablepermutation = ImmutableBiMap.copyOf(permutation);
+		return new IntContainmentCacheAdapter<C>(new SimpleBitSetCache<Integer, C>(immutablepermutation), immutablepermutation);
+	}
+	
+	/**
+	 * @param permutation - the permutation of the universe.
+	 * @param numAdditionalPermutations - number of random additional permutations.
+	 * @param seed - seed of the additional permutations.
+	 * @return an adapted {@link MultiPermutationBitSetCache} backed by red-black trees.
+	 */
+	public static <C extends IIntCacheEntry> IntContainmentCacheAdapter<C> createMultiPermutationBitSetCache(BiMap<Integer, Integer> permutation, int numAdditionalPermutations, long seed)
+	{
+		final ImmutableBiMap<Integer, Integer> immutablepermutation = ImmutableBiMap.copyOf(permutation);
+		final MultiPermutationBitSetCache<Integer, C> cache = new MultiPermutationBitSetCache<Integer, C>(
+				immutablepermutation,
+				PermutationUtils.makeNPermutations(immutablepermutation, seed, numAdditionalPermutations),
+				RedBlackTree<BitSet>::new);
+		return new IntContainmentCacheAdapter<C>(cache, immutablepermutation);
+	}
+	
+	/**
+	 * @param permutation - the permutation of the universe.
+	 * @return an adapted {@link UBTree}.
+	 */
+	public static <C extends IIntCacheEntry> IntContainmentCacheAdapter<C> createUBTree(BiMap<Integer, Integer> permutation)
+	{
+		final ImmutableBiMap<Integer, Integer> immutablepermutation = ImmutableBiMap.copyOf(permutation);
+		return new IntContainmentCacheAdapter<C>(new UBTree<Integer, C>(immutablepermutation), immutablepermutation);
+	}
+	
+	@Override
+	public ImmutableBiMap<Integer, Integer> getPermutation() {
+		return permutation;
+	}
+	
+	@Override
+	public Iterable<C> getSets() {
+		return cache.getSets();
+	}
+
+	@Override
+	public void add(C set) {
+		cache.add(set);
+	}
+
+	@Override
+	public void remove(C set) {
+		cache.remove(set);
+	}
+
+	@Override
+	public boolean contains(C set) {
+		return cache.contains(set);
+	}
+
+	@Override
+	public Iterable<C> getSubsets(ICacheEntry<Integer> set) {
+		return cache.getSubsets(set);
+	}
+
+	@Override
+	public int getNumberSubsets(ICacheEntry<Integer> set) {
+		return cache.getNumberSubsets(set);
+	}
+
+	@Override
+	public Iterable<C> getSupersets(ICacheEntry<Integer> set) {
+		return cache.getSupersets(set);
+	}
+
+	@Override
+	public int getNumberSupersets(ICacheEntry<Integer> set) {
+		return cache.getNumberSupersets(set);
+	}
+
+	@Override
+	public int size() {
+		return cache.size();
+	}
+
+	@Override
+	public Iterable<C> getSubsets(int[] indices) {
+		return cache.getSubsets(new IntCacheSet(indices, permutation));
+	}
+
+	@Override
+	public int getNumberSubsets(int[] indices) {
+		return cache.getNumberSubsets(new IntCacheSet(indices, permutation));
+	}
+
+	@Override
+	public Iterable<C> getSupersets(int[] indices) {
+		return cache.getSupersets(new IntCacheSet(indices, permutation));
+	}
+
+	@Override
+	public int getNumberSupersets(int[] indices) {
+		return cache.getNumberSupersets(new IntCacheSet(indices, permutation));
+	}
+
+}
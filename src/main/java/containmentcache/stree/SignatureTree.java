@@ -0,0 +1,667 @@
+package containmentcache.stree;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import lombok.NonNull;
+import net.jcip.annotations.NotThreadSafe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.BiMap;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.SetMultimap;
+
+import containmentcache.ICacheEntry;
+import containmentcache.IContainmentCache;
+import containmentcache.util.NestedIterables;
+import containmentcache.util.PackedBitSets;
+
+/**
+ * A signature tree (S-tree) containment cache, based on
+ * Deppisch, Uwe. "S-tree: a dynamic balanced signature index for office retrieval." SIGIR. 1986.
+ *
+ * The distinct bitsets of the cache (the signatures) are packed and stored in the leaves of a height-balanced tree. Every node
+ * keeps two summaries of the signatures beneath it: their OR and their AND. Given a query set Q:
+ * <ul>
+ * <li> a superset query prunes every subtree whose OR does not cover Q, </li>
+ * <li> a subset query prunes every subtree whose AND is not contained in Q. </li>
+ * </ul>
+ * Contrary to the ordering based pruning of the bitset caches, this prunes in both directions independently of any permutation of the universe.
+ *
+ * New signatures are inserted in the subtree whose OR would grow the least, and overflowing nodes are split in two around the two most distant items.
+ * Emptied nodes are removed, but underfull nodes are not merged, which keeps the tree balanced.
+ *
+ * @param <E> - the elements the sets.
+ * @param <C> - the type of cache entries.
+ */
+@NotThreadSafe
+public class SignatureTree<E,C extends ICacheEntry<E>> implements IContainmentCache<E,C> {
+
+	private final static int DEFAULT_MAX_FANOUT = 32;
+
+	private final ImmutableBiMap<E, Integer> permutation;
+	private final int numWords;
+	private final int maxFanout;
+
+	//The entries of the data structure, hashed by their bitset representation.
+	private final SetMultimap<BitSet,C> entries;
+	//The leaf containing every bitset.
+	private final Map<BitSet,Node> leaves;
+	private Node fRoot;
+
+	public SignatureTree(@NonNull BiMap<E, Integer> permutation)
+	{
+		this(permutation, DEFAULT_MAX_FANOUT);
+	}
+
+	/**
+	 * @param permutation - the permutation of the universe used by the cache entries.
+	 * @param maxFanout - maximum number of children (or signatures) of a node.
+	 */
+	public SignatureTree(@NonNull BiMap<E, Integer> permutation, int maxFanout)
+	{
+		//Check that permutation is from 0 .. N-1.
+		int N = permutation.size()-1;
+		Collection<Integer> image = permutation.values();
+		for(int i=0;i<=N;i++)
+		{
+			if(!image.contains(i))
+			{
+				throw new IllegalArgumentException("Permutation does not map any element to valid index "+i+", must be an invalid permutation.");
+			}
+		}
+		Preconditions.checkArgument(maxFanout >= 2, "Maximum fanout must be at least 2.");
+		this.permutation = ImmutableBiMap.copyOf(permutation);
+		this.maxFanout = maxFanout;
+
+		numWords = PackedBitSets.getNumWords(permutation.size());
+		entries = HashMultimap.create();
+		leaves = new HashMap<>();
+		fRoot = new Node(true);
+	}
+
+	@Override
+	public void add(C set) {
+		final BitSet bs = getBitSet(set);
+		final Set<C> bitsetentries = entries.get(bs);
+		if(bitsetentries.isEmpty())
+		{
+			insert(bs);
+		}
+		bitsetentries.add(set);
+	}
+
+	@Override
+	public void remove(C set) {
+		final BitSet bs = getBitSet(set);
+		final Set<C> bitsetentries = entries.get(bs);
+		bitsetentries.remove(set);
+		if(bitsetentries.isEmpty() && leaves.containsKey(bs))
+		{
+			delete(bs);
+		}
+	}
+
+	@Override
+	public boolean contains(C set) {
+		final BitSet bs = getBitSet(set);
+		return entries.containsEntry(bs, set);
+	}
+
+	@Override
+	public Iterable<C> getSets() {
+		return entries.values();
+	}
+
+	@Override
+	public Iterable<C> getSubsets(ICacheEntry<E> set) {
+		final long[] key = PackedBitSets.pack(getBitSet(set), numWords);
+		return NestedIterables.nest(new SignatureIterable(key, true), entries.asMap());
+	}
+
+	@Override
+	public int getNumberSubsets(ICacheEntry<E> set) {
+		final long[] key = PackedBitSets.pack(getBitSet(set), numWords);
+		int numsubsets = 0;
+		for(BitSet bs : new SignatureIterable(key, true))
+		{
+			numsubsets += entries.get(bs).size();
+		}
+		return numsubsets;
+	}
+
+	@Override
+	public Iterable<C> getSupersets(ICacheEntry<E> set) {
+		final long[] key = PackedBitSets.pack(getBitSet(set), numWords);
+		return NestedIterables.nest(new SignatureIterable(key, false), entries.asMap());
+	}
+
+	@Override
+	public int getNumberSupersets(ICacheEntry<E> set) {
+		final long[] key = PackedBitSets.pack(getBitSet(set), numWords);
+		int numsupersets = 0;
+		for(BitSet bs : new SignatureIterable(key, false))
+		{
+			numsupersets += entries.get(bs).size();
+		}
+		return numsupersets;
+	}
+
+	@Override
+	public int size() {
+		return entries.size();
+	}
+
+	/*
+	 * Tree modifications.
+	 */
+
+	/**
+	 * Insert a new signature in the tree.
+	 * @param bs - bitset of the signature.
+	 */
+	private void insert(BitSet bs)
+	{
+		final long[] key = PackedBitSets.pack(bs, numWords);
+
+		//Descend to the leaf whose signature would grow the least, updating summaries on the way.
+		Node node = fRoot;
+		while(true)
+		{
+			node.include(key, 0);
+			if(node.leaf)
+			{
+				break;
+			}
+			Node best = null;
+			int bestenlargement = Integer.MAX_VALUE;
+			for(int i=0;i<node.size;i++)
+			{
+				final Node child = node.children[i];
+				final int enlargement = enlargement(child.or, 0, key, 0);
+				if(enlargement < bestenlargement || (enlargement == bestenlargement && child.size < best.size))
+				{
+					best = child;
+					bestenlargement = enlargement;
+				}
+			}
+			node = best;
+		}
+
+		node.addSignature(key, bs);
+		leaves.put(bs, node);
+		if(node.size > maxFanout)
+		{
+			split(node);
+		}
+	}
+
+	/**
+	 * Delete a signature from the tree.
+	 * @param bs - bitset of the signature.
+	 */
+	private void delete(BitSet bs)
+	{
+		final Node leaf = leaves.remove(bs);
+		leaf.removeSignature(bs);
+
+		Node node = leaf;
+		//Unlink emptied nodes.
+		while(node.size == 0 && node.parent != null)
+		{
+			final Node parent = node.parent;
+			parent.removeChild(node);
+			node = parent;
+		}
+		//Update the summaries up to the root.
+		for(;node != null; node = node.parent)
+		{
+			node.summarize();
+		}
+		//Shrink the tree from the root.
+		while(!fRoot.leaf && fRoot.size == 1)
+		{
+			fRoot = fRoot.children[0];
+			fRoot.parent = null;
+		}
+		if(!fRoot.leaf && fRoot.size == 0)
+		{
+			fRoot = new Node(true);
+		}
+	}
+
+	/**
+	 * Split an overflowing node in two around its two most distant items, propagating overflows to the parents.
+	 * @param node - an overflowing node.
+	 */
+	private void split(Node node)
+	{
+		final int n = node.size;
+		final long[] signatures = node.getItemSignatures();
+
+		//Seeds are the item farthest from the first item, and the item farthest from the latter.
+		final int seed1 = farthest(signatures, 0, n);
+		final int seed2 = farthest(signatures, seed1, n);
+
+		final Node sibling = new Node(node.leaf);
+		final Node kept = new Node(node.leaf);
+		final int minfill = n/2;
+
+		final long[] or1 = new long[numWords];
+		final long[] or2 = new long[numWords];
+		System.arraycopy(signatures, seed1*numWords, or1, 0, numWords);
+		System.arraycopy(signatures, seed2*numWords, or2, 0, numWords);
+
+		int n1 = 0;
+		int n2 = 0;
+		final boolean[] first = new boolean[n];
+		for(int i=0;i<n;i++)
+		{
+			final boolean tofirst;
+			if(i == seed1)
+			{
+				tofirst = true;
+			}
+			else if(i == seed2)
+			{
+				tofirst = false;
+			}
+			else if(n1 + (n-i) <= minfill)
+			{
+				tofirst = true;
+			}
+			else if(n2 + (n-i) <= minfill)
+			{
+				tofirst = false;
+			}
+			else
+			{
+				tofirst = enlargement(or1, 0, signatures, i*numWords) <= enlargement(or2, 0, signatures, i*numWords);
+			}
+			first[i] = tofirst;
+			final long[] or = tofirst ? or1 : or2;
+			for(int w=0;w<numWords;w++)
+			{
+				or[w] |= signatures[i*numWords+w];
+			}
+			if(tofirst)
+			{
+				n1++;
+			}
+			else
+			{
+				n2++;
+			}
+		}
+
+		//Redistribute the items.
+		for(int i=0;i<n;i++)
+		{
+			final Node target = first[i] ? kept : sibling;
+			if(node.leaf)
+			{
+				final BitSet bs = node.bitsets[i];
+				final long[] key = new long[numWords];
+				System.arraycopy(node.keys, i*numWords, key, 0, numWords);
+				target.addSignature(key, bs);
+				leaves.put(bs, target == kept ? node : sibling);
+			}
+			else
+			{
+				target.addChild(node.children[i]);
+			}
+		}
+		kept.summarize();
+		sibling.summarize();
+		node.copyFrom(kept);
+		if(!node.leaf)
+		{
+			for(int i=0;i<node.size;i++)
+			{
+				node.children[i].parent = node;
+			}
+		}
+
+		if(node.parent == null)
+		{
+			final Node root = new Node(false);
+			root.addChild(node);
+			root.addChild(sibling);
+			fRoot = root;
+		}
+		else
+		{
+			final Node parent = node.parent;
+			parent.addChild(sibling);
+			if(parent.size > maxFanout)
+			{
+				split(parent);
+			}
+		}
+	}
+
+	/**
+	 * @return the index of the signature farthest (in Hamming distance) from the given one.
+	 */
+	private int farthest(long[] signatures, int from, int n)
+	{
+		int farthest = from == 0 ? 1 : 0;
+		int farthestdistance = -1;
+		for(int i=0;i<n;i++)
+		{
+			if(i == from)
+			{
+				continue;
+			}
+			int distance = 0;
+			for(int w=0;w<numWords;w++)
+			{
+				distance += Long.bitCount(signatures[from*numWords+w] ^ signatures[i*numWords+w]);
+			}
+			if(distance > farthestdistance)
+			{
+				farthest = i;
+				farthestdistance = distance;
+			}
+		}
+		return farthest;
+	}
+
+	/**
+	 * @return the number of bits that would be added to the given signature by OR-ing the given key.
+	 */
+	private int enlargement(long[] signature, int offset, long[] key, int keyoffset)
+	{
+		int enlargement = 0;
+		for(int w=0;w<numWords;w++)
+		{
+			enlargement += Long.bitCount(key[keyoffset+w] & ~signature[offset+w]);
+		}
+		return enlargement;
+	}
+
+	private BitSet getBitSet(ICacheEntry<E> set) {
+		Preconditions.checkNotNull(set);
+		Preconditions.checkNotNull(set.getBitSet());
+		Preconditions.checkArgument(permutation.keySet().containsAll(set.getElements()));
+		return set.getBitSet();
+	}
+
+	/**
+	 * S-tree node.
+	 */
+	private class Node
+	{
+		private final boolean leaf;
+		private Node parent;
+		//Number of signatures (leaf) or children (internal node).
+		private int size;
+
+		//OR and AND of all signatures beneath this node.
+		private long[] or;
+		private long[] and;
+
+		//Leaf content, the packed signatures and their bitset.
+		private long[] keys;
+		private BitSet[] bitsets;
+
+		//Internal node content.
+		private Node[] children;
+
+		public Node(boolean leaf)
+		{
+			this.leaf = leaf;
+			parent = null;
+			size = 0;
+			or = new long[numWords];
+			and = new long[numWords];
+			if(leaf)
+			{
+				keys = new long[(maxFanout+1)*numWords];
+				bitsets = new BitSet[maxFanout+1];
+			}
+			else
+			{
+				children = newChildren(maxFanout+1);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private Node[] newChildren(int capacity)
+		{
+			//Arrays of the inner node class cannot be created with the tree's type arguments, only with wildcards; the array only ever holds nodes of this tree.
+			return (Node[]) new SignatureTree<?,?>.Node[capacity];
+		}
+
+		/**
+		 * Update the summaries to account for an additional signature beneath the node.
+		 */
+		void include(long[] signature, int offset)
+		{
+			if(size == 0)
+			{
+				System.arraycopy(signature, offset, or, 0, numWords);
+				System.arraycopy(signature, offset, and, 0, numWords);
+			}
+			else
+			{
+				for(int w=0;w<numWords;w++)
+				{
+					or[w] |= signature[offset+w];
+					and[w] &= signature[offset+w];
+				}
+			}
+		}
+
+		void addSignature(long[] key, BitSet bs)
+		{
+			System.arraycopy(key, 0, keys, size*numWords, numWords);
+			bitsets[size] = bs;
+			size++;
+		}
+
+		void removeSignature(BitSet bs)
+		{
+			for(int i=0;i<size;i++)
+			{
+				if(bitsets[i].equals(bs))
+				{
+					System.arraycopy(keys, (i+1)*numWords, keys, i*numWords, (size-i-1)*numWords);
+					System.arraycopy(bitsets, i+1, bitsets, i, size-i-1);
+					size--;
+					bitsets[size] = null;
+					return;
+				}
+			}
+			throw new IllegalStateException("Signature "+bs+" is not in its leaf.");
+		}
+
+		void addChild(Node child)
+		{
+			child.parent = this;
+			if(size == 0)
+			{
+				System.arraycopy(child.or, 0, or, 0, numWords);
+				System.arraycopy(child.and, 0, and, 0, numWords);
+			}
+			else
+			{
+				for(int w=0;w<numWords;w++)
+				{
+					or[w] |= child.or[w];
+					and[w] &= child.and[w];
+				}
+			}
+			children[size++] = child;
+		}
+
+		void removeChild(Node child)
+		{
+			for(int i=0;i<size;i++)
+			{
+				if(children[i] == child)
+				{
+					System.arraycopy(children, i+1, children, i, size-i-1);
+					size--;
+					children[size] = null;
+					return;
+				}
+			}
+			throw new IllegalStateException("Node is not a child of its parent.");
+		}
+
+		/**
+		 * Recompute the summaries from the node's content.
+		 */
+		void summarize()
+		{
+			final long[] signatures = getItemSignatures();
+			for(int w=0;w<numWords;w++)
+			{
+				or[w] = 0L;
+				and[w] = size == 0 ? 0L : -1L;
+			}
+			for(int i=0;i<size;i++)
+			{
+				for(int w=0;w<numWords;w++)
+				{
+					or[w] |= signatures[i*numWords+w];
+				}
+				if(leaf)
+				{
+					for(int w=0;w<numWords;w++)
+					{
+						and[w] &= keys[i*numWords+w];
+					}
+				}
+				else
+				{
+					for(int w=0;w<numWords;w++)
+					{
+						and[w] &= children[i].and[w];
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return the packed signatures (ORs for internal nodes) of the items of the node.
+		 */
+		long[] getItemSignatures()
+		{
+			if(leaf)
+			{
+				return keys;
+			}
+			final long[] signatures = new long[size*numWords];
+			for(int i=0;i<size;i++)
+			{
+				System.arraycopy(children[i].or, 0, signatures, i*numWords, numWords);
+			}
+			return signatures;
+		}
+
+		void copyFrom(Node node)
+		{
+			size = node.size;
+			or = node.or;
+			and = node.and;
+			keys = node.keys;
+			bitsets = node.bitsets;
+			children = node.children;
+		}
+	}
+
+	/**
+	 * Lazy depth-first iterable over the bitsets in the tree that are subsets (or supersets) of a given key.
+	 */
+	private class SignatureIterable implements Iterable<BitSet>
+	{
+		private final long[] fKey;
+		private final boolean fSubsets;
+
+		public SignatureIterable(long[] key, boolean subsets)
+		{
+			fKey = key;
+			fSubsets = subsets;
+		}
+
+		/**
+		 * @return true if the subtree rooted at the given node may contain a match.
+		 */
+		private boolean mayMatch(Node node)
+		{
+			if(node.size == 0)
+			{
+				return false;
+			}
+			return fSubsets ?
+					PackedBitSets.isSubset(node.and, 0, fKey, 0, numWords) :
+					PackedBitSets.isSubset(fKey, 0, node.or, 0, numWords);
+		}
+
+		@Override
+		public Iterator<BitSet> iterator() {
+			final Deque<Node> stack = new ArrayDeque<Node>();
+			if(mayMatch(fRoot))
+			{
+				stack.push(fRoot);
+			}
+			return new AbstractIterator<BitSet>() {
+				private Node fLeaf = null;
+				private int fIndex = 0;
+
+				@Override
+				protected BitSet computeNext() {
+					while(true)
+					{
+						if(fLeaf != null)
+						{
+							while(fIndex < fLeaf.size)
+							{
+								final int index = fIndex++;
+								final boolean match = fSubsets ?
+										PackedBitSets.isSubset(fLeaf.keys, index*numWords, fKey, 0, numWords) :
+										PackedBitSets.isSubset(fKey, 0, fLeaf.keys, index*numWords, numWords);
+								if(match)
+								{
+									return fLeaf.bitsets[index];
+								}
+							}
+							fLeaf = null;
+						}
+						if(stack.isEmpty())
+						{
+							return endOfData();
+						}
+						final Node node = stack.pop();
+						if(node.leaf)
+						{
+							fLeaf = node;
+							fIndex = 0;
+						}
+						else
+						{
+							for(int i=node.size-1;i>=0;i--)
+							{
+								if(mayMatch(node.children[i]))
+								{
+									stack.push(node.children[i]);
+								}
+							}
+						}
+					}
+				}
+			};
+		}
+	}
+
+}
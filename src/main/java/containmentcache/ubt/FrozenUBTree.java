@@ -0,0 +1,334 @@
+package containmentcache.ubt;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import net.jcip.annotations.Immutable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableBiMap;
+
+import containmentcache.ICacheEntry;
+import containmentcache.IContainmentCache;
+import containmentcache.util.RankSelectBitVector;
+
+/**
+ * Immutable, succinct version of a {@link UBTree}, obtained with {@link UBTree#freeze}.
+ *
+ * The shape of the tree is encoded with LOUDS (level-order unary degree sequence): nodes are numbered in breadth-first order (the root being 0),
+ * and every node's number of children d is written, in that order, as d ones followed by a zero. The children of node v are then found
+ * right after the v-th zero, the j-th one of the sequence being the edge to node j. Node labels (the index of the node's element in the permutation)
+ * are kept in an int array by node, and a second bit vector marks the nodes with entries, whose entries are stored in compressed sparse row form.
+ * This takes a couple of bits plus an int per node, instead of a node object with its own hash map and set.
+ *
+ * Traversals run directly on this encoding, with rank/select queries on the bit vectors. Children are ordered the same way as in the original
+ * tree, so subset queries prune the same paths, and superset queries stop at the children labeled after the next element to find. The
+ * per-node summaries of the original tree (union of labels and height of subtrees) are not encoded though, so superset queries do not skip
+ * the subtrees missing an element of the query, and may explore much more of the tree than in the original.
+ *
+ * Its add and remove operations throw {@link UnsupportedOperationException}.
+ *
+ * @param <E> - elements in the tree.
+ * @param <C> - type of cache entries.
+ */
+@Immutable
+public class FrozenUBTree<E,C extends ICacheEntry<E>> implements IContainmentCache<E,C> {
+
+	private final ImmutableBiMap<E, Integer> permutation;
+
+	//LOUDS encoding of the shape of the tree.
+	private final RankSelectBitVector louds;
+	//The element index of every node (except the root, at 0), increasing over the children of a node.
+	private final int[] labels;
+	//Marks the nodes with entries.
+	private final RankSelectBitVector terminals;
+	//The entries of the i-th node with entries are entries[offsets[i]], ..., entries[offsets[i+1]-1].
+	private final int[] offsets;
+	private final Object[] entries;
+
+	/**
+	 * @param permutation - the permutation of the universe giving the node labels.
+	 * @param louds - the LOUDS bits of the tree.
+	 * @param labels - the element index of every node.
+	 * @param terminals - the nodes with entries.
+	 * @param offsets - the offsets of the entries of every node with entries, followed by the number of entries.
+	 * @param entries - the entries.
+	 */
+	FrozenUBTree(ImmutableBiMap<E, Integer> permutation, RankSelectBitVector louds, int[] labels, RankSelectBitVector terminals, int[] offsets, Object[] entries)
+	{
+		this.permutation = permutation;
+		this.louds = louds;
+		this.labels = labels;
+		this.terminals = terminals;
+		this.offsets = offsets;
+		this.entries = entries;
+	}
+
+	@Override
+	public void add(C set) {
+		throw new UnsupportedOperationException("Cannot add to a frozen tree.");
+	}
+
+	@Override
+	public void remove(C set) {
+		throw new UnsupportedOperationException("Cannot remove from a frozen tree.");
+	}
+
+	@Override
+	public boolean contains(C set) {
+		final int[] query = getQuery(set);
+		int node = 0;
+		for(final int label : query)
+		{
+			node = getChild(node, label);
+			if(node < 0)
+			{
+				return false;
+			}
+		}
+		if(!terminals.get(node))
+		{
+			return false;
+		}
+		final int terminal = terminals.rank1(node);
+		for(int i=offsets[terminal];i<offsets[terminal+1];i++)
+		{
+			if(entries[i].equals(set))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Iterable<C> getSets() {
+		return Collections.unmodifiableList((List<C>) (List<?>) Arrays.asList(entries));
+	}
+
+	@Override
+	public Iterable<C> getSubsets(ICacheEntry<E> set) {
+		return new EntryIterable(getQuery(set), true);
+	}
+
+	@Override
+	public int getNumberSubsets(ICacheEntry<E> set) {
+		return new EntryIterable(getQuery(set), true).count();
+	}
+
+	@Override
+	public Iterable<C> getSupersets(ICacheEntry<E> set) {
+		return new EntryIterable(getQuery(set), false);
+	}
+
+	@Override
+	public int getNumberSupersets(ICacheEntry<E> set) {
+		return new EntryIterable(getQuery(set), false).count();
+	}
+
+	@Override
+	public int size() {
+		return entries.length;
+	}
+
+	/**
+	 * @return the number of nodes in the tree.
+	 */
+	public int getNumberNodes() {
+		return labels.length + 1;
+	}
+
+	/**
+	 * @return the position in the LOUDS bits of the first child edge of the given node.
+	 */
+	private int getFirstChildPosition(int node)
+	{
+		return node == 0 ? 0 : louds.select0(node) + 1;
+	}
+
+	/**
+	 * @return the child of the given node with the given label, -1 if there is none.
+	 */
+	private int getChild(int node, int label)
+	{
+		//Binary search the children, ordered by label.
+		final int start = getFirstChildPosition(node);
+		final int firstchild = louds.rank1(start) + 1;
+		final int child = Arrays.binarySearch(labels, firstchild - 1, firstchild - 1 + getNumberChildren(node, start), label);
+		return child >= 0 ? child + 1 : -1;
+	}
+
+	/**
+	 * @param node - a node.
+	 * @param start - the position in the LOUDS bits of the first child edge of the node.
+	 * @return the number of children of the node, the child edges running up to the zero ending the node.
+	 */
+	private int getNumberChildren(int node, int start)
+	{
+		return louds.select0(node + 1) - start;
+	}
+
+	/**
+	 * @return the element indices of the given set, in increasing order.
+	 */
+	private int[] getQuery(ICacheEntry<E> set)
+	{
+		Preconditions.checkNotNull(set);
+		final BitSet bs = set.getBitSet();
+		Preconditions.checkNotNull(bs);
+		Preconditions.checkArgument(set.getPermutation() == permutation || permutation.keySet().containsAll(set.getElements()));
+		return bs.stream().toArray();
+	}
+
+	/**
+	 * Lazy iterable over the entries of the nodes that are subsets (or supersets) of a given set, traversing the tree depth first
+	 * with explicit stacks of nodes and query positions.
+	 */
+	private class EntryIterable implements Iterable<C>
+	{
+		//Query element indices, in increasing order.
+		private final int[] fQuery;
+		private final boolean fSubsets;
+
+		public EntryIterable(int[] query, boolean subsets)
+		{
+			fQuery = query;
+			fSubsets = subsets;
+		}
+
+		/**
+		 * @return the number of entries, counted node by node.
+		 */
+		public int count()
+		{
+			final NodeIterator nodes = new NodeIterator();
+			int count = 0;
+			while(nodes.hasNext())
+			{
+				final int terminal = terminals.rank1(nodes.next());
+				count += offsets[terminal+1] - offsets[terminal];
+			}
+			return count;
+		}
+
+		@Override
+		public Iterator<C> iterator() {
+			final NodeIterator nodes = new NodeIterator();
+			return new AbstractIterator<C>() {
+				//Range of the entries left to return from the current node.
+				private int fEntry = 0;
+				private int fEntryEnd = 0;
+
+				@SuppressWarnings("unchecked")
+				@Override
+				protected C computeNext() {
+					while(fEntry == fEntryEnd)
+					{
+						if(!nodes.hasNext())
+						{
+							return endOfData();
+						}
+						final int terminal = terminals.rank1(nodes.next());
+						fEntry = offsets[terminal];
+						fEntryEnd = offsets[terminal+1];
+					}
+					return (C) entries[fEntry++];
+				}
+			};
+		}
+
+		/**
+		 * Iterator over the nodes with entries that are subsets (or supersets) of the query.
+		 */
+		private class NodeIterator extends AbstractIterator<Integer>
+		{
+			//Stack of nodes to visit, with the position in the query at which they are visited.
+			private int[] fNodes = new int[16];
+			private int[] fPositions = new int[16];
+			private int fSize = 0;
+
+			public NodeIterator()
+			{
+				push(0, 0);
+			}
+
+			private void push(int node, int position)
+			{
+				if(fSize == fNodes.length)
+				{
+					fNodes = Arrays.copyOf(fNodes, 2*fSize);
+					fPositions = Arrays.copyOf(fPositions, 2*fSize);
+				}
+				fNodes[fSize] = node;
+				fPositions[fSize] = position;
+				fSize++;
+			}
+
+			@Override
+			protected Integer computeNext() {
+				while(fSize > 0)
+				{
+					fSize--;
+					final int node = fNodes[fSize];
+					final int position = fPositions[fSize];
+
+					final int start = getFirstChildPosition(node);
+					final int firstchild = louds.rank1(start) + 1;
+					final int numchildren = getNumberChildren(node, start);
+					if(fSubsets)
+					{
+						//Follow the children labeled with the remaining query elements, merging both orders.
+						int child = 0;
+						for(int i=position;i<fQuery.length && child < numchildren;i++)
+						{
+							final int label = fQuery[i];
+							while(child < numchildren && labels[firstchild + child - 1] < label)
+							{
+								child++;
+							}
+							if(child < numchildren && labels[firstchild + child - 1] == label)
+							{
+								push(firstchild + child, i+1);
+								child++;
+							}
+						}
+					}
+					else
+					{
+						//Follow the children labeled before the next query element, or with it.
+						final int nextlabel = position < fQuery.length ? fQuery[position] : Integer.MAX_VALUE;
+						for(int child=0;child<numchildren;child++)
+						{
+							final int label = labels[firstchild + child - 1];
+							if(label < nextlabel)
+							{
+								push(firstchild + child, position);
+							}
+							else
+							{
+								if(label == nextlabel)
+								{
+									push(firstchild + child, position+1);
+								}
+								break;
+							}
+						}
+					}
+
+					final boolean match = fSubsets || position == fQuery.length;
+					if(match && terminals.get(node))
+					{
+						return node;
+					}
+				}
+				return endOfData();
+			}
+		}
+	}
+
+}
@@ -1,535 +1,1487 @@
 package containmentcache.ubt;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
+import lombok.NonNull;
 import net.jcip.annotations.NotThreadSafe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.BiMap;
+import com.google.common.collect.ImmutableBiMap;
+
 import containmentcache.ICacheEntry;
 import containmentcache.IContainmentCache;
+import containmentcache.IQueryCostEstimator;
+import containmentcache.util.RankSelectBitVector;
 
 /**
- * A recursive implementation of the Unlimited Branching Tree (UBTree) from
+ * An implementation of the Unlimited Branching Tree (UBTree) from
  * Hoffmann, Jörg, and Jana Koehler. "A new method to index and query sets." IJCAI. Vol. 99. 1999.
- * 
+ *
  * Corresponds to a tree where each node represents a set element, and a path in the tree is a set.
- * 
+ *
+ * Nodes are labeled with the permutation indices of their elements (the bits of the entries' bitsets), and paths follow increasing labels.
+ * The tree is path compressed: a node holds the run of labels of a chain of elements without branching or entries, and is split when a new set
+ * diverges from it (or ends) inside the run, and merged back with its only child when it loses its entries.
+ * Removing an entry unlinks the path of nodes left without entries below them, so the tree never holds dead nodes. Child arrays and tables are not
+ * shrunk on removal though, and their unused slots are counted (see {@link #getNumberDeadSlots()}) until {@link #compact()} trims them.
+ * The children of a node are kept, by first label, in sorted label and node arrays while its fan-out is small, so that subset queries merge their
+ * sorted labels with the children's, and in a dense table indexed by label once its fan-out is large. Entry sets are only allocated for nodes with entries.
+ *
+ * Every node (but the root) also keeps a summary of its subtree: the union of the labels of its descendants (including its own) as a bitmap, and its height,
+ * the largest number of labels from its first one to a node with entries. Both are extended along the path of an added set, and recomputed bottom-up
+ * along the path of a removed one, until they stop changing. Superset queries skip the subtrees whose summary misses a label of the set left to find,
+ * or whose height is smaller than the number of such labels. Nodes also count the entries of their subtree, so that superset counts add up
+ * the subtrees below the last label of the set without visiting them.
+ *
+ * Tree walks are iterative, using explicit array stacks instead of recursion, so sets of any size are supported.
+ *
  * The {@link IContainmentCache#getSubsets(containmentcache.ICacheEntry)} and {@link IContainmentCache#getSupersets(containmentcache.ICacheEntry)} methods return iterables that will lazily traverse the tree
- * for the next sub/superset. These iterators might be slightly heavyweight has they need to keep track of what has been traversed in the tree. 
- * 
+ * depth-first for the next sub/superset. Traversals keep, for every node on the current path, the position of the next child to visit in an array stack,
+ * so they take memory proportional to the depth of the tree and allocate nothing per visited node. Stacks can also be reused across queries,
+ * one per thread (see {@link #UBTree(BiMap, boolean)}).
+ *
+ * Given a {@link ForkJoinPool} (see {@link #UBTree(BiMap, boolean, ForkJoinPool)}), the sub/superset queries of large trees fork a task
+ * per child subtree to visit at the first levels of the tree, then add up the tasks' counts or concatenate their entries. The iterables of such queries
+ * then collect all their entries when an iterator is created, instead of traversing the tree lazily. The tree must not be modified during a query.
+ *
  * @author afrechet
  *
  * @param <E> - elements in the tree.
  * @param <T> - the type of additional content in cache entries.
  */
 @NotThreadSafe
-public class UBTree<E,C extends ICacheEntry<E>> implements IContainmentCache<E,C>{
-	
+public class UBTree<E,C extends ICacheEntry<E>> implements IContainmentCache<E,C>, IQueryCostEstimator<E>{
+
 	/*
-	 * Maximum number of elements in universe due to possible overflow errors
-	 * caused by recursive function calls.
+	 * A node's children move to a dense table once there are at least that many,
+	 * and the table would have at most that many slots per child.
 	 */
-	private static final int MAX_ELEMENTS = 2500;
-	
-	private final E ROOT_VALUE = null;
+	private static final int DENSE_MIN_CHILDREN = 32;
+	private static final int DENSE_MAX_SLOTS_PER_CHILD = 2;
+
+	//Initial capacity of traversal stacks, which grow to the depth of the tree.
+	private static final int DEFAULT_STACK_CAPACITY = 16;
 	
+	/*
+	 * Parallel queries fork a task per child to visit of the nodes up to that depth (the root being at depth 0),
+	 * as long as their subtrees have at least that many entries.
+	 */
+	private static final int PARALLEL_MAX_DEPTH = 2;
+	static final int PARALLEL_MIN_SUBTREE_ENTRIES = 4096;
+
+	private static final int[] NO_LABELS = new int[0];
+	private static final Object[] NO_NODES = new Object[0];
+	private static final long[] NO_WORDS = new long[0];
+
 	private final Node fRoot;
 	private int fSize;
+	//Number of nodes, including the root.
+	private int fNumNodes;
+	//Number of unused child slots over all nodes.
+	private long fNumDeadSlots;
+
+	//The permutation of the universe.
+	private final ImmutableBiMap<E, Integer> permutation;
+	//Every thread's traversal stack, reused across queries, null if stacks are not reused.
+	private final ThreadLocal<NodeStack> fStacks;
+	//The pool running parallel queries, null if queries are sequential.
+	private final ForkJoinPool fPool;
 
-	private final Comparator<E> comparator;
-	
 	/**
 	 * Create an empty tree.
+	 * @param permutation - the permutation of the universe of the entries.
 	 */
-	public UBTree(Comparator<E> comparator)
+	public UBTree(@NonNull BiMap<E, Integer> permutation)
 	{
-		this.comparator = comparator;
-		fRoot = new Node(ROOT_VALUE);
-		fSize = 0;
+		this(permutation, false);
 	}
 	
 	/**
-	 * @param set - set of integer.
-	 * @return the given set sorted in array form.
+	 * Create an empty tree.
+	 * @param permutation - the permutation of the universe of the entries.
+	 * @param reuseStacks - whether every thread should reuse the same traversal stack across queries, instead of allocating one per query.
 	 */
-	private ArrayList<E> getArray(ICacheEntry<E> set)
+	public UBTree(@NonNull BiMap<E, Integer> permutation, boolean reuseStacks)
 	{
-		final int size = set.getElements().size(); 
-		
-		if(size > MAX_ELEMENTS)
-		{
-			throw new IllegalArgumentException("Cannot add a set of more than "+MAX_ELEMENTS+" elements, as this may create overflow errors with the call stack and the recursive methods involved.");
-		}
-		
-		ArrayList<E> a = new ArrayList<E>(size);
-		for(E e : set.getElements())
-		{		
-			if(e == ROOT_VALUE)
-			{
-				throw new IllegalArgumentException("Cannot add set with element \""+e+"\" equal to the reserved root value (\""+ROOT_VALUE+")\"");
-			}
-			a.add(e);
-		}
-		Collections.sort(a, comparator);
-		return a;
+		this(permutation, reuseStacks, null);
 	}
 	
+	/**
+	 * Create an empty tree.
+	 * @param permutation - the permutation of the universe of the entries.
+	 * @param reuseStacks - whether every thread should reuse the same traversal stack across queries, instead of allocating one per query.
+	 * @param pool - the pool in which to run the sub/superset queries of large trees in parallel, null to run all queries in the calling thread.
+	 */
+	public UBTree(@NonNull BiMap<E, Integer> permutation, boolean reuseStacks, ForkJoinPool pool)
+	{
+		this.permutation = ImmutableBiMap.copyOf(permutation);
+		fPool = pool;
+		fStacks = reuseStacks ? ThreadLocal.withInitial(() -> new NodeStack(DEFAULT_STACK_CAPACITY)) : null;
+		fSize = 0;
+		fNumNodes = 0;
+		fNumDeadSlots = 0;
+		fRoot = new Node(NO_LABELS);
+	}
+
+	/**
+	 * @param set - a cache entry.
+	 * @return the labels of the elements of the given set, in increasing order.
+	 */
+	private int[] getLabels(ICacheEntry<E> set)
+	{
+		Preconditions.checkNotNull(set);
+		final BitSet bs = set.getBitSet();
+		Preconditions.checkNotNull(bs);
+		Preconditions.checkArgument(set.getPermutation() == permutation || permutation.keySet().containsAll(set.getElements()));
+		return bs.stream().toArray();
+	}
+
 	@Override
 	public int size()
 	{
 		return fSize;
 	}
-	
+
+	/**
+	 * A subset query only follows paths made of the given set's elements, so its candidates are at most the subsets of the given set, and at most
+	 * the sets of the tree.
+	 */
 	@Override
-	public boolean contains(C set)
+	public long estimateSubsetQueryCost(ICacheEntry<E> set)
 	{
-		ArrayList<E> S = getArray(set);
-		return contains(S,0,fRoot,set);
+		final int cardinality = set.getBitSet().cardinality();
+		return cardinality >= Integer.SIZE-1 ? fSize : Math.min(fSize, 1L << cardinality);
 	}
+
 	/**
-	 * @param set - an integer set in sorted array form. 
-	 * @param s - an index in the set array.
-	 * @param root - a tree node.
-	 * @param set2 - the cache set entry we are looking for. 
-	 * @return true if there is a path from the given root node following nodes with elements from set[s:] (computed recursively).
+	 * A superset query only goes down the root's children labeled before the given set's first element (or with it) whose summary has all
+	 * the set's elements, so its candidates are at most the sets of these children. In particular, the cost is 0 if no subtree has all of
+	 * the set's elements.
 	 */
-	private boolean contains(ArrayList<E> set, int s, Node root, ICacheEntry<E> set2)
+	@Override
+	public long estimateSupersetQueryCost(ICacheEntry<E> set)
 	{
-		if(s==set.size())
+		final int[] S = getLabels(set);
+		if(S.length == 0)
 		{
-			return root.entries.contains(set2);
+			return fSize;
 		}
-		else
+		long cost = 0;
+		for(int slot=0;slot<fRoot.getNumberSlots();slot++)
 		{
-			E first = set.get(s);
-			Node child = root.children.get(first);
+			final Node child = fRoot.getSlot(slot);
 			if(child == null)
 			{
-				return false;
+				continue;
 			}
-			else
+			if(child.labels[0] > S[0])
+			{
+				break;
+			}
+			if(child.mayContain(S, 0))
 			{
-				return contains(set,s+1,child,set2);
+				cost += child.numSubtreeSets;
 			}
 		}
+		return cost;
 	}
-	
+
 	@Override
-	public void remove(C set)
+	public boolean contains(C set)
+	{
+		final Node node = getNode(getLabels(set));
+		return node != null && node.entries != null && node.entries.contains(set);
+	}
+
+	/**
+	 * @param set - a set of labels in increasing order.
+	 * @return the node at the end of the path following the given labels from the root, null if there is no such path.
+	 */
+	private Node getNode(int[] set)
 	{
-		ArrayList<E> S = getArray(set);
-		remove(S,0,fRoot,set);
+		return getPath(set, null);
 	}
+	
 	/**
-	 * Removes the EOP marker from the node at the end of the path given by set[s:] in the tree (computed recursively).
-	 * @param set - an integer set in sorted array form. 
-	 * @param s - an index in the set array.
-	 * @param root - a tree node. 
-	 * @param entry - the entry we wish to remove.
-	 * @return true if, after removal of the set, the visited node has no children (so it should be removed from its parent's children).
+	 * @param set - a set of labels in increasing order.
+	 * @param path - a stack on which to push the nodes of the path, up to the last one, or null.
+	 * @return the node at the end of the path following the given labels from the root, null if there is no such path.
 	 */
-	private boolean remove(ArrayList<E> set, int s, Node root, C entry)
+	private Node getPath(int[] set, NodeStack path)
 	{
-		if(s==set.size())
-		{ 
-			if(!root.entries.isEmpty())
+		Node node = fRoot;
+		int s = 0;
+		while(s < set.length)
+		{
+			if(path != null)
 			{
-				fSize--;
+				path.push(node, s);
 			}
-			root.entries.remove(entry);
-			return root.children.isEmpty();
-		}
-		else
-		{
-			E first = set.get(s);
-			Node child = root.children.get(first);
-			if(child == null)
+			node = node.getChild(set[s]);
+			if(node == null || node.labels.length > set.length - s)
 			{
-				return root.entries.isEmpty() && root.children.isEmpty();
+				return null;
 			}
-			else
+			for(int k=1;k<node.labels.length;k++)
 			{
-				boolean lastnode = remove(set,s+1,child,entry);
-				if(lastnode)
+				if(node.labels[k] != set[s+k])
 				{
-					root.children.remove(child);
+					return null;
 				}
-				return root.entries.isEmpty() && root.children.isEmpty();
 			}
+			s += node.labels.length;
 		}
+		return node;
 	}
-	
+
+	/**
+	 * Removes the entry from the node at the end of its path. If the node has no entries left, it is unlinked from its parent
+	 * if it has no children (and so on up the path), or merged with its only child.
+	 */
 	@Override
-	public void add(C set)
+	public void remove(C set)
+	{
+		final int[] S = getLabels(set);
+		final NodeStack path = new NodeStack(S.length);
+		Node node = getPath(S, path);
+		if(node == null || node.entries == null || !node.entries.remove(set))
+		{
+			return;
+		}
+		addSubtreeCounts(path, node, -1, node.entries.isEmpty() ? -1 : 0);
+		if(!node.entries.isEmpty())
+		{
+			return;
+		}
+		node.entries = null;
+		fSize--;
+		
+		//Unlink the nodes left without entries nor children.
+		while(node != fRoot && node.entries == null && node.numChildren == 0)
+		{
+			final Node parent = path.peekNode();
+			path.pop();
+			parent.removeChild(node);
+			node = parent;
+		}
+		if(node != fRoot && node.entries == null && node.numChildren == 1)
+		{
+			node.mergeWithOnlyChild();
+		}
+		
+		//Recompute the summaries up the path, until they do not change.
+		while(node != fRoot && node.updateSummary())
+		{
+			node = path.peekNode();
+			path.pop();
+		}
+	}
+	
+	/**
+	 * @return the number of nodes in the tree, including the root.
+	 */
+	public int getNumberNodes()
+	{
+		return fNumNodes;
+	}
+	
+	/**
+	 * @return the number of unused child slots (array capacity or dense table slots without a child) over all nodes.
+	 */
+	public long getNumberDeadSlots()
 	{
-		ArrayList<E> S = getArray(set);
-		insert(S, 0, fRoot, set);				
+		return fNumDeadSlots;
 	}
+	
 	/**
-	 * Insert the given set[s:] for given index s starting at the given note root.
-	 * @param set - an array list form of a set to insert.
-	 * @param s - the index in the array list.
-	 * @param root - the node at which to insert.
-	 * @param entry - the cache set entry we wish to add.
+	 * Trim the child arrays and tables of every node to their children, moving tables that became sparse back to sorted arrays,
+	 * and rehash the nodes' entry sets. The tree can be used as usual before and after compaction.
 	 */
-	private void insert(ArrayList<E> set, int s, Node root, C entry)
+	public void compact()
 	{
-		if(s == set.size())
+		final NodeStack stack = new NodeStack(DEFAULT_STACK_CAPACITY);
+		stack.push(fRoot, 0);
+		while(!stack.isEmpty())
 		{
-			if(root.entries.isEmpty())
+			final Node node = stack.peekNode();
+			stack.pop();
+			node.compact();
+			for(int slot=0;slot<node.getNumberSlots();slot++)
 			{
-				fSize++;
+				final Node child = node.getSlot(slot);
+				if(child != null)
+				{
+					stack.push(child, 0);
+				}
 			}
-			root.entries.add(entry);
-			return;
 		}
-		
-		E first = set.get(s);
-		Node child = root.children.get(first);
-		if(child == null)
+	}
+
+	@Override
+	public void add(C set)
+	{
+		final int[] S = getLabels(set);
+
+		//Follow the set's path, splitting the nodes it ends or diverges in, and adding the rest of the set as a new node.
+		Node node = fRoot;
+		fRoot.numSubtreeEntries++;
+		int s = 0;
+		while(s < S.length)
+		{
+			final Node child = node.getChild(S[s]);
+			if(child == null)
+			{
+				node = node.addChild(new Node(Arrays.copyOfRange(S, s, S.length)));
+				node.include(S, s);
+				node.numSubtreeEntries++;
+				break;
+			}
+			int k = 1;
+			while(k < child.labels.length && s+k < S.length && child.labels[k] == S[s+k])
+			{
+				k++;
+			}
+			if(k < child.labels.length)
+			{
+				child.split(k);
+			}
+			child.include(S, s);
+			child.numSubtreeEntries++;
+			node = child;
+			s += k;
+		}
+
+		final boolean newset = node.entries == null;
+		if(newset)
+		{
+			node.entries = new HashSet<C>(2);
+			fSize++;
+		}
+		final boolean newentry = node.entries.add(set);
+		if(newset || !newentry)
 		{
-			child = new Node(first);
-			root.children.put(first,child);
+			//Count the new set, or undo the subtree entry counts if the entry was already there.
+			final NodeStack path = new NodeStack(S.length);
+			getPath(S, path);
+			addSubtreeCounts(path, node, newentry ? 0 : -1, newset ? 1 : 0);
 		}
-		insert(set, s+1, child, entry);
 	}
 	
+	/**
+	 * Add to the subtree entry and set counts of a node and of the nodes of its path.
+	 */
+	@SuppressWarnings("unchecked")
+	private void addSubtreeCounts(NodeStack path, Node node, int entriesDelta, int setsDelta)
+	{
+		node.numSubtreeEntries += entriesDelta;
+		node.numSubtreeSets += setsDelta;
+		for(int i=0;i<path.fSize;i++)
+		{
+			((Node) path.fNodes[i]).numSubtreeEntries += entriesDelta;
+			((Node) path.fNodes[i]).numSubtreeSets += setsDelta;
+		}
+	}
+
 	@Override
 	public Iterable<C> getSubsets(ICacheEntry<E> set)
 	{
+		final int[] S = getLabels(set);
 		return new Iterable<C>(){
 			@Override
 			public Iterator<C> iterator() {
-				return new SubsetsIterator(fRoot, getArray(set));
+				return getEntries(Query.SUBSETS, S);
 			}};
 	}
-	
-	
-	
+
+
+
 	@Override
 	public Iterable<C> getSupersets(ICacheEntry<E> set)
 	{
+		final int[] S = getLabels(set);
 		return new Iterable<C>(){
 			@Override
 			public Iterator<C> iterator() {
-				return new SupersetsIterator(fRoot, getArray(set));
+				return getEntries(Query.SUPERSETS, S);
 			}};
 	}
-	
+
 
 	@Override
 	public Iterable<C> getSets() {
 		return new Iterable<C>(){
 			@Override
 			public Iterator<C> iterator() {
-				return new SetIterator(fRoot);
+				return new EntryIterator(new Traversal(Query.ALL, NO_LABELS, fRoot, 0, false));
 			}};
 	}
-	
-	
+
+
 	@Override
 	public int getNumberSubsets(ICacheEntry<E> set) {
-		ArrayList<E> S = getArray(set);
-		return getNumberSubsets(S,0,fRoot);
-	}
-	private int getNumberSubsets(ArrayList<E> set, int s, Node root)
-	{
-		int num = 0;
-		
-		num+=root.entries.size();
-		
-		for(int i=s;i<set.size();i++)
-		{
-			final E ielement = set.get(i); 
-			final Node ichild = root.children.get(ielement);
-			if(ichild != null)
-			{
-				num += getNumberSubsets(set,i+1,ichild);
-			}
-		}		
-		return num;		
+		return count(Query.SUBSETS, getLabels(set));
 	}
-	
 
 	@Override
 	public int getNumberSupersets(ICacheEntry<E> set) {
-		ArrayList<E> S = getArray(set);
-		return getNumberSupersets(S,0,fRoot);
-	}
-	private int getNumberSupersets(ArrayList<E> set, int s, Node root)
-	{
-		int num = 0;
-
-		final E first;
-		if(s == set.size())
-		{
-			first = null;
-			
-			num += root.entries.size();
-		}
-		else
-		{
-			first = set.get(s);
-		}
-		
-		for(final Entry<E,Node> childEntry : root.children.entrySet())
-		{
-			final E childElement = childEntry.getKey();
-			final Node child = childEntry.getValue();
-			
-			final int cnum;
-			if(first == null) {
-				cnum = getNumberSupersets(set, s, child);
-			} else {
-				int compare = comparator.compare(childElement, first);
-				if (compare < 0) {
-					cnum = getNumberSupersets(set, s, child);
-				} else if (compare == 0) {
-					cnum = getNumberSupersets(set, s+1, child);
-				} else {
-					cnum = 0;
-				}
-			}
-			num += cnum;	
-		}	
-		
-		return num;
+		return count(Query.SUPERSETS, getLabels(set));
 	}
 	
-	
 	/**
-	 * UBTree node
-	 * @author afrechet
+	 * @return true if queries should be split in parallel tasks.
 	 */
-	private class Node {
-		
-		/*
-		 * The entries at that node. The entries all correspond to the same
-		 * set, which in turn corresponds to the elements encountered in the unique
-		 * path from the root to this node. 
-		 */
-		private final Set<C> entries;
-		//The element corresponding to this node.
-		private final E element;
-		//The children of this node.
-		private final Map<E,Node> children;
-		
-		/**
-		 * Basic tree node.
-		 * @param e - element contained at the node.
-		 */
-		public Node(E e)
-		{
-			entries = new HashSet<C>();
-			element = e;
-			children = new HashMap<E,Node>();
-		}
-		
-		@Override
-		public String toString()
-		{
-			return element+" ("+entries.toString()+") "+children.keySet();
-		}
+	private boolean isParallel()
+	{
+		return fPool != null && fRoot.numSubtreeEntries >= PARALLEL_MIN_SUBTREE_ENTRIES;
 	}
 	
-	
-	/*
-	 * Lazy UBTree traversal iterators. 
-	 */
-	
 	/**
-	 * Container class for the two types of UBTree iterators.
-	 * 
-	 * @author afrechet
+	 * @return an iterator over the entries matching the given query, lazy unless the query runs in parallel.
 	 */
-	private class IteratorEntry
+	private Iterator<C> getEntries(Query query, int[] set)
 	{
-		private final Node node;
-		private final int index;
-		
-		public IteratorEntry(Node n, int i)
+		if(isParallel())
 		{
-			node = n;
-			index = i;
+			return fPool.invoke(new CollectTask(query, set, fRoot, 0, 0)).iterator();
 		}
+		return new EntryIterator(new Traversal(query, set, fRoot, 0, false));
 	}
 	
 	/**
-	 * Abstract tree traversal iterator used to implement sub/superset iterators.
-	 * 
-	 * @author afrechet
+	 * @return the number of entries matching the given query.
 	 */
-	private abstract class ATreeIterator implements Iterator<C>
+	private int count(Query query, int[] set)
 	{
-		final ArrayList<E> fSet;
-		final Queue<IteratorEntry> fQueue;
-		Iterator<C> fCurrentIterator;
-		
-		public ATreeIterator(Node root, ArrayList<E> set)
-		{
-			fSet = set;
-			
-			//Go breath-first in UBT traversal for next node.
-			fQueue = new LinkedList<IteratorEntry>();
-			fQueue.add(new IteratorEntry(root, 0));
-			
-			fCurrentIterator = Collections.emptyIterator();
-		}
-		
-		/**
-		 * Process a node obtained from the traversal queue, possibly updating the current iterator if a match is found,
-		 * and also adding the node's children to the traversal queue for future processing.
-		 * 
-		 * @param node - a node.
-		 * @param index - the index in the set at which we are.
-		 */
-		abstract void processNode(Node node, int index);
-		
-		/**
-		 * Empties the traversal queue has long as the current iterator has no next element.
-		 */
-		private final void updateCurrentIterator()
+		if(isParallel())
 		{
-			while(!fQueue.isEmpty() && !fCurrentIterator.hasNext())
-			{
-				//Get node from the queue.
-				final IteratorEntry entry = fQueue.remove();
-				final Node node = entry.node;
-				final int index = entry.index;
-				
-				processNode(node,index);
-			}
-		}
-		
-		@Override
-		public final boolean hasNext() {
-			updateCurrentIterator();
-			return fCurrentIterator.hasNext();
-		}
-
-		@Override
-		public final C next() {
-			updateCurrentIterator();
-			return fCurrentIterator.next();
+			return fPool.invoke(new CountTask(query, set, fRoot, 0, 0));
 		}
+		return new Traversal(query, set, fRoot, 0, true).count();
 	}
-	
+
 	/**
-	 * Tree iterator that visits all nodes.
-	 * 
-	 * @author afrechet
+	 * @param node - a node whose first label is the set's label at the given index.
+	 * @param set - a set of labels in increasing order.
+	 * @param i - an index in the set.
+	 * @return the index in the set following the node's last label, if all the node's labels are in the set; -1 otherwise.
 	 */
-	private class SetIterator extends ATreeIterator
+	private int matchSubsetRun(Node node, int[] set, int i)
 	{
-		public SetIterator(Node root) {
-			super(root, null);
-		}
-
-		@Override
-		void processNode(Node node, int index) {
-			if(!node.entries.isEmpty())
+		int j = i+1;
+		for(int k=1;k<node.labels.length;k++)
+		{
+			while(j < set.length && set[j] < node.labels[k])
 			{
-				fCurrentIterator = node.entries.iterator();
+				j++;
 			}
-			
-			//Add node's children to the queue.
-			for(Node child : node.children.values())
+			if(j == set.length || set[j] != node.labels[k])
 			{
-				fQueue.add(new IteratorEntry(child, 0));
+				return -1;
 			}
+			j++;
 		}
+		return j;
 	}
-	
+
 	/**
-	 * Tree iterator that is forced to follow elements from the given set
-	 * in order to end up on subsets.
-	 * 
-	 * @author afrechet
+	 * @param node - a node.
+	 * @param set - a set of labels in increasing order.
+	 * @param s - the index in the set of the next label to find.
+	 * @return the index in the set of the next label to find after the node's labels, -1 if a label of the set is skipped by the node's labels.
 	 */
-	private class SubsetsIterator extends ATreeIterator
+	private int matchSupersetRun(Node node, int[] set, int s)
 	{
-		public SubsetsIterator(Node root, ArrayList<E> set) {
-			super(root, set);
-		}
-
-		@Override
-		void processNode(Node node, int index) {
-			if(!node.entries.isEmpty())
-			{
-				fCurrentIterator = node.entries.iterator();
-			}
-			
-			//Add node's children to the queue.
-			for(int i=index;i<fSet.size();i++)
+		for(int label : node.labels)
+		{
+			if(s < set.length && label >= set[s])
 			{
-				final E ielement = fSet.get(i); 
-				final Node ichild = node.children.get(ielement);
-				if(ichild != null)
+				if(label > set[s])
 				{
-					fQueue.add(new IteratorEntry(ichild, i+1));
+					return -1;
 				}
+				s++;
 			}
 		}
+		return s;
 	}
-	
+
 	/**
-	 * Tree iterator that follows any element as long as it eventually visits all
-	 * the ones from its given set, to end up on subsets of the latter.
-	 * 
-	 * @author afrechet
+	 * @return an immutable succinct copy of the tree (see {@link FrozenUBTree}). Later changes to this tree are not reflected in the copy.
 	 */
-	private class SupersetsIterator extends ATreeIterator
+	public FrozenUBTree<E,C> freeze()
 	{
-		public SupersetsIterator(Node root, ArrayList<E> set) {
-			super(root, set);
-		}
+		//Encode the tree breadth-first, expanding every node's labels in a chain of single label nodes (the node and the index of their label).
+		final BitSet louds = new BitSet();
+		int loudslength = 0;
+		final List<Integer> labels = new ArrayList<Integer>();
+		final BitSet terminals = new BitSet();
+		final List<Integer> offsets = new ArrayList<Integer>();
+		final List<C> entries = new ArrayList<C>();
 
-		@Override
-		void processNode(Node node, int index) {
-			
-			//Get first element, possibly processing node.
-			final E first;
-			if(index == fSet.size())
+		final Queue<NodePosition> queue = new LinkedList<NodePosition>();
+		queue.add(new NodePosition(fRoot, -1));
+		int id = 0;
+		while(!queue.isEmpty())
+		{
+			final NodePosition chainnode = queue.remove();
+			final Node node = chainnode.node;
+			if(chainnode.index < node.labels.length-1)
 			{
-				first = null;
-				
-				if(!node.entries.isEmpty())
-				{
-					fCurrentIterator = node.entries.iterator();
-				}
+				//Inside the chain.
+				addFrozenChild(node, chainnode.index+1, labels, queue);
+				louds.set(loudslength++);
 			}
 			else
 			{
-				first = fSet.get(index);
-			}
-			
-			//Add node's children to the queue.
-			for(Entry<E,Node> childEntry : node.children.entrySet())
-			{
-				final E childElement = childEntry.getKey();
-				final Node child = childEntry.getValue();
-				if (first == null) {
-					fQueue.add(new IteratorEntry(child,index));
-				} else {
-					int compare = comparator.compare(childElement, first);
-					if(compare < 0)
-					{
-						fQueue.add(new IteratorEntry(child,index));
-					}
-					else if(compare == 0)
+				if(node.entries != null)
+				{
+					terminals.set(id);
+					offsets.add(entries.size());
+					entries.addAll(node.entries);
+				}
+				
+				for(int slot=0;slot<node.getNumberSlots();slot++)
+				{
+					final Node child = node.getSlot(slot);
+					if(child != null)
 					{
-						fQueue.add(new IteratorEntry(child,index+1));
+						addFrozenChild(child, 0, labels, queue);
+						louds.set(loudslength++);
 					}
 				}
 			}
+			loudslength++;
+			id++;
+		}
+		offsets.add(entries.size());
+
+		return new FrozenUBTree<E,C>(
+				permutation,
+				new RankSelectBitVector(louds, loudslength),
+				labels.stream().mapToInt(Integer::intValue).toArray(),
+				new RankSelectBitVector(terminals, id),
+				offsets.stream().mapToInt(Integer::intValue).toArray(),
+				entries.toArray());
+	}
+	
+	private void addFrozenChild(Node node, int index, List<Integer> labels, Queue<NodePosition> queue)
+	{
+		labels.add(node.labels[index]);
+		queue.add(new NodePosition(node, index));
+	}
+
+	/**
+	 * UBTree node
+	 * @author afrechet
+	 */
+	private class Node {
+
+		//The labels of the elements corresponding to this node, in increasing order (none for the root).
+		private int[] labels;
+		/*
+		 * The entries at that node, null if there are none. The entries all correspond to the same
+		 * set, which in turn corresponds to the elements encountered in the unique
+		 * path from the root to this node.
+		 */
+		private Set<C> entries;
+
+		//The children of this node in increasing label order, with their labels, while the fan-out is small.
+		private int[] childLabels;
+		private Object[] children;
+		private int numChildren;
+		//The children of this node indexed by label minus the table base, once the fan-out is large (null until then).
+		private Object[] table;
+		private int tableBase;
+		
+		/*
+		 * The labels of the node and of its descendants, as the bits of words starting at word summaryBase,
+		 * and the largest number of labels from the node's first one to a node with entries. Not maintained for the root.
+		 */
+		private long[] summary;
+		private int summaryBase;
+		private int height;
+		//The number of entries of the node and of its descendants.
+		private int numSubtreeEntries;
+		//The number of nodes with entries among the node and its descendants, i.e. of distinct sets.
+		private int numSubtreeSets;
+
+		/**
+		 * Basic tree node.
+		 * @param labels - labels of the elements contained at the node.
+		 */
+		public Node(int[] labels)
+		{
+			this.labels = labels;
+			entries = null;
+			childLabels = NO_LABELS;
+			children = NO_NODES;
+			numChildren = 0;
+			summary = NO_WORDS;
+			summaryBase = labels.length == 0 ? 0 : labels[0] >>> 6;
+			height = 0;
+			numSubtreeEntries = 0;
+			numSubtreeSets = 0;
+			fNumNodes++;
+		}
+		
+		/**
+		 * Add the labels of a set going through the node to its summary.
+		 * @param set - a set of labels in increasing order.
+		 * @param from - the index in the set of the node's first label.
+		 */
+		public void include(int[] set, int from)
+		{
+			if(from < set.length)
+			{
+				ensureSummaryWord(set[set.length-1] >>> 6);
+				for(int i=from;i<set.length;i++)
+				{
+					summary[(set[i] >>> 6) - summaryBase] |= 1L << set[i];
+				}
+			}
+			height = Math.max(height, set.length - from);
+		}
+		
+		/**
+		 * @param set - a set of labels in increasing order.
+		 * @param from - an index in the set, whose label is at least the node's first label.
+		 * @return false if the node's subtree cannot have an entry containing the labels of the set from the given index, true if it may.
+		 */
+		public boolean mayContain(int[] set, int from)
+		{
+			if(height < set.length - from)
+			{
+				return false;
+			}
+			for(int i=from;i<set.length;i++)
+			{
+				final int word = (set[i] >>> 6) - summaryBase;
+				if(word < 0 || word >= summary.length || (summary[word] & (1L << set[i])) == 0L)
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * Recompute the node's summary from its labels and its children's summaries.
+		 * @return true if the summary changed.
+		 */
+		public boolean updateSummary()
+		{
+			final long[] oldsummary = summary;
+			final int oldheight = height;
+			summary = NO_WORDS;
+			height = 0;
+			include(labels, 0);
+			for(int slot=0;slot<getNumberSlots();slot++)
+			{
+				final Node child = getSlot(slot);
+				if(child != null)
+				{
+					ensureSummaryWord(child.summaryBase + child.summary.length - 1);
+					for(int w=0;w<child.summary.length;w++)
+					{
+						summary[child.summaryBase + w - summaryBase] |= child.summary[w];
+					}
+					height = Math.max(height, labels.length + child.height);
+				}
+			}
+			return height != oldheight || !Arrays.equals(summary, oldsummary);
+		}
+		
+		private void ensureSummaryWord(int word)
+		{
+			if(word - summaryBase >= summary.length)
+			{
+				summary = Arrays.copyOf(summary, word - summaryBase + 1);
+			}
+		}
+		
+		/**
+		 * @return the number of unused child slots of the node.
+		 */
+		public int getNumberDeadSlots()
+		{
+			return (table != null ? table.length : children.length) - numChildren;
+		}
+
+		public int getNumberEntries()
+		{
+			return entries == null ? 0 : entries.size();
+		}
+
+		/**
+		 * @return the number of child slots, over which children are in increasing label order.
+		 */
+		public int getNumberSlots()
+		{
+			return table != null ? table.length : numChildren;
+		}
+
+		/**
+		 * @return the child at the given slot, possibly null.
+		 */
+		@SuppressWarnings("unchecked")
+		public Node getSlot(int slot)
+		{
+			return (Node) (table != null ? table[slot] : children[slot]);
+		}
+
+		/**
+		 * @param label - a label.
+		 * @param from - a slot.
+		 * @return the first slot, starting from the given one, that may have a child with first label at least the given one; the number of slots if there is none.
+		 */
+		public int getCeilingSlot(int label, int from)
+		{
+			if(table != null)
+			{
+				return Math.min(table.length, Math.max(from, label - tableBase));
+			}
+			int slot = from;
+			while(slot < numChildren && childLabels[slot] < label)
+			{
+				slot++;
+			}
+			return slot;
+		}
+
+		/**
+		 * @return the child with the given first label, null if there is none.
+		 */
+		@SuppressWarnings("unchecked")
+		public Node getChild(int label)
+		{
+			if(table != null)
+			{
+				final int slot = label - tableBase;
+				return slot >= 0 && slot < table.length ? (Node) table[slot] : null;
+			}
+			final int slot = Arrays.binarySearch(childLabels, 0, numChildren, label);
+			return slot >= 0 ? (Node) children[slot] : null;
+		}
+
+		/**
+		 * @param child - a node whose first label is not the first label of any child.
+		 * @return the given node, added as a child.
+		 */
+		public Node addChild(Node child)
+		{
+			fNumDeadSlots -= getNumberDeadSlots();
+			insertChild(child);
+			fNumDeadSlots += getNumberDeadSlots();
+			return child;
+		}
+		
+		private void insertChild(Node child)
+		{
+			final int label = child.labels[0];
+			numChildren++;
+
+			if(table != null)
+			{
+				//Grow the table to cover the label.
+				if(label < tableBase)
+				{
+					final Object[] newtable = new Object[table.length + tableBase - label];
+					System.arraycopy(table, 0, newtable, tableBase - label, table.length);
+					table = newtable;
+					tableBase = label;
+				}
+				else if(label - tableBase >= table.length)
+				{
+					table = Arrays.copyOf(table, label - tableBase + 1);
+				}
+				table[label - tableBase] = child;
+				return;
+			}
+
+			//Insert the child in the sorted arrays.
+			final int slot = -Arrays.binarySearch(childLabels, 0, numChildren-1, label) - 1;
+			if(numChildren > children.length)
+			{
+				final int capacity = Math.max(2, 2*children.length);
+				childLabels = Arrays.copyOf(childLabels, capacity);
+				children = Arrays.copyOf(children, capacity);
+			}
+			System.arraycopy(childLabels, slot, childLabels, slot+1, numChildren-1-slot);
+			System.arraycopy(children, slot, children, slot+1, numChildren-1-slot);
+			childLabels[slot] = label;
+			children[slot] = child;
+
+			//Switch to a dense table if the children are many and close together.
+			final int range = childLabels[numChildren-1] - childLabels[0] + 1;
+			if(numChildren >= DENSE_MIN_CHILDREN && range <= DENSE_MAX_SLOTS_PER_CHILD*numChildren)
+			{
+				tableBase = childLabels[0];
+				table = new Object[range];
+				for(int i=0;i<numChildren;i++)
+				{
+					table[childLabels[i] - tableBase] = children[i];
+				}
+				childLabels = NO_LABELS;
+				children = NO_NODES;
+			}
+		}
+		
+		/**
+		 * Unlink the given child, which has no children.
+		 */
+		public void removeChild(Node child)
+		{
+			fNumDeadSlots -= getNumberDeadSlots() + child.getNumberDeadSlots();
+			final int label = child.labels[0];
+			if(table != null)
+			{
+				table[label - tableBase] = null;
+			}
+			else
+			{
+				final int slot = Arrays.binarySearch(childLabels, 0, numChildren, label);
+				System.arraycopy(childLabels, slot+1, childLabels, slot, numChildren-1-slot);
+				System.arraycopy(children, slot+1, children, slot, numChildren-1-slot);
+				children[numChildren-1] = null;
+			}
+			numChildren--;
+			fNumNodes--;
+			fNumDeadSlots += getNumberDeadSlots();
+		}
+		
+		/**
+		 * Trim the node's children to their number, and rehash its entries.
+		 */
+		public void compact()
+		{
+			fNumDeadSlots -= getNumberDeadSlots();
+			if(table != null && numChildren >= DENSE_MIN_CHILDREN)
+			{
+				//Trim the empty ends of the table.
+				int first = 0;
+				while(table[first] == null)
+				{
+					first++;
+				}
+				int last = table.length-1;
+				while(table[last] == null)
+				{
+					last--;
+				}
+				table = Arrays.copyOfRange(table, first, last+1);
+				tableBase += first;
+			}
+			if(table != null && (numChildren < DENSE_MIN_CHILDREN || table.length > DENSE_MAX_SLOTS_PER_CHILD*numChildren))
+			{
+				//Move back to sorted arrays.
+				childLabels = new int[numChildren];
+				children = new Object[numChildren];
+				int i = 0;
+				for(int slot=0;slot<table.length;slot++)
+				{
+					if(table[slot] != null)
+					{
+						childLabels[i] = tableBase + slot;
+						children[i] = table[slot];
+						i++;
+					}
+				}
+				table = null;
+			}
+			else if(table == null && children.length > numChildren)
+			{
+				childLabels = numChildren == 0 ? NO_LABELS : Arrays.copyOf(childLabels, numChildren);
+				children = numChildren == 0 ? NO_NODES : Arrays.copyOf(children, numChildren);
+			}
+			if(entries != null)
+			{
+				entries = new HashSet<C>(entries);
+			}
+			fNumDeadSlots += getNumberDeadSlots();
+		}
+
+		/**
+		 * Split the node in two, the node keeping its labels before the given index, and a new only child taking the rest with the node's entries and children.
+		 * @param k - an index in the node's labels, at least one.
+		 */
+		public void split(int k)
+		{
+			final Node child = new Node(Arrays.copyOfRange(labels, k, labels.length));
+			child.takeContent(this);
+			//The child's summary is the node's, without the labels left in the node (all the labels below the node are larger).
+			child.summaryBase = summaryBase;
+			child.summary = summary.clone();
+			for(int i=0;i<k;i++)
+			{
+				child.summary[(labels[i] >>> 6) - summaryBase] &= ~(1L << labels[i]);
+			}
+			child.height = height - k;
+			child.numSubtreeEntries = numSubtreeEntries;
+			child.numSubtreeSets = numSubtreeSets;
+			labels = Arrays.copyOf(labels, k);
+			entries = null;
+			childLabels = NO_LABELS;
+			children = NO_NODES;
+			numChildren = 0;
+			table = null;
+			addChild(child);
+		}
+		
+		/**
+		 * Merge the node with its only child, the node taking the child's labels, entries and children. Its summary does not change.
+		 */
+		public void mergeWithOnlyChild()
+		{
+			fNumDeadSlots -= getNumberDeadSlots();
+			fNumNodes--;
+			Node child = null;
+			for(int slot=0;child == null;slot++)
+			{
+				child = getSlot(slot);
+			}
+			final int[] merged = Arrays.copyOf(labels, labels.length + child.labels.length);
+			System.arraycopy(child.labels, 0, merged, labels.length, child.labels.length);
+			labels = merged;
+			takeContent(child);
+		}
+		
+		/**
+		 * Take the entries and children of the given node.
+		 */
+		private void takeContent(Node node)
+		{
+			entries = node.entries;
+			childLabels = node.childLabels;
+			children = node.children;
+			numChildren = node.numChildren;
+			table = node.table;
+			tableBase = node.tableBase;
+		}
+
+		@Override
+		public String toString()
+		{
+			return Arrays.toString(labels)+" ("+entries+") "+numChildren+" children";
+		}
+	}
+
+	/**
+	 * Array-based stack of nodes, each with an index in a query set and, for traversals, the position of the next child to visit.
+	 */
+	private class NodeStack
+	{
+		private Object[] fNodes;
+		private int[] fIndices;
+		//The next child slot and query position to look at, the latter being -1 for nodes that were not visited yet.
+		private int[] fSlots;
+		private int[] fPositions;
+		private int fSize;
+		//Whether a traversal is using the stack.
+		private boolean fInUse;
+
+		public NodeStack(int capacity)
+		{
+			fNodes = new Object[Math.max(capacity, 1)];
+			fIndices = new int[fNodes.length];
+			fSlots = new int[fNodes.length];
+			fPositions = new int[fNodes.length];
+			fSize = 0;
+		}
+
+		public void push(Node node, int index)
+		{
+			if(fSize == fNodes.length)
+			{
+				fNodes = Arrays.copyOf(fNodes, 2*fSize);
+				fIndices = Arrays.copyOf(fIndices, 2*fSize);
+				fSlots = Arrays.copyOf(fSlots, 2*fSize);
+				fPositions = Arrays.copyOf(fPositions, 2*fSize);
+			}
+			fNodes[fSize] = node;
+			fIndices[fSize] = index;
+			fSlots[fSize] = 0;
+			fPositions[fSize] = -1;
+			fSize++;
+		}
+
+		@SuppressWarnings("unchecked")
+		public Node peekNode()
+		{
+			return (Node) fNodes[fSize-1];
+		}
+
+		public int peekIndex()
+		{
+			return fIndices[fSize-1];
+		}
+
+		public void pop()
+		{
+			fNodes[--fSize] = null;
+		}
+
+		public boolean isEmpty()
+		{
+			return fSize == 0;
+		}
+		
+		public void clear()
+		{
+			while(fSize > 0)
+			{
+				pop();
+			}
+		}
+	}
+	
+	/**
+	 * @return a traversal stack, the thread's one if stacks are reused and it is not in use.
+	 */
+	private NodeStack acquireStack()
+	{
+		if(fStacks == null)
+		{
+			return new NodeStack(DEFAULT_STACK_CAPACITY);
+		}
+		NodeStack stack = fStacks.get();
+		if(stack.fInUse)
+		{
+			//Another traversal is running or was left unfinished, replace the thread's stack.
+			stack = new NodeStack(DEFAULT_STACK_CAPACITY);
+			fStacks.set(stack);
+		}
+		stack.fInUse = true;
+		return stack;
+	}
+
+	/**
+	 * Container class for a node and an index in its labels.
+	 *
+	 * @author afrechet
+	 */
+	private class NodePosition
+	{
+		private final Node node;
+		private final int index;
+
+		public NodePosition(Node n, int i)
+		{
+			node = n;
+			index = i;
+		}
+	}
+
+	/*
+	 * Lazy UBTree traversals.
+	 */
+	
+	/**
+	 * Types of tree traversals.
+	 */
+	private enum Query
+	{
+		//Every node.
+		ALL,
+		//Nodes whose paths are made of elements of the query set.
+		SUBSETS,
+		//Nodes whose paths contain the elements of the query set.
+		SUPERSETS
+	}
+	
+	/**
+	 * Depth-first traversal of the nodes with entries matching a query, one node at a time.
+	 */
+	private class Traversal
+	{
+		private final Query fQuery;
+		private final int[] fSet;
+		private NodeStack fStack;
+		//Whether the traversal only counts entries, and the number of entries of the subtrees it counted without visiting them.
+		private final boolean fCounting;
+		private int fNumSkippedEntries;
+		
+		/**
+		 * @param query - the type of traversal.
+		 * @param set - the query set of labels, in increasing order.
+		 * @param start - the node from which to traverse.
+		 * @param s - the index in the set following the labels of the path to the start node.
+		 * @param counting - whether the traversal only counts entries, in which case it does not visit the subtrees whose entries all match.
+		 */
+		public Traversal(Query query, int[] set, Node start, int s, boolean counting)
+		{
+			fQuery = query;
+			fSet = set;
+			fCounting = counting;
+			fStack = acquireStack();
+			fStack.push(start, s);
+		}
+		
+		/**
+		 * @return the number of entries of the remaining matching nodes.
+		 */
+		public int count()
+		{
+			Preconditions.checkState(fCounting, "Traversal is not counting.");
+			int num = 0;
+			for(Node node = nextNode(); node != null; node = nextNode())
+			{
+				num += node.getNumberEntries();
+			}
+			return num + fNumSkippedEntries;
+		}
+		
+		/**
+		 * @return the next node with entries matching the query, null if there is none left.
+		 */
+		public Node nextNode()
+		{
+			final NodeStack stack = fStack;
+			if(stack == null)
+			{
+				return null;
+			}
+			while(!stack.isEmpty())
+			{
+				final int top = stack.fSize-1;
+				final Node node = stack.peekNode();
+				final int s = stack.fIndices[top];
+				if(stack.fPositions[top] < 0)
+				{
+					//First visit of the node.
+					stack.fPositions[top] = s;
+					if(matches(node, s))
+					{
+						return node;
+					}
+				}
+				if(!pushNextChild(stack, top, node, s))
+				{
+					stack.pop();
+				}
+			}
+			release();
+			return null;
+		}
+		
+		/**
+		 * Visit the start node, and list the children to visit from it instead of traversing them. The traversal is then done.
+		 * @param children - the list to which the children to visit are added, with the index in the set following their labels.
+		 * @return the start node if it has entries matching the query, null otherwise.
+		 */
+		public Node expand(List<NodePosition> children)
+		{
+			final NodeStack stack = fStack;
+			Preconditions.checkState(stack != null && stack.fSize == 1 && stack.fPositions[0] < 0, "Traversal has already started.");
+			final Node node = stack.peekNode();
+			final int s = stack.peekIndex();
+			stack.fPositions[0] = s;
+			while(pushNextChild(stack, 0, node, s))
+			{
+				children.add(new NodePosition(stack.peekNode(), stack.peekIndex()));
+				stack.pop();
+			}
+			stack.pop();
+			release();
+			return matches(node, s) ? node : null;
+		}
+		
+		/**
+		 * @return true if the given node, reached at the given index in the set, has entries matching the query.
+		 */
+		private boolean matches(Node node, int s)
+		{
+			return node.entries != null && (fQuery != Query.SUPERSETS || s == fSet.length);
+		}
+		
+		private void release()
+		{
+			fStack.fInUse = false;
+			fStack = null;
+		}
+		
+		/**
+		 * Push the next child to visit of the node at the given position in the stack, updating the node's child position.
+		 * @return true if a child was pushed, false if the node has no more children to visit.
+		 */
+		private boolean pushNextChild(NodeStack stack, int top, Node node, int s)
+		{
+			final int numslots = node.getNumberSlots();
+			int slot = stack.fSlots[top];
+			switch(fQuery)
+			{
+				case ALL:
+					while(slot < numslots)
+					{
+						final Node child = node.getSlot(slot++);
+						if(child != null)
+						{
+							stack.fSlots[top] = slot;
+							stack.push(child, 0);
+							return true;
+						}
+					}
+					break;
+				case SUBSETS:
+					//Merge the remaining labels of the set with the node's sorted children.
+					int i = stack.fPositions[top];
+					while(i < fSet.length && slot < numslots)
+					{
+						slot = node.getCeilingSlot(fSet[i], slot);
+						final Node ichild = slot < numslots ? node.getSlot(slot) : null;
+						if(ichild != null && ichild.labels[0] == fSet[i])
+						{
+							slot++;
+							final int next = matchSubsetRun(ichild, fSet, i++);
+							if(next >= 0)
+							{
+								stack.fSlots[top] = slot;
+								stack.fPositions[top] = i;
+								stack.push(ichild, next);
+								return true;
+							}
+						}
+						else
+						{
+							i++;
+						}
+					}
+					break;
+				case SUPERSETS:
+					//Follow the children labeled before the next element of the set, or with it.
+					final int first = s < fSet.length ? fSet[s] : Integer.MAX_VALUE;
+					while(slot < numslots)
+					{
+						final Node child = node.getSlot(slot++);
+						if(child == null)
+						{
+							continue;
+						}
+						if(child.labels[0] > first)
+						{
+							break;
+						}
+						if(!child.mayContain(fSet, s))
+						{
+							continue;
+						}
+						final int next = matchSupersetRun(child, fSet, s);
+						if(next == fSet.length && fCounting)
+						{
+							//The whole subtree is made of supersets.
+							fNumSkippedEntries += child.numSubtreeEntries;
+						}
+						else if(next >= 0)
+						{
+							stack.fSlots[top] = slot;
+							stack.push(child, next);
+							return true;
+						}
+					}
+					break;
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * Task running a traversal from a node, forking a task per child to visit while the node is shallow and its subtree is large.
+	 *
+	 * @param <T> - the result of the traversal.
+	 */
+	@SuppressWarnings("serial")
+	private abstract class ATraversalTask<T> extends RecursiveTask<T>
+	{
+		protected final Query fQuery;
+		protected final int[] fSet;
+		private final Node fNode;
+		private final int fIndex;
+		private final int fDepth;
+		
+		/**
+		 * @param query - the type of traversal.
+		 * @param set - the query set of labels, in increasing order.
+		 * @param node - the node from which to traverse.
+		 * @param index - the index in the set following the labels of the path to the node.
+		 * @param depth - the depth of the node.
+		 */
+		public ATraversalTask(Query query, int[] set, Node node, int index, int depth)
+		{
+			fQuery = query;
+			fSet = set;
+			fNode = node;
+			fIndex = index;
+			fDepth = depth;
+		}
+		
+		@Override
+		protected T compute()
+		{
+			final Traversal traversal = new Traversal(fQuery, fSet, fNode, fIndex, isCounting());
+			if(fDepth >= PARALLEL_MAX_DEPTH || fNode.numSubtreeEntries < PARALLEL_MIN_SUBTREE_ENTRIES)
+			{
+				return computeSequentially(traversal);
+			}
+			final List<NodePosition> children = new ArrayList<NodePosition>();
+			final Node match = traversal.expand(children);
+			final List<ATraversalTask<T>> subtasks = new ArrayList<ATraversalTask<T>>(children.size());
+			for(NodePosition child : children)
+			{
+				subtasks.add(createSubtask(child.node, child.index, fDepth+1));
+			}
+			invokeAll(subtasks);
+			return merge(match, traversal.fNumSkippedEntries, subtasks);
+		}
+		
+		protected abstract boolean isCounting();
+		
+		/**
+		 * @return the result of the given traversal, run in the current thread.
+		 */
+		protected abstract T computeSequentially(Traversal traversal);
+		
+		protected abstract ATraversalTask<T> createSubtask(Node node, int index, int depth);
+		
+		/**
+		 * @param match - the task's node if it matches the query, null otherwise.
+		 * @param numSkippedEntries - the number of entries of the subtrees counted without being visited.
+		 * @param subtasks - the completed tasks of the node's children, in order.
+		 * @return the result of the task.
+		 */
+		protected abstract T merge(Node match, int numSkippedEntries, List<ATraversalTask<T>> subtasks);
+	}
+	
+	/**
+	 * Task counting the entries matching a query.
+	 */
+	@SuppressWarnings("serial")
+	private class CountTask extends ATraversalTask<Integer>
+	{
+		public CountTask(Query query, int[] set, Node node, int index, int depth)
+		{
+			super(query, set, node, index, depth);
+		}
+
+		@Override
+		protected boolean isCounting() {
+			return true;
+		}
+
+		@Override
+		protected Integer computeSequentially(Traversal traversal) {
+			return traversal.count();
+		}
+
+		@Override
+		protected ATraversalTask<Integer> createSubtask(Node node, int index, int depth) {
+			return new CountTask(fQuery, fSet, node, index, depth);
+		}
+
+		@Override
+		protected Integer merge(Node match, int numSkippedEntries, List<ATraversalTask<Integer>> subtasks) {
+			int num = numSkippedEntries + (match == null ? 0 : match.getNumberEntries());
+			for(ATraversalTask<Integer> subtask : subtasks)
+			{
+				num += subtask.join();
+			}
+			return num;
+		}
+	}
+	
+	/**
+	 * Task collecting the entries matching a query, in the order of a sequential traversal.
+	 */
+	@SuppressWarnings("serial")
+	private class CollectTask extends ATraversalTask<List<C>>
+	{
+		public CollectTask(Query query, int[] set, Node node, int index, int depth)
+		{
+			super(query, set, node, index, depth);
+		}
+
+		@Override
+		protected boolean isCounting() {
+			return false;
+		}
+
+		@Override
+		protected List<C> computeSequentially(Traversal traversal) {
+			final List<C> entries = new ArrayList<C>();
+			final Iterator<C> iterator = new EntryIterator(traversal);
+			while(iterator.hasNext())
+			{
+				entries.add(iterator.next());
+			}
+			return entries;
+		}
+
+		@Override
+		protected ATraversalTask<List<C>> createSubtask(Node node, int index, int depth) {
+			return new CollectTask(fQuery, fSet, node, index, depth);
+		}
+
+		@Override
+		protected List<C> merge(Node match, int numSkippedEntries, List<ATraversalTask<List<C>>> subtasks) {
+			final List<C> entries = new ArrayList<C>();
+			if(match != null)
+			{
+				entries.addAll(match.entries);
+			}
+			for(ATraversalTask<List<C>> subtask : subtasks)
+			{
+				entries.addAll(subtask.join());
+			}
+			return entries;
+		}
+	}
+	
+	/**
+	 * Iterator over the entries of the nodes of a traversal.
+	 */
+	private class EntryIterator implements Iterator<C>
+	{
+		private final Traversal fTraversal;
+		private Iterator<C> fCurrentIterator;
+		
+		public EntryIterator(Traversal traversal)
+		{
+			fTraversal = traversal;
+			fCurrentIterator = Collections.emptyIterator();
+		}
+		
+		@Override
+		public boolean hasNext() {
+			while(!fCurrentIterator.hasNext())
+			{
+				final Node node = fTraversal.nextNode();
+				if(node == null)
+				{
+					return false;
+				}
+				fCurrentIterator = node.entries.iterator();
+			}
+			return true;
+		}
+
+		@Override
+		public C next() {
+			if(!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+			return fCurrentIterator.next();
 		}
 	}
 
@@ -0,0 +1,234 @@
+package containmentcache.util;
+
+import java.nio.LongBuffer;
+import java.util.BitSet;
+
+/**
+ * Word-level operations on bitsets packed into {@code long} words, in the same little-endian layout as {@link BitSet#toLongArray()}
+ * (bit i is bit i%64 of word i/64).
+ *
+ * All operations work on a fixed number of words starting at an offset, so that many packed bitsets can be stored contiguously
+ * in a single {@code long[]} (the i-th bitset occupying words [i*numWords,(i+1)*numWords) ).
+ *
+ * Packed bitsets can also be stored in a {@link LongBuffer} (e.g. off-heap in a direct buffer), with the same layout, offsets being absolute
+ * positions in the buffer.
+ *
+ * The ordering used by {@link #compare(long[], int, long[], int, int)} is the one given by the integer value of the bitsets,
+ * the same as the one used by the bitset caches.
+ */
+public final class PackedBitSets {
+
+	private PackedBitSets()
+	{
+		//Static helper class.
+	}
+
+	/**
+	 * @param universeSize - number of elements in the universe.
+	 * @return the number of words needed to pack a bitset over the given universe.
+	 */
+	public static int getNumWords(int universeSize)
+	{
+		return Math.max(1, (universeSize + Long.SIZE - 1) / Long.SIZE);
+	}
+
+	/**
+	 * @param bs - a bitset.
+	 * @param numWords - number of words to pack the bitset in.
+	 * @return a new array containing the given bitset packed over the given number of words.
+	 */
+	public static long[] pack(BitSet bs, int numWords)
+	{
+		final long[] words = new long[numWords];
+		pack(bs, words, 0, numWords);
+		return words;
+	}
+
+	/**
+	 * Packs the given bitset in the given destination array.
+	 * @param bs - a bitset.
+	 * @param dest - destination array.
+	 * @param offset - offset in the destination array.
+	 * @param numWords - number of words to pack the bitset in.
+	 * @throws IllegalArgumentException if the bitset does not fit in the given number of words.
+	 */
+	public static void pack(BitSet bs, long[] dest, int offset, int numWords)
+	{
+		if(bs.length() > numWords * Long.SIZE)
+		{
+			throw new IllegalArgumentException("Bitset of length "+bs.length()+" does not fit in "+numWords+" words.");
+		}
+		final long[] words = bs.toLongArray();
+		System.arraycopy(words, 0, dest, offset, words.length);
+		for(int i=words.length;i<numWords;i++)
+		{
+			dest[offset+i] = 0L;
+		}
+	}
+
+	/**
+	 * @param src - source array.
+	 * @param offset - offset in the source array.
+	 * @param numWords - number of words of the packed bitset.
+	 * @return the bitset packed at the given offset.
+	 */
+	public static BitSet unpack(long[] src, int offset, int numWords)
+	{
+		final long[] words = new long[numWords];
+		System.arraycopy(src, offset, words, 0, numWords);
+		return BitSet.valueOf(words);
+	}
+
+	/**
+	 * Compares two packed bitsets based on their integer values.
+	 * @return a negative number, zero or a positive number if the first bitset is respectively smaller, equal or larger than the second one.
+	 */
+	public static int compare(long[] a, int aoffset, long[] b, int boffset, int numWords)
+	{
+		for(int i=numWords-1;i>=0;i--)
+		{
+			final long aword = a[aoffset+i];
+			final long bword = b[boffset+i];
+			if(aword != bword)
+			{
+				return Long.compareUnsigned(aword, bword);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Binary search for a packed bitset in sorted contiguous packed bitsets.
+	 * @param keys - packed bitsets sorted by integer value, the i-th one occupying words [i*numWords,(i+1)*numWords).
+	 * @param numKeys - number of packed bitsets.
+	 * @param key - packed bitset to search for.
+	 * @param numWords - number of words per packed bitset.
+	 * @return the index of the given key if present, otherwise (-(insertion point) - 1) (following {@link java.util.Arrays#binarySearch(long[], long)}).
+	 */
+	public static int search(long[] keys, int numKeys, long[] key, int numWords)
+	{
+		int low = 0;
+		int high = numKeys-1;
+		while(low <= high)
+		{
+			final int mid = (low + high) >>> 1;
+			final int comparison = compare(keys, mid*numWords, key, 0, numWords);
+			if(comparison < 0)
+			{
+				low = mid + 1;
+			}
+			else if(comparison > 0)
+			{
+				high = mid - 1;
+			}
+			else
+			{
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * @return true if and only if the first packed bitset is a subset of (or equal to) the second packed bitset.
+	 */
+	public static boolean isSubset(long[] a, int aoffset, long[] b, int boffset, int numWords)
+	{
+		for(int i=0;i<numWords;i++)
+		{
+			if((a[aoffset+i] & ~b[boffset+i]) != 0L)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of bits set in the packed bitset.
+	 */
+	public static int cardinality(long[] a, int offset, int numWords)
+	{
+		int cardinality = 0;
+		for(int i=0;i<numWords;i++)
+		{
+			cardinality += Long.bitCount(a[offset+i]);
+		}
+		return cardinality;
+	}
+
+	/**
+	 * @see #compare(long[], int, long[], int, int)
+	 */
+	public static int compare(LongBuffer a, int aoffset, long[] b, int boffset, int numWords)
+	{
+		for(int i=numWords-1;i>=0;i--)
+		{
+			final long aword = a.get(aoffset+i);
+			final long bword = b[boffset+i];
+			if(aword != bword)
+			{
+				return Long.compareUnsigned(aword, bword);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @see #search(long[], int, long[], int)
+	 */
+	public static int search(LongBuffer keys, int numKeys, long[] key, int numWords)
+	{
+		int low = 0;
+		int high = numKeys-1;
+		while(low <= high)
+		{
+			final int mid = (low + high) >>> 1;
+			final int comparison = compare(keys, mid*numWords, key, 0, numWords);
+			if(comparison < 0)
+			{
+				low = mid + 1;
+			}
+			else if(comparison > 0)
+			{
+				high = mid - 1;
+			}
+			else
+			{
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * @see #isSubset(long[], int, long[], int, int)
+	 */
+	public static boolean isSubset(LongBuffer a, int aoffset, long[] b, int boffset, int numWords)
+	{
+		for(int i=0;i<numWords;i++)
+		{
+			if((a.get(aoffset+i) & ~b[boffset+i]) != 0L)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @see #isSubset(long[], int, long[], int, int)
+	 */
+	public static boolean isSubset(long[] a, int aoffset, LongBuffer b, int boffset, int numWords)
+	{
+		for(int i=0;i<numWords;i++)
+		{
+			if((a[aoffset+i] & ~b.get(boffset+i)) != 0L)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,184 @@
+package containmentcache.util;
+
+import java.util.BitSet;
+
+import net.jcip.annotations.Immutable;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Immutable bit vector supporting rank and select queries, the building block of succinct data structures.
+ *
+ * Bits are packed in {@code long} words, along with the number of ones before every block of {@value #BLOCK_WORDS} words. Rank
+ * reads a block count and counts the bits of at most {@value #BLOCK_WORDS} words, select binary searches the block counts first.
+ * The counts add an overhead of one {@code int} per {@value #BLOCK_WORDS} words (6.25%).
+ */
+@Immutable
+public final class RankSelectBitVector {
+
+	//Number of words per block.
+	private final static int BLOCK_WORDS = 8;
+
+	private final long[] words;
+	//Number of bits.
+	private final int length;
+	//Number of ones before every block, followed by the total number of ones.
+	private final int[] blockRanks;
+
+	/**
+	 * @param bits - bits of the vector.
+	 * @param length - length of the vector, at least the length of the given bits.
+	 */
+	public RankSelectBitVector(BitSet bits, int length)
+	{
+		Preconditions.checkArgument(bits.length() <= length, "Bits are longer than the given length.");
+		this.length = length;
+		words = new long[(length + Long.SIZE - 1) / Long.SIZE];
+		final long[] bitwords = bits.toLongArray();
+		System.arraycopy(bitwords, 0, words, 0, bitwords.length);
+
+		final int numblocks = (words.length + BLOCK_WORDS - 1) / BLOCK_WORDS;
+		blockRanks = new int[numblocks + 1];
+		int rank = 0;
+		for(int w=0;w<words.length;w++)
+		{
+			if(w % BLOCK_WORDS == 0)
+			{
+				blockRanks[w / BLOCK_WORDS] = rank;
+			}
+			rank += Long.bitCount(words[w]);
+		}
+		blockRanks[numblocks] = rank;
+	}
+
+	/**
+	 * @return the number of bits in the vector.
+	 */
+	public int length()
+	{
+		return length;
+	}
+
+	/**
+	 * @return the number of ones in the vector.
+	 */
+	public int cardinality()
+	{
+		return blockRanks[blockRanks.length-1];
+	}
+
+	/**
+	 * @param index - a bit index.
+	 * @return the value of the bit at the given index.
+	 */
+	public boolean get(int index)
+	{
+		checkIndex(index, length-1);
+		return (words[index >>> 6] & (1L << index)) != 0L;
+	}
+
+	/**
+	 * @param index - a bit index, between 0 and the length of the vector.
+	 * @return the number of ones in the bits before the given index.
+	 */
+	public int rank1(int index)
+	{
+		checkIndex(index, length);
+		final int word = index >>> 6;
+		int rank = blockRanks[word / BLOCK_WORDS];
+		for(int w=word - word % BLOCK_WORDS;w<word;w++)
+		{
+			rank += Long.bitCount(words[w]);
+		}
+		if((index & 63) != 0)
+		{
+			rank += Long.bitCount(words[word] & (-1L >>> (Long.SIZE - (index & 63))));
+		}
+		return rank;
+	}
+
+	/**
+	 * @param index - a bit index, between 0 and the length of the vector.
+	 * @return the number of zeros in the bits before the given index.
+	 */
+	public int rank0(int index)
+	{
+		return index - rank1(index);
+	}
+
+	/**
+	 * @param k - a positive rank.
+	 * @return the index of the k-th one of the vector.
+	 * @throws IllegalArgumentException if there are less than k ones.
+	 */
+	public int select1(int k)
+	{
+		Preconditions.checkArgument(k > 0 && k <= cardinality(), "Rank "+k+" out of bounds.");
+		return select(k, true);
+	}
+
+	/**
+	 * @param k - a positive rank.
+	 * @return the index of the k-th zero of the vector.
+	 * @throws IllegalArgumentException if there are less than k zeros.
+	 */
+	public int select0(int k)
+	{
+		Preconditions.checkArgument(k > 0 && k <= length - cardinality(), "Rank "+k+" out of bounds.");
+		return select(k, false);
+	}
+
+	private int select(int k, boolean ones)
+	{
+		//Find the last block with less than k matching bits before it.
+		int low = 0;
+		int high = blockRanks.length-2;
+		while(low < high)
+		{
+			final int mid = (low + high + 1) >>> 1;
+			if(getBlockRank(mid, ones) < k)
+			{
+				low = mid;
+			}
+			else
+			{
+				high = mid - 1;
+			}
+		}
+		int remaining = k - getBlockRank(low, ones);
+
+		//Scan the words of the block.
+		for(int w=low*BLOCK_WORDS;w<words.length;w++)
+		{
+			long word = ones ? words[w] : ~words[w];
+			final int count = Long.bitCount(word);
+			if(count >= remaining)
+			{
+				for(int i=1;i<remaining;i++)
+				{
+					word &= word - 1;
+				}
+				return w * Long.SIZE + Long.numberOfTrailingZeros(word);
+			}
+			remaining -= count;
+		}
+		throw new IllegalStateException("Rank "+k+" not found.");
+	}
+
+	/**
+	 * @return the number of ones (or zeros) before the given block.
+	 */
+	private int getBlockRank(int block, boolean ones)
+	{
+		return ones ? blockRanks[block] : block * BLOCK_WORDS * Long.SIZE - blockRanks[block];
+	}
+
+	private static void checkIndex(int index, int max)
+	{
+		if(index < 0 || index > max)
+		{
+			throw new IndexOutOfBoundsException("Index "+index+" out of bounds [0,"+max+"].");
+		}
+	}
+
+}
@@ -0,0 +1,517 @@
+package containmentcache.zdd;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A hash-consed store of zero-suppressed decision diagram (ZDD) nodes, representing families of sets of non-negative integers, from
+ * Minato, Shin-ichi. "Zero-suppressed BDDs for set manipulation in combinatorial problems." DAC. 1993.
+ *
+ * The families are weighted (multisets of sets), with one terminal per weight: node 0 is the empty family, node 1 the family containing the empty set once,
+ * and other terminals contain the empty set a given number of times. Every other node is an integer id with a variable, a low child (the sets without the variable)
+ * and a high child (the sets with the variable, without it), and the variables strictly increase from a node to its children. Nodes are unique (two nodes never
+ * have the same variable and children) and a node never has the empty family as its high child, which makes families sharing subsets and suffixes share nodes.
+ * Union and difference add and subtract the weights of the sets.
+ *
+ * Nodes are immutable, so the total weight of the family rooted at each node is computed when the node is created. Nodes that are no longer
+ * reachable from the roots of interest are reclaimed by {@link #compact(int...)}.
+ *
+ * Queries only read the nodes, and memoize their traversals in scratch space owned by the calling thread, so they can run concurrently
+ * as long as no node is created meanwhile.
+ */
+@NotThreadSafe
+class ZDD {
+
+	final static int EMPTY = 0;
+	final static int BASE = 1;
+
+	//Variable of the terminals, larger than any variable.
+	private final static int TERMINAL_VARIABLE = Integer.MAX_VALUE;
+	private final static int INITIAL_CAPACITY = 1 << 10;
+
+	private int[] fVariables;
+	//The children of every node, minus the weight for the terminals other than the empty family.
+	private int[] fLows;
+	private int[] fHighs;
+	//Total weight of the family of every node.
+	private long[] fCardinalities;
+	private int fNumNodes;
+
+	//Open addressing unique table of node ids (0 for empty slots, as the empty family is never stored).
+	private int[] fTable;
+
+	//Every thread's query memoization.
+	private final ThreadLocal<Memo> fMemos;
+
+	ZDD()
+	{
+		fVariables = new int[INITIAL_CAPACITY];
+		fLows = new int[INITIAL_CAPACITY];
+		fHighs = new int[INITIAL_CAPACITY];
+		fCardinalities = new long[INITIAL_CAPACITY];
+		fMemos = ThreadLocal.withInitial(Memo::new);
+
+		fVariables[EMPTY] = TERMINAL_VARIABLE;
+		fCardinalities[EMPTY] = 0;
+		fVariables[BASE] = TERMINAL_VARIABLE;
+		fLows[BASE] = -1;
+		fHighs[BASE] = -1;
+		fCardinalities[BASE] = 1;
+		fNumNodes = 2;
+
+		fTable = new int[2*INITIAL_CAPACITY];
+		fTable[hash(TERMINAL_VARIABLE, -1, -1) & (fTable.length - 1)] = BASE;
+	}
+
+	/**
+	 * @return the number of nodes currently allocated (including unreachable ones).
+	 */
+	int getNumNodes()
+	{
+		return fNumNodes;
+	}
+
+	/**
+	 * @return true if the given node is a terminal.
+	 */
+	boolean isTerminal(int node)
+	{
+		return fVariables[node] == TERMINAL_VARIABLE;
+	}
+
+	/**
+	 * @return the unique terminal of the family containing the empty set with the given weight, the empty family for a zero weight.
+	 */
+	int terminal(long weight)
+	{
+		Preconditions.checkArgument(weight >= 0 && weight <= Integer.MAX_VALUE, "Weight "+weight+" out of bounds.");
+		return weight == 0 ? EMPTY : findOrCreate(TERMINAL_VARIABLE, (int) -weight, (int) -weight, weight);
+	}
+
+	/**
+	 * @return the unique node with the given variable and children.
+	 */
+	int makeNode(int variable, int low, int high)
+	{
+		if(high == EMPTY)
+		{
+			return low;
+		}
+		return findOrCreate(variable, low, high, fCardinalities[low] + fCardinalities[high]);
+	}
+
+	private int findOrCreate(int variable, int low, int high, long cardinality)
+	{
+		final int mask = fTable.length - 1;
+		int slot = hash(variable, low, high) & mask;
+		while(fTable[slot] != 0)
+		{
+			final int node = fTable[slot];
+			if(fVariables[node] == variable && fLows[node] == low && fHighs[node] == high)
+			{
+				return node;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		if(fNumNodes == fVariables.length)
+		{
+			grow();
+			return findOrCreate(variable, low, high, cardinality);
+		}
+		final int node = fNumNodes++;
+		fVariables[node] = variable;
+		fLows[node] = low;
+		fHighs[node] = high;
+		fCardinalities[node] = cardinality;
+		fTable[slot] = node;
+		if(2*fNumNodes > fTable.length)
+		{
+			rehash(2*fTable.length);
+		}
+		return node;
+	}
+
+	/**
+	 * @return the node of the family containing only the given set, once.
+	 */
+	int single(BitSet set)
+	{
+		int node = BASE;
+		for(int v = set.length()-1; v >= 0; v = set.previousSetBit(v-1))
+		{
+			node = makeNode(v, EMPTY, node);
+		}
+		return node;
+	}
+
+	/**
+	 * @return the node of the union of the two given families, the weights of the sets adding up.
+	 */
+	int union(int a, int b)
+	{
+		return union(a, b, new HashMap<Long,Integer>());
+	}
+
+	private int union(int a, int b, Map<Long,Integer> memo)
+	{
+		if(a == EMPTY)
+		{
+			return b;
+		}
+		if(b == EMPTY)
+		{
+			return a;
+		}
+		if(isTerminal(a) && isTerminal(b))
+		{
+			return terminal(fCardinalities[a] + fCardinalities[b]);
+		}
+		final Long key = key(a, b);
+		final Integer memoized = memo.get(key);
+		if(memoized != null)
+		{
+			return memoized;
+		}
+		final int va = fVariables[a];
+		final int vb = fVariables[b];
+		final int result;
+		if(va < vb)
+		{
+			result = makeNode(va, union(fLows[a], b, memo), fHighs[a]);
+		}
+		else if(va > vb)
+		{
+			result = makeNode(vb, union(a, fLows[b], memo), fHighs[b]);
+		}
+		else
+		{
+			result = makeNode(va, union(fLows[a], fLows[b], memo), union(fHighs[a], fHighs[b], memo));
+		}
+		memo.put(key, result);
+		return result;
+	}
+
+	/**
+	 * @return the node of the difference between the first and the second given families, the weights of the sets of the second one being
+	 * subtracted from those of the first one (down to zero).
+	 */
+	int difference(int a, int b)
+	{
+		return difference(a, b, new HashMap<Long,Integer>());
+	}
+
+	private int difference(int a, int b, Map<Long,Integer> memo)
+	{
+		if(a == EMPTY || a == b)
+		{
+			return EMPTY;
+		}
+		if(b == EMPTY)
+		{
+			return a;
+		}
+		if(isTerminal(a) && isTerminal(b))
+		{
+			return terminal(Math.max(0, fCardinalities[a] - fCardinalities[b]));
+		}
+		final Long key = key(a, b);
+		final Integer memoized = memo.get(key);
+		if(memoized != null)
+		{
+			return memoized;
+		}
+		final int va = fVariables[a];
+		final int vb = fVariables[b];
+		final int result;
+		if(va < vb)
+		{
+			result = makeNode(va, difference(fLows[a], b, memo), fHighs[a]);
+		}
+		else if(va > vb)
+		{
+			result = difference(a, fLows[b], memo);
+		}
+		else
+		{
+			result = makeNode(va, difference(fLows[a], fLows[b], memo), difference(fHighs[a], fHighs[b], memo));
+		}
+		memo.put(key, result);
+		return result;
+	}
+
+	/**
+	 * @return the total weight of the family of the given node.
+	 */
+	long count(int node)
+	{
+		return fCardinalities[node];
+	}
+
+	/**
+	 * @return the total weight of the sets in the family of the given node that are subsets of the given query.
+	 */
+	long countSubsets(int node, BitSet query)
+	{
+		return countSubsets(node, query, newMemo());
+	}
+
+	private long countSubsets(int node, BitSet query, Memo memo)
+	{
+		if(isTerminal(node))
+		{
+			return fCardinalities[node];
+		}
+		if(memo.stamps[node] == memo.stamp)
+		{
+			return memo.values[node];
+		}
+		final int variable = fVariables[node];
+		long count = countSubsets(fLows[node], query, memo);
+		if(query.get(variable))
+		{
+			count += countSubsets(fHighs[node], query, memo);
+		}
+		memo.stamps[node] = memo.stamp;
+		memo.values[node] = count;
+		return count;
+	}
+
+	/**
+	 * @return the total weight of the sets in the family of the given node that are supersets of the given query.
+	 */
+	long countSupersets(int node, BitSet query)
+	{
+		return countSupersets(node, query.stream().toArray(), 0, newMemo());
+	}
+
+	/*
+	 * A node can only be reached with a non-zero number of supersets with the index of the first query element
+	 * not smaller than its variable, so the memoization only depends on the node.
+	 */
+	private long countSupersets(int node, int[] query, int index, Memo memo)
+	{
+		if(index == query.length)
+		{
+			return fCardinalities[node];
+		}
+		final int variable = fVariables[node];
+		if(variable > query[index])
+		{
+			//Includes the terminals.
+			return 0;
+		}
+		if(memo.stamps[node] == memo.stamp)
+		{
+			return memo.values[node];
+		}
+		final long count;
+		if(variable < query[index])
+		{
+			count = countSupersets(fLows[node], query, index, memo) + countSupersets(fHighs[node], query, index, memo);
+		}
+		else
+		{
+			count = countSupersets(fHighs[node], query, index+1, memo);
+		}
+		memo.stamps[node] = memo.stamp;
+		memo.values[node] = count;
+		return count;
+	}
+
+	/**
+	 * @param consumer - consumer of the sets of the family of the given node that are subsets of the query. The given bitset is reused between calls.
+	 */
+	void forEachSubset(int node, BitSet query, Consumer<BitSet> consumer)
+	{
+		forEachSubset(node, query, new BitSet(), consumer);
+	}
+
+	private void forEachSubset(int node, BitSet query, BitSet path, Consumer<BitSet> consumer)
+	{
+		if(node == EMPTY)
+		{
+			return;
+		}
+		if(isTerminal(node))
+		{
+			consumer.accept(path);
+			return;
+		}
+		final int variable = fVariables[node];
+		forEachSubset(fLows[node], query, path, consumer);
+		if(query.get(variable))
+		{
+			path.set(variable);
+			forEachSubset(fHighs[node], query, path, consumer);
+			path.clear(variable);
+		}
+	}
+
+	/**
+	 * @param consumer - consumer of the sets of the family of the given node that are supersets of the query. The given bitset is reused between calls.
+	 */
+	void forEachSuperset(int node, BitSet query, Consumer<BitSet> consumer)
+	{
+		forEachSuperset(node, query.stream().toArray(), 0, new BitSet(), consumer);
+	}
+
+	private void forEachSuperset(int node, int[] query, int index, BitSet path, Consumer<BitSet> consumer)
+	{
+		if(node == EMPTY)
+		{
+			return;
+		}
+		if(isTerminal(node))
+		{
+			if(index == query.length)
+			{
+				consumer.accept(path);
+			}
+			return;
+		}
+		final int variable = fVariables[node];
+		if(index < query.length && variable > query[index])
+		{
+			return;
+		}
+		final boolean required = index < query.length && variable == query[index];
+		if(!required)
+		{
+			forEachSuperset(fLows[node], query, index, path, consumer);
+		}
+		path.set(variable);
+		forEachSuperset(fHighs[node], query, required ? index+1 : index, path, consumer);
+		path.clear(variable);
+	}
+
+	/**
+	 * Reclaim all the nodes that are not reachable from the given roots.
+	 * @param roots - the nodes to keep.
+	 * @return the new ids of the given roots, in the same order.
+	 */
+	int[] compact(int... roots)
+	{
+		//Mark the reachable nodes. Children always have smaller ids than their parents.
+		final boolean[] reachable = new boolean[fNumNodes];
+		reachable[EMPTY] = true;
+		reachable[BASE] = true;
+		for(int root : roots)
+		{
+			reachable[root] = true;
+		}
+		for(int node = fNumNodes-1; node > BASE; node--)
+		{
+			if(reachable[node] && !isTerminal(node))
+			{
+				reachable[fLows[node]] = true;
+				reachable[fHighs[node]] = true;
+			}
+		}
+
+		//Move the reachable nodes down, in increasing id order.
+		final int[] ids = new int[fNumNodes];
+		ids[EMPTY] = EMPTY;
+		ids[BASE] = BASE;
+		int numnodes = 2;
+		for(int node = 2; node < fNumNodes; node++)
+		{
+			if(reachable[node])
+			{
+				final int id = numnodes++;
+				ids[node] = id;
+				fVariables[id] = fVariables[node];
+				fLows[id] = isTerminal(node) ? fLows[node] : ids[fLows[node]];
+				fHighs[id] = isTerminal(node) ? fHighs[node] : ids[fHighs[node]];
+				fCardinalities[id] = fCardinalities[node];
+			}
+		}
+		fNumNodes = numnodes;
+		rehash(fTable.length);
+
+		final int[] newroots = new int[roots.length];
+		for(int i=0;i<roots.length;i++)
+		{
+			newroots[i] = ids[roots[i]];
+		}
+		return newroots;
+	}
+
+	/**
+	 * @return the calling thread's memoization, emptied and large enough for all the nodes.
+	 */
+	private Memo newMemo()
+	{
+		final Memo memo = fMemos.get();
+		if(memo.stamps.length < fNumNodes)
+		{
+			memo.stamps = new int[fVariables.length];
+			memo.values = new long[fVariables.length];
+			memo.stamp = 0;
+		}
+		memo.stamp++;
+		if(memo.stamp == Integer.MAX_VALUE)
+		{
+			Arrays.fill(memo.stamps, 0);
+			memo.stamp = 1;
+		}
+		return memo;
+	}
+
+	private void grow()
+	{
+		final int capacity = 2*fVariables.length;
+		fVariables = Arrays.copyOf(fVariables, capacity);
+		fLows = Arrays.copyOf(fLows, capacity);
+		fHighs = Arrays.copyOf(fHighs, capacity);
+		fCardinalities = Arrays.copyOf(fCardinalities, capacity);
+	}
+
+	private void rehash(int capacity)
+	{
+		fTable = new int[capacity];
+		final int mask = capacity - 1;
+		for(int node = BASE; node < fNumNodes; node++)
+		{
+			int slot = hash(fVariables[node], fLows[node], fHighs[node]) & mask;
+			while(fTable[slot] != 0)
+			{
+				slot = (slot + 1) & mask;
+			}
+			fTable[slot] = node;
+		}
+	}
+
+	private static int hash(int variable, int low, int high)
+	{
+		//Mix the three ids, as the table is indexed by the lowest bits and ids are dense.
+		long hash = variable * 0x9E3779B97F4A7C15L + low * 0xC2B2AE3D27D4EB4FL + high * 0x165667B19E3779F9L;
+		hash ^= hash >>> 29;
+		hash *= 0xBF58476D1CE4E5B9L;
+		hash ^= hash >>> 32;
+		return (int) hash;
+	}
+
+	private static Long key(int a, int b)
+	{
+		return ((long) a << 32) | (b & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Memoization of a query, valid for the nodes stamped with the current stamp.
+	 */
+	private static class Memo
+	{
+		private int[] stamps = new int[INITIAL_CAPACITY];
+		private long[] values = new long[INITIAL_CAPACITY];
+		private int stamp = 0;
+	}
+
+}
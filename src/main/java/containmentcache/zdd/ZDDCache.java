@@ -0,0 +1,166 @@
+package containmentcache.zdd;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import lombok.NonNull;
+import net.jcip.annotations.NotThreadSafe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.BiMap;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.SetMultimap;
+
+import containmentcache.ICacheEntry;
+import containmentcache.IContainmentCache;
+import containmentcache.decorators.ThreadSafeContainmentCacheDecorator;
+import containmentcache.util.NestedIterables;
+
+/**
+ * A containment cache representing the family of sets it contains as a single zero-suppressed decision diagram (see {@link ZDD}),
+ * the variables being the indices of the elements in the permutation, and the weight of every set being its number of entries.
+ *
+ * Sets sharing prefixes or suffixes share nodes, which makes the family compact when the cached sets are highly overlapping. Sub/superset counting
+ * is done with memoized traversals of the diagram that use the cached node cardinalities, so whole families below a node are counted
+ * without being enumerated. The traversals are recursive, to a depth of at most the size of the universe.
+ *
+ * Entries are bucketed by bitset on the side, to enumerate the entries of the sets found in the diagram. Queries can run concurrently
+ * (for instance under the read lock of a {@link ThreadSafeContainmentCacheDecorator}), but not with modifications.
+ *
+ * @param <E> - the elements the sets.
+ * @param <C> - the type of cache entries.
+ */
+@NotThreadSafe
+public class ZDDCache<E,C extends ICacheEntry<E>> implements IContainmentCache<E,C> {
+
+	//Minimum number of nodes before unreachable nodes are reclaimed.
+	private final static int MIN_COMPACTION_NODES = 1 << 12;
+
+	private final ImmutableBiMap<E, Integer> permutation;
+
+	private final ZDD zdd;
+	//Root node of the family of sets in the cache.
+	private int fRoot;
+	//Number of nodes right after the last compaction.
+	private int fCompactedNumNodes;
+
+	//The entries of the data structure, hashed by their bitset representation.
+	private final SetMultimap<BitSet,C> entries;
+
+	public ZDDCache(@NonNull BiMap<E, Integer> permutation)
+	{
+		//Check that permutation is from 0 .. N-1.
+		int N = permutation.size()-1;
+		Collection<Integer> image = permutation.values();
+		for(int i=0;i<=N;i++)
+		{
+			if(!image.contains(i))
+			{
+				throw new IllegalArgumentException("Permutation does not map any element to valid index "+i+", must be an invalid permutation.");
+			}
+		}
+		this.permutation = ImmutableBiMap.copyOf(permutation);
+
+		zdd = new ZDD();
+		fRoot = ZDD.EMPTY;
+		fCompactedNumNodes = 0;
+		entries = HashMultimap.create();
+	}
+
+	@Override
+	public void add(C set) {
+		final BitSet bs = getBitSet(set);
+		if(entries.put(bs, set))
+		{
+			fRoot = zdd.union(fRoot, zdd.single(bs));
+			compactIfNeeded();
+		}
+	}
+
+	@Override
+	public void remove(C set) {
+		final BitSet bs = getBitSet(set);
+		if(entries.remove(bs, set))
+		{
+			fRoot = zdd.difference(fRoot, zdd.single(bs));
+			compactIfNeeded();
+		}
+	}
+
+	@Override
+	public boolean contains(C set) {
+		final BitSet bs = getBitSet(set);
+		return entries.containsEntry(bs, set);
+	}
+
+	@Override
+	public Iterable<C> getSets() {
+		return entries.values();
+	}
+
+	@Override
+	public Iterable<C> getSubsets(ICacheEntry<E> set) {
+		final BitSet bs = getBitSet(set);
+		return new Iterable<C>(){
+			@Override
+			public Iterator<C> iterator() {
+				final List<BitSet> subsets = new ArrayList<BitSet>();
+				zdd.forEachSubset(fRoot, bs, subset -> subsets.add((BitSet) subset.clone()));
+				return NestedIterables.nest(subsets, entries.asMap()).iterator();
+			}};
+	}
+
+	@Override
+	public int getNumberSubsets(ICacheEntry<E> set) {
+		final BitSet bs = getBitSet(set);
+		return (int) zdd.countSubsets(fRoot, bs);
+	}
+
+	@Override
+	public Iterable<C> getSupersets(ICacheEntry<E> set) {
+		final BitSet bs = getBitSet(set);
+		return new Iterable<C>(){
+			@Override
+			public Iterator<C> iterator() {
+				final List<BitSet> supersets = new ArrayList<BitSet>();
+				zdd.forEachSuperset(fRoot, bs, superset -> supersets.add((BitSet) superset.clone()));
+				return NestedIterables.nest(supersets, entries.asMap()).iterator();
+			}};
+	}
+
+	@Override
+	public int getNumberSupersets(ICacheEntry<E> set) {
+		final BitSet bs = getBitSet(set);
+		return (int) zdd.countSupersets(fRoot, bs);
+	}
+
+	@Override
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Reclaim unreachable nodes once they make up most of the diagram.
+	 */
+	private void compactIfNeeded()
+	{
+		final int numnodes = zdd.getNumNodes();
+		if(numnodes > MIN_COMPACTION_NODES && numnodes > 2*fCompactedNumNodes)
+		{
+			fRoot = zdd.compact(fRoot)[0];
+			fCompactedNumNodes = zdd.getNumNodes();
+		}
+	}
+
+	private BitSet getBitSet(ICacheEntry<E> set) {
+		Preconditions.checkNotNull(set);
+		Preconditions.checkNotNull(set.getBitSet());
+		Preconditions.checkArgument(permutation.keySet().containsAll(set.getElements()));
+		return set.getBitSet();
+	}
+
+}
@@ -1,7 +1,10 @@
 package containmentcache;
 
+import static org.junit.Assert.assertEquals;
+
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
@@ -11,8 +14,10 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.stream.Collectors;
@@ -128,6 +133,76 @@ public abstract class AThreadSafeContainmentCacheTests extends AContainmentCache
 		
 	}
 	
+	/**
+	 * Check that queries running concurrently under the read lock return the same answers as when run alone.
+	 */
+	@Test
+	public void testConcurrentReads() throws InterruptedException, ExecutionException
+	{
+		final Random random = new Random(0);
+		final Set<Integer> universe = IntStream.range(0, 100).boxed().collect(Collectors.toSet());
+		final ImmutableBiMap<Integer, Integer> permutation = PermutationUtils.makePermutation(universe);
+		final ILockableContainmentCache<Integer,SimpleCacheSet<Integer>> cache = getCache(permutation, COMPARATOR);
+		for(int i=0;i<5000;i++)
+		{
+			cache.add(new SimpleCacheSet<Integer>(universe.stream().filter(e -> random.nextInt(10) == 0).collect(Collectors.toSet()), permutation));
+		}
+		
+		//Answer some queries alone first.
+		final List<SimpleCacheSet<Integer>> queries = new ArrayList<SimpleCacheSet<Integer>>();
+		final List<Integer> numsubsets = new ArrayList<Integer>();
+		final List<Integer> numsupersets = new ArrayList<Integer>();
+		for(int q=0;q<20;q++)
+		{
+			final int density = q % 2 == 0 ? 2 : 20;
+			final SimpleCacheSet<Integer> query = new SimpleCacheSet<Integer>(universe.stream().filter(e -> random.nextInt(density) == 0).collect(Collectors.toSet()), permutation);
+			queries.add(query);
+			numsubsets.add(cache.getNumberSubsets(query));
+			numsupersets.add(cache.getNumberSupersets(query));
+		}
+		
+		final int numthreads = 8;
+		final ExecutorService executor = Executors.newFixedThreadPool(numthreads);
+		try
+		{
+			final List<Future<Integer>> wronganswers = new ArrayList<Future<Integer>>();
+			for(int t=0;t<numthreads;t++)
+			{
+				wronganswers.add(executor.submit(() -> {
+					int wrong = 0;
+					for(int round=0;round<20;round++)
+					{
+						for(int q=0;q<queries.size();q++)
+						{
+							cache.getReadLock().lock();
+							try
+							{
+								final SimpleCacheSet<Integer> query = queries.get(q);
+								wrong += cache.getNumberSubsets(query) == numsubsets.get(q) ? 0 : 1;
+								wrong += cache.getNumberSupersets(query) == numsupersets.get(q) ? 0 : 1;
+								wrong += Iterables.size(cache.getSubsets(query)) == numsubsets.get(q) ? 0 : 1;
+								wrong += Iterables.size(cache.getSupersets(query)) == numsupersets.get(q) ? 0 : 1;
+							}
+							finally
+							{
+								cache.getReadLock().unlock();
+							}
+						}
+					}
+					return wrong;
+				}));
+			}
+			for(Future<Integer> wrong : wronganswers)
+			{
+				assertEquals(0, wrong.get().intValue());
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+	
 	/**
 	 * Smoke tests.
 	 */
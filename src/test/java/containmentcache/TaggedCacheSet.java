@@ -0,0 +1,28 @@
+package containmentcache;
+
+import java.util.Set;
+
+import lombok.EqualsAndHashCode;
+
+import com.google.common.collect.BiMap;
+
+/**
+ * A cache set entry with a tag, to make distinct entries with the same set.
+ * @param <E> - type of elements in cache set entry.
+ */
+@EqualsAndHashCode(callSuper = true)
+public class TaggedCacheSet<E> extends SimpleCacheSet<E> {
+
+	private final int tag;
+
+	public TaggedCacheSet(Set<E> elements, BiMap<E, Integer> permutation, int tag) {
+		super(elements, permutation);
+		this.tag = tag;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+"#"+tag;
+	}
+
+}
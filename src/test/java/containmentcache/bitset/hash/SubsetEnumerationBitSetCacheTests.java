@@ -0,0 +1,40 @@
+package containmentcache.bitset.hash;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Comparator;
+
+import org.junit.Test;
+
+import com.google.common.collect.BiMap;
+import com.google.common.collect.ImmutableSet;
+
+import containmentcache.AContainmentCacheTests;
+import containmentcache.ICacheEntry;
+import containmentcache.IContainmentCache;
+import containmentcache.SimpleCacheSet;
+import containmentcache.bitset.simple.SimpleBitSetCache;
+
+public class SubsetEnumerationBitSetCacheTests extends AContainmentCacheTests {
+
+	@Override
+	protected <E, C extends ICacheEntry<E>> IContainmentCache<E, C> getCache(BiMap<E, Integer> permutation, Comparator<E> comparator) {
+		return new SubsetEnumerationBitSetCache<E,C>(permutation, new SimpleBitSetCache<E,C>(permutation));
+	}
+
+	@Test
+	public void testContainsSubset() {
+		final SubsetEnumerationBitSetCache<Integer, SimpleCacheSet<Integer>> cache = new SubsetEnumerationBitSetCache<>(PERMUTATION, new SimpleBitSetCache<>(PERMUTATION), 3);
+
+		cache.add(new SimpleCacheSet<Integer>(ImmutableSet.of(1, 2), PERMUTATION));
+
+		//Enumerated.
+		assertTrue(cache.containsSubset(new SimpleCacheSet<Integer>(ImmutableSet.of(1, 2, 3), PERMUTATION)));
+		assertFalse(cache.containsSubset(new SimpleCacheSet<Integer>(ImmutableSet.of(1, 3, 4), PERMUTATION)));
+		//Above the cutoff, answered by the fallback.
+		assertTrue(cache.containsSubset(new SimpleCacheSet<Integer>(ImmutableSet.of(1, 2, 3, 4), PERMUTATION)));
+		assertFalse(cache.containsSubset(new SimpleCacheSet<Integer>(ImmutableSet.of(1, 3, 4, 5), PERMUTATION)));
+	}
+
+}
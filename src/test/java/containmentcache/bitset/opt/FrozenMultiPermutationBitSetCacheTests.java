@@ -0,0 +1,212 @@
+package containmentcache.bitset.opt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableBiMap;
+
+import containmentcache.SimpleCacheSet;
+import containmentcache.TaggedCacheSet;
+import containmentcache.TestUtils;
+import containmentcache.bitset.opt.sortedset.redblacktree.RedBlackTree;
+import containmentcache.util.PermutationUtils;
+
+public class FrozenMultiPermutationBitSetCacheTests {
+
+	private static final int NUM_ORDERINGS = 5;
+	private static final long SEED = 0;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testFreeze()
+	{
+		testFreeze(false);
+	}
+
+	@Test
+	public void testFreezeOffHeap()
+	{
+		testFreeze(true);
+	}
+
+	/**
+	 * Freeze a populated cache and check that it answers every query as the original one.
+	 */
+	private void testFreeze(boolean offHeap)
+	{
+		final Random random = new Random(SEED);
+		final Set<Integer> universe = IntStream.range(0, 100).boxed().collect(Collectors.toSet());
+		final ImmutableBiMap<Integer, Integer> permutation = PermutationUtils.makePermutation(universe);
+
+		final MultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>> cache = new MultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>>(permutation, PermutationUtils.makeNPermutations(permutation, SEED, NUM_ORDERINGS), RedBlackTree::new);
+		final List<SimpleCacheSet<Integer>> sets = TestUtils.generateRandomSets(random, 500, permutation);
+		sets.forEach(cache::add);
+		//Duplicate bitset with a different entry.
+		cache.add(new TaggedCacheSet<Integer>(TestUtils.bitSetToSet(sets.get(0).getBitSet()), permutation, 1));
+
+		final FrozenMultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>> frozen = cache.freeze(offHeap);
+		assertEquals(cache.size(), frozen.size());
+		assertEquals(HashMultiset.create(cache.getSets()), HashMultiset.create(frozen.getSets()));
+		sets.forEach(set -> assertTrue(frozen.contains(set)));
+		assertFalse(frozen.contains(TestUtils.generateRandomSet(random, permutation)));
+
+		for(int i=0;i<100;i++)
+		{
+			//Queries around cached sets, so that they have sub/supersets.
+			final BitSet bs = (BitSet) sets.get(random.nextInt(sets.size())).getBitSet().clone();
+			bs.flip(random.nextInt(universe.size()));
+			final SimpleCacheSet<Integer> query = new SimpleCacheSet<Integer>(TestUtils.bitSetToSet(bs), permutation);
+
+			assertEquals(cache.getNumberSubsets(query), frozen.getNumberSubsets(query));
+			assertEquals(cache.getNumberSupersets(query), frozen.getNumberSupersets(query));
+			assertEquals(HashMultiset.create(cache.getSubsets(query)), HashMultiset.create(frozen.getSubsets(query)));
+			assertEquals(HashMultiset.create(cache.getSupersets(query)), HashMultiset.create(frozen.getSupersets(query)));
+		}
+	}
+
+	/**
+	 * Write a frozen cache of distinct sets to a file, map it back and check that it answers every query as the original one.
+	 */
+	@Test
+	public void testWriteMap() throws IOException
+	{
+		final Random random = new Random(SEED);
+		final Set<Integer> universe = IntStream.range(0, 100).boxed().collect(Collectors.toSet());
+		final ImmutableBiMap<Integer, Integer> permutation = PermutationUtils.makePermutation(universe);
+
+		final MultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>> cache = new MultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>>(permutation, PermutationUtils.makeNPermutations(permutation, SEED, NUM_ORDERINGS), RedBlackTree::new);
+		final List<SimpleCacheSet<Integer>> sets = TestUtils.generateRandomSets(random, 301, permutation);
+		sets.forEach(cache::add);
+
+		final File file = folder.newFile();
+		cache.freeze(true).write(file.toPath());
+		final FrozenMultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>> mapped = FrozenMultiPermutationBitSetCache.map(file.toPath(), permutation, (bs, i) -> new SimpleCacheSet<Integer>(TestUtils.bitSetToSet(bs), permutation));
+
+		assertEquals(cache.size(), mapped.size());
+		assertEquals(HashMultiset.create(cache.getSets()), HashMultiset.create(mapped.getSets()));
+		sets.forEach(set -> assertTrue(mapped.contains(set)));
+		for(int i=0;i<100;i++)
+		{
+			final BitSet bs = (BitSet) sets.get(random.nextInt(sets.size())).getBitSet().clone();
+			bs.flip(random.nextInt(universe.size()));
+			final SimpleCacheSet<Integer> query = new SimpleCacheSet<Integer>(TestUtils.bitSetToSet(bs), permutation);
+
+			assertEquals(cache.getNumberSubsets(query), mapped.getNumberSubsets(query));
+			assertEquals(cache.getNumberSupersets(query), mapped.getNumberSupersets(query));
+			assertEquals(HashMultiset.create(cache.getSupersets(query)), HashMultiset.create(mapped.getSupersets(query)));
+		}
+	}
+
+	/**
+	 * Write a frozen cache with several entries for the same bitsets, map it back and check that it has as many entries for every bitset.
+	 */
+	@Test
+	public void testWriteMapDuplicates() throws IOException
+	{
+		final Random random = new Random(SEED);
+		final Set<Integer> universe = IntStream.range(0, 100).boxed().collect(Collectors.toSet());
+		final ImmutableBiMap<Integer, Integer> permutation = PermutationUtils.makePermutation(universe);
+
+		final MultiPermutationBitSetCache<Integer, TaggedCacheSet<Integer>> cache = new MultiPermutationBitSetCache<Integer, TaggedCacheSet<Integer>>(permutation, PermutationUtils.makeNPermutations(permutation, SEED, NUM_ORDERINGS), RedBlackTree::new);
+		final List<SimpleCacheSet<Integer>> sets = TestUtils.generateRandomSets(random, 200, permutation);
+		for(SimpleCacheSet<Integer> set : sets)
+		{
+			//Up to three entries per bitset, tagged by their index.
+			final int multiplicity = 1 + random.nextInt(3);
+			for(int tag=0;tag<multiplicity;tag++)
+			{
+				cache.add(new TaggedCacheSet<Integer>(set.getElements(), permutation, tag));
+			}
+		}
+
+		final File file = folder.newFile();
+		cache.freeze().write(file.toPath());
+		final FrozenMultiPermutationBitSetCache<Integer, TaggedCacheSet<Integer>> mapped = FrozenMultiPermutationBitSetCache.map(file.toPath(), permutation, (bs, i) -> new TaggedCacheSet<Integer>(TestUtils.bitSetToSet(bs), permutation, i));
+
+		assertTrue(cache.size() > sets.size());
+		assertEquals(cache.size(), mapped.size());
+		assertEquals(HashMultiset.create(cache.getSets()), HashMultiset.create(mapped.getSets()));
+		cache.getSets().forEach(set -> assertTrue(mapped.contains(set)));
+		for(int i=0;i<100;i++)
+		{
+			final BitSet bs = (BitSet) sets.get(random.nextInt(sets.size())).getBitSet().clone();
+			bs.flip(random.nextInt(universe.size()));
+			final SimpleCacheSet<Integer> query = new SimpleCacheSet<Integer>(TestUtils.bitSetToSet(bs), permutation);
+
+			assertEquals(cache.getNumberSubsets(query), mapped.getNumberSubsets(query));
+			assertEquals(cache.getNumberSupersets(query), mapped.getNumberSupersets(query));
+			assertEquals(HashMultiset.create(cache.getSubsets(query)), HashMultiset.create(mapped.getSubsets(query)));
+			assertEquals(HashMultiset.create(cache.getSupersets(query)), HashMultiset.create(mapped.getSupersets(query)));
+		}
+	}
+
+	/**
+	 * Check that a mapped cache creates no entries when mapped or counting, and only the entries that a query returns.
+	 */
+	@Test
+	public void testMapLazyEntries() throws IOException
+	{
+		final Random random = new Random(SEED);
+		final ImmutableBiMap<Integer, Integer> permutation = PermutationUtils.makePermutation(IntStream.range(0, 100).boxed().collect(Collectors.toSet()));
+		final MultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>> cache = new MultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>>(permutation, PermutationUtils.makeNPermutations(permutation, SEED, NUM_ORDERINGS), RedBlackTree::new);
+		final List<SimpleCacheSet<Integer>> sets = TestUtils.generateRandomSets(random, 200, permutation);
+		sets.forEach(cache::add);
+
+		final File file = folder.newFile();
+		cache.freeze().write(file.toPath());
+		final AtomicInteger numCreated = new AtomicInteger();
+		final FrozenMultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>> mapped = FrozenMultiPermutationBitSetCache.map(file.toPath(), permutation, (bs, i) -> {
+			numCreated.incrementAndGet();
+			return new SimpleCacheSet<Integer>(TestUtils.bitSetToSet(bs), permutation);
+		});
+		assertEquals(cache.size(), mapped.size());
+
+		final SimpleCacheSet<Integer> query = sets.get(0);
+		final int numSupersets = mapped.getNumberSupersets(query);
+		assertEquals(cache.getNumberSupersets(query), numSupersets);
+		assertEquals(0, numCreated.get());
+
+		assertEquals(HashMultiset.create(cache.getSupersets(query)), HashMultiset.create(mapped.getSupersets(query)));
+		assertEquals(numSupersets, numCreated.get());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMapWrongUniverse() throws IOException
+	{
+		final ImmutableBiMap<Integer, Integer> permutation = PermutationUtils.makePermutation(IntStream.range(0, 10).boxed().collect(Collectors.toSet()));
+		final MultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>> cache = new MultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>>(permutation, PermutationUtils.makeNPermutations(permutation, SEED, NUM_ORDERINGS), RedBlackTree::new);
+		cache.add(TestUtils.generateRandomSet(new Random(SEED), permutation));
+
+		final File file = folder.newFile();
+		cache.freeze().write(file.toPath());
+		final ImmutableBiMap<Integer, Integer> otherpermutation = PermutationUtils.makePermutation(IntStream.range(0, 20).boxed().collect(Collectors.toSet()));
+		FrozenMultiPermutationBitSetCache.map(file.toPath(), otherpermutation, (bs, i) -> new SimpleCacheSet<Integer>(TestUtils.bitSetToSet(bs), otherpermutation));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testAddFrozen()
+	{
+		final ImmutableBiMap<Integer, Integer> permutation = PermutationUtils.makePermutation(IntStream.range(0, 10).boxed().collect(Collectors.toSet()));
+		final MultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>> cache = new MultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>>(permutation, PermutationUtils.makeNPermutations(permutation, SEED, NUM_ORDERINGS), RedBlackTree::new);
+		cache.freeze().add(TestUtils.generateRandomSet(new Random(SEED), permutation));
+	}
+
+}
@@ -0,0 +1,128 @@
+package containmentcache.bitset.opt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import com.google.common.collect.BiMap;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableBiMap;
+
+import containmentcache.AContainmentCacheTests;
+import containmentcache.ICacheEntry;
+import containmentcache.IContainmentCache;
+import containmentcache.SimpleCacheSet;
+import containmentcache.TestUtils;
+import containmentcache.bitset.simple.SimpleBitSetCache;
+import containmentcache.util.PermutationUtils;
+
+public class LogStructuredBitSetCacheTests extends AContainmentCacheTests {
+
+	private static final int NUM_ORDERINGS = 5;
+	private static final long SEED = 0;
+	//Small delta so that the tests go through flushes and merges.
+	private static final int DELTA_CAPACITY = 4;
+
+	@Override
+	protected <E, C extends ICacheEntry<E>> IContainmentCache<E, C> getCache(BiMap<E, Integer> permutation, Comparator<E> comparator) {
+		final List<BiMap<E, Integer>> additionalPermutations = PermutationUtils.makeNPermutations(permutation, SEED, NUM_ORDERINGS);
+		return new LogStructuredBitSetCache<E, C>(permutation, additionalPermutations, DELTA_CAPACITY, false);
+	}
+
+	/**
+	 * Interleave additions, removals and queries across the delta, the runs and their tombstones.
+	 */
+	@Test
+	public void testRunsAndTombstones()
+	{
+		final Random random = new Random(SEED);
+		final Set<Integer> universe = IntStream.range(0, 20).boxed().collect(Collectors.toSet());
+		final ImmutableBiMap<Integer, Integer> permutation = PermutationUtils.makePermutation(universe);
+
+		final LogStructuredBitSetCache<Integer, SimpleCacheSet<Integer>> cache = new LogStructuredBitSetCache<Integer, SimpleCacheSet<Integer>>(permutation, PermutationUtils.makeNPermutations(permutation, SEED, NUM_ORDERINGS), DELTA_CAPACITY, true);
+		final IContainmentCache<Integer, SimpleCacheSet<Integer>> reference = new SimpleBitSetCache<Integer, SimpleCacheSet<Integer>>(permutation);
+
+		final List<SimpleCacheSet<Integer>> sets = TestUtils.generateRandomSets(random, 500, permutation);
+		for(int i=0;i<sets.size();i++)
+		{
+			cache.add(sets.get(i));
+			reference.add(sets.get(i));
+			if(i % 3 == 2)
+			{
+				final SimpleCacheSet<Integer> removed = sets.get(random.nextInt(i));
+				cache.remove(removed);
+				reference.remove(removed);
+			}
+			if(i % 7 == 6)
+			{
+				//Re-add a possibly tombstoned entry.
+				final SimpleCacheSet<Integer> readded = sets.get(random.nextInt(i));
+				cache.add(readded);
+				reference.add(readded);
+			}
+			final SimpleCacheSet<Integer> query = TestUtils.generateRandomSet(random, permutation);
+			assertEquals(reference.size(), cache.size());
+			assertEquals(reference.getNumberSubsets(query), cache.getNumberSubsets(query));
+			assertEquals(reference.getNumberSupersets(query), cache.getNumberSupersets(query));
+			assertEquals(HashMultiset.create(reference.getSubsets(query)), HashMultiset.create(cache.getSubsets(query)));
+		}
+		assertTrue(cache.getNumberRuns() < 10);
+		assertEquals(HashMultiset.create(reference.getSets()), HashMultiset.create(cache.getSets()));
+
+		cache.compact();
+		assertEquals(1, cache.getNumberRuns());
+		assertEquals(HashMultiset.create(reference.getSets()), HashMultiset.create(cache.getSets()));
+		for(SimpleCacheSet<Integer> set : sets)
+		{
+			assertEquals(reference.contains(set), cache.contains(set));
+		}
+	}
+
+	/**
+	 * Check that removing most entries rebuilds their runs, instead of piling up tombstones until compaction.
+	 */
+	@Test
+	public void testTombstonesBounded()
+	{
+		final Random random = new Random(SEED);
+		final Set<Integer> universe = IntStream.range(0, 30).boxed().collect(Collectors.toSet());
+		final ImmutableBiMap<Integer, Integer> permutation = PermutationUtils.makePermutation(universe);
+
+		final LogStructuredBitSetCache<Integer, SimpleCacheSet<Integer>> cache = new LogStructuredBitSetCache<Integer, SimpleCacheSet<Integer>>(permutation, PermutationUtils.makeNPermutations(permutation, SEED, NUM_ORDERINGS), DELTA_CAPACITY, false);
+		final IContainmentCache<Integer, SimpleCacheSet<Integer>> reference = new SimpleBitSetCache<Integer, SimpleCacheSet<Integer>>(permutation);
+		final List<SimpleCacheSet<Integer>> sets = TestUtils.generateRandomSets(random, 1000, permutation);
+		sets.forEach(cache::add);
+		sets.forEach(reference::add);
+
+		Collections.shuffle(sets, random);
+		for(SimpleCacheSet<Integer> set : sets.subList(0, 900))
+		{
+			cache.remove(set);
+			reference.remove(set);
+			//A run holds at most a quarter of tombstones, and the delta at most its capacity of live entries.
+			assertTrue(3*cache.getNumberTombstones() <= cache.size() + DELTA_CAPACITY);
+		}
+		assertEquals(reference.size(), cache.size());
+		for(int i=0;i<50;i++)
+		{
+			final SimpleCacheSet<Integer> query = TestUtils.generateRandomSet(random, permutation);
+			assertEquals(reference.getNumberSubsets(query), cache.getNumberSubsets(query));
+			assertEquals(reference.getNumberSupersets(query), cache.getNumberSupersets(query));
+			assertEquals(HashMultiset.create(reference.getSupersets(query)), HashMultiset.create(cache.getSupersets(query)));
+		}
+		for(SimpleCacheSet<Integer> set : sets)
+		{
+			assertEquals(reference.contains(set), cache.contains(set));
+		}
+	}
+
+}
@@ -1,13 +1,29 @@
 package containmentcache.bitset.opt;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
 
 import com.google.common.collect.BiMap;
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.ImmutableSet;
 
 import containmentcache.AContainmentCacheTests;
 import containmentcache.ICacheEntry;
 import containmentcache.IContainmentCache;
+import containmentcache.SimpleCacheSet;
+import containmentcache.TaggedCacheSet;
+import containmentcache.TestUtils;
 import containmentcache.bitset.opt.sortedset.redblacktree.RedBlackTree;
 import containmentcache.util.PermutationUtils;
 
@@ -22,4 +38,92 @@ public class MultiPermutationBitSetCacheTest extends AContainmentCacheTests {
         return new MultiPermutationBitSetCache<E, C>(permutation, additionalPermutations, RedBlackTree::new);
 	}
 
+	/**
+	 * Check that a count-only cache counts as many sub/supersets as a regular one.
+	 */
+	@Test
+	public void testCountOnly() {
+		final Random random = new Random(SEED);
+		final Set<Integer> universe = IntStream.range(0, 100).boxed().collect(Collectors.toSet());
+		final ImmutableBiMap<Integer, Integer> permutation = PermutationUtils.makePermutation(universe);
+		final List<BiMap<Integer, Integer>> additionalPermutations = PermutationUtils.makeNPermutations(permutation, SEED, NUM_ORDERINGS);
+
+		final MultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>> cache = new MultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>>(permutation, additionalPermutations, RedBlackTree::new);
+		final MultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>> counts = new MultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>>(permutation, additionalPermutations, RedBlackTree::new, true);
+
+		final List<SimpleCacheSet<Integer>> sets = TestUtils.generateRandomSets(random, 500, permutation);
+		cache.addAll(sets);
+		counts.addAll(sets);
+		assertEquals(cache.size(), counts.size());
+
+		for (int i = 0; i < 100; i++) {
+			final BitSet bs = (BitSet) sets.get(random.nextInt(sets.size())).getBitSet().clone();
+			bs.flip(random.nextInt(universe.size()));
+			final SimpleCacheSet<Integer> query = new SimpleCacheSet<Integer>(TestUtils.bitSetToSet(bs), permutation);
+
+			assertEquals(cache.contains(query), counts.contains(query));
+			assertEquals(cache.getNumberSubsets(query), counts.getNumberSubsets(query));
+			assertEquals(cache.getNumberSupersets(query), counts.getNumberSupersets(query));
+		}
+	}
+
+	/**
+	 * Check that a count-only cache keeps the multiplicity of a set.
+	 */
+	@Test
+	public void testCountOnlyMultiplicity() {
+		final MultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>> counts = new MultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>>(PERMUTATION, PermutationUtils.makeNPermutations(PERMUTATION, SEED, NUM_ORDERINGS), RedBlackTree::new, true);
+		final SimpleCacheSet<Integer> set = new SimpleCacheSet<Integer>(ImmutableSet.of(1, 2), PERMUTATION);
+		final SimpleCacheSet<Integer> superset = new SimpleCacheSet<Integer>(ImmutableSet.of(1, 2, 3), PERMUTATION);
+
+		counts.add(set);
+		counts.add(set);
+		counts.add(superset);
+		assertEquals(3, counts.size());
+		assertEquals(3, counts.getNumberSupersets(set));
+		assertEquals(2, counts.getNumberSubsets(set));
+
+		counts.remove(set);
+		assertTrue(counts.contains(set));
+		assertEquals(2, counts.getNumberSupersets(set));
+
+		counts.remove(set);
+		assertFalse(counts.contains(set));
+		assertEquals(1, counts.getNumberSupersets(set));
+		assertEquals(0, counts.getNumberSubsets(set));
+	}
+
+	/**
+	 * Check that removing one of two entries with the same bitset keeps the other one in the sub/superset queries.
+	 */
+	@Test
+	public void testRemoveDuplicateBitSet() {
+		final MultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>> cache = new MultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>>(PERMUTATION, PermutationUtils.makeNPermutations(PERMUTATION, SEED, NUM_ORDERINGS), RedBlackTree::new);
+		final SimpleCacheSet<Integer> set = new TaggedCacheSet<Integer>(ImmutableSet.of(1, 2), PERMUTATION, 0);
+		final SimpleCacheSet<Integer> other = new TaggedCacheSet<Integer>(ImmutableSet.of(1, 2), PERMUTATION, 1);
+
+		cache.add(set);
+		cache.add(other);
+		assertEquals(2, cache.size());
+
+		cache.remove(set);
+		assertFalse(cache.contains(set));
+		assertTrue(cache.contains(other));
+		assertEquals(1, cache.size());
+		assertEquals(ImmutableSet.of(other), ImmutableSet.copyOf(cache.getSubsets(other)));
+		assertEquals(ImmutableSet.of(other), ImmutableSet.copyOf(cache.getSupersets(other)));
+		assertEquals(1, cache.getNumberSubsets(other));
+		assertEquals(1, cache.getNumberSupersets(other));
+
+		cache.remove(other);
+		assertEquals(0, cache.getNumberSubsets(other));
+		assertEquals(0, cache.getNumberSupersets(other));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testCountOnlyEntries() {
+		final MultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>> counts = new MultiPermutationBitSetCache<Integer, SimpleCacheSet<Integer>>(PERMUTATION, PermutationUtils.makeNPermutations(PERMUTATION, SEED, NUM_ORDERINGS), RedBlackTree::new, true);
+		counts.getSubsets(new SimpleCacheSet<Integer>(ImmutableSet.of(1), PERMUTATION));
+	}
+
 }
@@ -0,0 +1,18 @@
+package containmentcache.bitset.opt;
+
+import java.util.Comparator;
+
+import com.google.common.collect.BiMap;
+
+import containmentcache.AContainmentCacheTests;
+import containmentcache.ICacheEntry;
+import containmentcache.IContainmentCache;
+
+public class SortedArrayBitSetCacheTests extends AContainmentCacheTests {
+
+	@Override
+	protected <E, C extends ICacheEntry<E>> IContainmentCache<E, C> getCache(BiMap<E, Integer> permutation, Comparator<E> comparator) {
+		return new SortedArrayBitSetCache<E,C>(permutation);
+	}
+
+}
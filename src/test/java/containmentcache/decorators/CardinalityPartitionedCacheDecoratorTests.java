@@ -0,0 +1,19 @@
+package containmentcache.decorators;
+
+import java.util.Comparator;
+
+import com.google.common.collect.BiMap;
+
+import containmentcache.AContainmentCacheTests;
+import containmentcache.ICacheEntry;
+import containmentcache.IContainmentCache;
+import containmentcache.bitset.simple.SimpleBitSetCache;
+
+public class CardinalityPartitionedCacheDecoratorTests extends AContainmentCacheTests {
+
+	@Override
+	protected <E, C extends ICacheEntry<E>> IContainmentCache<E, C> getCache(BiMap<E, Integer> permutation, Comparator<E> comparator) {
+		return new CardinalityPartitionedCacheDecorator<E,C>(() -> new SimpleBitSetCache<E,C>(permutation));
+	}
+
+}
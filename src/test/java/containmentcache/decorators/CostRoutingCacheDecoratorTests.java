@@ -0,0 +1,132 @@
+package containmentcache.decorators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.BiMap;
+import com.google.common.collect.ImmutableSet;
+
+import containmentcache.AContainmentCacheTests;
+import containmentcache.ICacheEntry;
+import containmentcache.IContainmentCache;
+import containmentcache.IQueryCostEstimator;
+import containmentcache.SimpleCacheSet;
+import containmentcache.TaggedCacheSet;
+import containmentcache.bitset.opt.MultiPermutationBitSetCache;
+import containmentcache.bitset.opt.sortedset.redblacktree.RedBlackTree;
+import containmentcache.bitset.partition.BitPartitionTreeCache;
+import containmentcache.bitset.simple.SimpleBitSetCache;
+import containmentcache.inverted.InvertedIndexCache;
+import containmentcache.ubt.UBTree;
+import containmentcache.util.PermutationUtils;
+
+public class CostRoutingCacheDecoratorTests extends AContainmentCacheTests {
+
+	private static final int NUM_ORDERINGS = 5;
+	private static final long SEED = 0;
+
+	@Override
+	protected <E, C extends ICacheEntry<E>> IContainmentCache<E, C> getCache(BiMap<E, Integer> permutation, Comparator<E> comparator) {
+		final List<BiMap<E, Integer>> additionalPermutations = PermutationUtils.makeNPermutations(permutation, SEED, NUM_ORDERINGS);
+		return new CostRoutingCacheDecorator<E,C>(Arrays.asList(
+				new UBTree<E,C>(permutation),
+				new MultiPermutationBitSetCache<E,C>(permutation, additionalPermutations, RedBlackTree::new),
+				new InvertedIndexCache<E,C>(permutation)));
+	}
+
+	/**
+	 * Bitset cache with fixed query cost estimates.
+	 */
+	private static class FixedCostCache extends SimpleBitSetCache<Integer, SimpleCacheSet<Integer>> implements IQueryCostEstimator<Integer>
+	{
+		private final long fSubsetCost;
+		private final long fSupersetCost;
+
+		public FixedCostCache(long subsetCost, long supersetCost)
+		{
+			super(PERMUTATION);
+			fSubsetCost = subsetCost;
+			fSupersetCost = supersetCost;
+		}
+
+		@Override
+		public long estimateSubsetQueryCost(ICacheEntry<Integer> set) {
+			return fSubsetCost;
+		}
+
+		@Override
+		public long estimateSupersetQueryCost(ICacheEntry<Integer> set) {
+			return fSupersetCost;
+		}
+	}
+
+	@Test
+	public void testRouting()
+	{
+		final FixedCostCache subsetcache = new FixedCostCache(1, 10);
+		final FixedCostCache supersetcache = new FixedCostCache(10, 1);
+		final SimpleBitSetCache<Integer, SimpleCacheSet<Integer>> scancache = new SimpleBitSetCache<Integer, SimpleCacheSet<Integer>>(PERMUTATION);
+		final CostRoutingCacheDecorator<Integer, SimpleCacheSet<Integer>> cache = new CostRoutingCacheDecorator<Integer, SimpleCacheSet<Integer>>(Arrays.asList(scancache, subsetcache, supersetcache));
+
+		final SimpleCacheSet<Integer> query = new SimpleCacheSet<Integer>(ImmutableSet.of(1, 2), PERMUTATION);
+		//Empty caches without estimates have no cost.
+		assertSame(scancache, cache.getSubsetBackend(query));
+
+		for(int i=1;i<=5;i++)
+		{
+			cache.add(new SimpleCacheSet<Integer>(ImmutableSet.of(i), PERMUTATION));
+		}
+		assertSame(subsetcache, cache.getSubsetBackend(query));
+		assertSame(supersetcache, cache.getSupersetBackend(query));
+	}
+
+	@Test
+	public void testScanCostCountsDistinctSets()
+	{
+		final FixedCostCache estimatedcache = new FixedCostCache(10, 10);
+		//Its size counts entries.
+		final BitPartitionTreeCache<Integer, SimpleCacheSet<Integer>> scancache = new BitPartitionTreeCache<Integer, SimpleCacheSet<Integer>>(PERMUTATION);
+		final CostRoutingCacheDecorator<Integer, SimpleCacheSet<Integer>> cache = new CostRoutingCacheDecorator<Integer, SimpleCacheSet<Integer>>(Arrays.asList(estimatedcache, scancache));
+		final SimpleCacheSet<Integer> query = new SimpleCacheSet<Integer>(ImmutableSet.of(1, 2), PERMUTATION);
+
+		//15 entries sharing 3 sets cost a scan 3 candidates.
+		for(int i=1;i<=3;i++)
+		{
+			for(int tag=0;tag<5;tag++)
+			{
+				cache.add(new TaggedCacheSet<Integer>(ImmutableSet.of(i), PERMUTATION, tag));
+			}
+		}
+		assertEquals(15, scancache.size());
+		assertEquals(3, cache.getNumberDistinctSets());
+		assertSame(scancache, cache.getSubsetBackend(query));
+		assertSame(scancache, cache.getSupersetBackend(query));
+
+		for(int i=4;i<=13;i++)
+		{
+			cache.add(new SimpleCacheSet<Integer>(ImmutableSet.of(i), PERMUTATION));
+		}
+		assertEquals(13, cache.getNumberDistinctSets());
+		assertSame(estimatedcache, cache.getSubsetBackend(query));
+
+		//A set stays in the cache as long as one of its entries does.
+		for(int tag=0;tag<4;tag++)
+		{
+			cache.remove(new TaggedCacheSet<Integer>(ImmutableSet.of(1), PERMUTATION, tag));
+		}
+		assertEquals(13, cache.getNumberDistinctSets());
+		for(int i=4;i<=13;i++)
+		{
+			cache.remove(new SimpleCacheSet<Integer>(ImmutableSet.of(i), PERMUTATION));
+		}
+		assertEquals(3, cache.getNumberDistinctSets());
+		assertSame(scancache, cache.getSubsetBackend(query));
+	}
+
+}
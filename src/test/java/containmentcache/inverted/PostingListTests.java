@@ -0,0 +1,70 @@
+package containmentcache.inverted;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class PostingListTests {
+
+	@Test
+	public void testEmpty()
+	{
+		final PostingList list = new PostingList();
+		assertEquals(0, list.cardinality());
+		assertFalse(list.contains(0));
+		assertArrayEquals(new int[0], list.toArray());
+	}
+
+	@Test
+	public void testAddRemove()
+	{
+		final PostingList list = new PostingList();
+		assertTrue(list.add(5));
+		assertFalse(list.add(5));
+		assertTrue(list.add(1 << 20));
+		assertEquals(2, list.cardinality());
+		assertTrue(list.contains(5));
+		assertTrue(list.contains(1 << 20));
+		assertFalse(list.contains(6));
+		assertArrayEquals(new int[]{5, 1 << 20}, list.toArray());
+
+		assertTrue(list.remove(5));
+		assertFalse(list.remove(5));
+		assertEquals(1, list.cardinality());
+		assertFalse(list.contains(5));
+	}
+
+	/**
+	 * Fill a container past the array container size so that it switches to a bitmap and back.
+	 */
+	@Test
+	public void testContainerConversions()
+	{
+		final Random random = new Random(0);
+		final PostingList list = new PostingList();
+		final TreeSet<Integer> expected = new TreeSet<Integer>();
+		for(int i=0;i<20000;i++)
+		{
+			final int id = random.nextInt(1 << 17);
+			assertEquals(expected.add(id), list.add(id));
+		}
+		assertEquals(expected.size(), list.cardinality());
+		assertArrayEquals(expected.stream().mapToInt(Integer::intValue).toArray(), list.toArray());
+
+		for(int i=0;i<30000;i++)
+		{
+			final int id = random.nextInt(1 << 17);
+			assertEquals(expected.remove(id), list.remove(id));
+			assertEquals(expected.contains(id), list.contains(id));
+		}
+		assertEquals(expected.size(), list.cardinality());
+		assertArrayEquals(expected.stream().mapToInt(Integer::intValue).toArray(), list.toArray());
+	}
+
+}
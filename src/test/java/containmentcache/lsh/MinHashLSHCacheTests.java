@@ -0,0 +1,80 @@
+package containmentcache.lsh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import com.google.common.collect.BiMap;
+import com.google.common.collect.ImmutableSet;
+
+import containmentcache.AContainmentCacheTests;
+import containmentcache.ICacheEntry;
+import containmentcache.IContainmentCache;
+import containmentcache.SimpleCacheSet;
+import containmentcache.bitset.simple.SimpleBitSetCache;
+
+public class MinHashLSHCacheTests extends AContainmentCacheTests {
+
+	@Override
+	protected <E, C extends ICacheEntry<E>> IContainmentCache<E, C> getCache(BiMap<E, Integer> permutation, Comparator<E> comparator) {
+		return new MinHashLSHCache<E,C>(permutation, new SimpleBitSetCache<E,C>(permutation));
+	}
+
+	@Test
+	public void testNearSupersets() {
+		final MinHashLSHCache<Integer, SimpleCacheSet<Integer>> cache = new MinHashLSHCache<>(PERMUTATION, new SimpleBitSetCache<>(PERMUTATION));
+
+		final Set<Integer> elements = IntStream.rangeClosed(1, 50).boxed().collect(Collectors.toSet());
+		final SimpleCacheSet<Integer> set = new SimpleCacheSet<Integer>(elements, PERMUTATION);
+		final SimpleCacheSet<Integer> disjoint = new SimpleCacheSet<Integer>(IntStream.rangeClosed(100, 150).boxed().collect(Collectors.toSet()), PERMUTATION);
+		cache.add(set);
+		cache.add(disjoint);
+
+		//The same set always collides in every band.
+		assertEquals(ImmutableSet.of(set), ImmutableSet.copyOf(cache.getNearSupersets(set, 1.0)));
+
+		//A query sharing all but one element with a cached set finds it as a near-superset.
+		final Set<Integer> queryelements = IntStream.rangeClosed(2, 51).boxed().collect(Collectors.toSet());
+		final SimpleCacheSet<Integer> query = new SimpleCacheSet<Integer>(queryelements, PERMUTATION);
+		assertEquals(0, cache.getNumberSupersets(query));
+		final List<SimpleCacheSet<Integer>> nearsupersets = cache.getNearSupersets(query, 0.9);
+		assertEquals(1, nearsupersets.size());
+		assertTrue(nearsupersets.contains(set));
+
+		//Not above the minimum containment.
+		assertTrue(cache.getNearSupersets(query, 1.0).isEmpty());
+
+		cache.remove(set);
+		assertTrue(cache.getNearSupersets(query, 0.9).isEmpty());
+	}
+
+	/**
+	 * Check that a near-superset much larger than the query, and so with a tiny Jaccard similarity to it, is found.
+	 */
+	@Test
+	public void testLargeNearSuperset() {
+		final MinHashLSHCache<Integer, SimpleCacheSet<Integer>> cache = new MinHashLSHCache<>(PERMUTATION, new SimpleBitSetCache<>(PERMUTATION));
+
+		final SimpleCacheSet<Integer> large = new SimpleCacheSet<Integer>(IntStream.rangeClosed(1, 500).boxed().collect(Collectors.toSet()), PERMUTATION);
+		final SimpleCacheSet<Integer> small = new SimpleCacheSet<Integer>(IntStream.rangeClosed(1, 10).boxed().collect(Collectors.toSet()), PERMUTATION);
+		final SimpleCacheSet<Integer> unrelated = new SimpleCacheSet<Integer>(IntStream.rangeClosed(1000, 1500).boxed().collect(Collectors.toSet()), PERMUTATION);
+		cache.add(large);
+		cache.add(small);
+		cache.add(unrelated);
+
+		//Nine elements of the large set and one outside of it.
+		final Set<Integer> queryelements = IntStream.rangeClosed(101, 109).boxed().collect(Collectors.toSet());
+		queryelements.add(600);
+		final SimpleCacheSet<Integer> query = new SimpleCacheSet<Integer>(queryelements, PERMUTATION);
+		assertEquals(0, cache.getNumberSupersets(query));
+		assertEquals(ImmutableSet.of(large), ImmutableSet.copyOf(cache.getNearSupersets(query, 0.8)));
+	}
+
+}
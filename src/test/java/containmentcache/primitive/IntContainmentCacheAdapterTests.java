@@ -0,0 +1,99 @@
+package containmentcache.primitive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableBiMap;
+
+import containmentcache.TestUtils;
+import containmentcache.bitset.simple.SimpleBitSetCache;
+import containmentcache.util.PermutationUtils;
+
+public class IntContainmentCacheAdapterTests {
+
+	private static final long SEED = 0;
+	private static final int NUM_ORDERINGS = 3;
+	
+	private static final Set<Integer> UNIVERSE = IntStream.range(0, 100).boxed().collect(Collectors.toSet());
+	private static final ImmutableBiMap<Integer, Integer> PERMUTATION = PermutationUtils.makePermutation(UNIVERSE);
+	
+	@Test
+	public void testSimpleBitSetCache()
+	{
+		testIndexQueries(IntContainmentCacheAdapter.createSimpleBitSetCache(PERMUTATION));
+	}
+	
+	@Test
+	public void testMultiPermutationBitSetCache()
+	{
+		testIndexQueries(IntContainmentCacheAdapter.createMultiPermutationBitSetCache(PERMUTATION, NUM_ORDERINGS, SEED));
+	}
+	
+	@Test
+	public void testUBTree()
+	{
+		testIndexQueries(IntContainmentCacheAdapter.createUBTree(PERMUTATION));
+	}
+	
+	@Test
+	public void testFromWords()
+	{
+		final IntCacheSet set = IntCacheSet.fromWords(new long[]{0b1011L, 1L}, PERMUTATION);
+		assertEquals(new IntCacheSet(new int[]{0,1,3,64}, PERMUTATION), set);
+		assertEquals(TestUtils.bitSetToSet(set.getBitSet()), set.getElements());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnsortedIndices()
+	{
+		new IntCacheSet(new int[]{3,1}, PERMUTATION);
+	}
+	
+	/**
+	 * Compare the index queries of the given cache with the entry queries of a reference cache.
+	 */
+	private static void testIndexQueries(IIntContainmentCache<IntCacheSet> cache)
+	{
+		final Random random = new Random(SEED);
+		final SimpleBitSetCache<Integer, IntCacheSet> reference = new SimpleBitSetCache<Integer, IntCacheSet>(PERMUTATION);
+		
+		final List<BitSet> bitsets = TestUtils.generateRandomBitSets(random, 500, PERMUTATION);
+		for(BitSet bs : bitsets)
+		{
+			final IntCacheSet set = new IntCacheSet(bs.stream().toArray(), cache.getPermutation());
+			cache.add(set);
+			reference.add(set);
+		}
+		assertEquals(reference.size(), cache.size());
+		
+		for(int i=0;i<100;i++)
+		{
+			final BitSet bs = (BitSet) bitsets.get(random.nextInt(bitsets.size())).clone();
+			bs.flip(random.nextInt(UNIVERSE.size()));
+			final int[] indices = bs.stream().toArray();
+			final IntCacheSet query = new IntCacheSet(indices, PERMUTATION);
+			
+			assertEquals(reference.getNumberSubsets(query), cache.getNumberSubsets(indices));
+			assertEquals(reference.getNumberSupersets(query), cache.getNumberSupersets(indices));
+			assertEquals(HashMultiset.create(reference.getSubsets(query)), HashMultiset.create(cache.getSubsets(indices)));
+			assertEquals(HashMultiset.create(reference.getSupersets(query)), HashMultiset.create(cache.getSupersets(indices)));
+		}
+		
+		final IntCacheSet removed = new IntCacheSet(bitsets.get(0).stream().toArray(), PERMUTATION);
+		assertTrue(cache.contains(removed));
+		cache.remove(removed);
+		assertFalse(cache.contains(removed));
+	}
+	
+}
@@ -0,0 +1,68 @@
+package containmentcache.stree;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import com.google.common.collect.BiMap;
+import com.google.common.collect.ImmutableBiMap;
+
+import containmentcache.AContainmentCacheTests;
+import containmentcache.ICacheEntry;
+import containmentcache.IContainmentCache;
+import containmentcache.SimpleCacheSet;
+import containmentcache.TestUtils;
+import containmentcache.bitset.simple.SimpleBitSetCache;
+import containmentcache.util.PermutationUtils;
+
+public class SignatureTreeTests extends AContainmentCacheTests {
+
+	@Override
+	protected <E, C extends ICacheEntry<E>> IContainmentCache<E, C> getCache(BiMap<E, Integer> permutation, Comparator<E> comparator) {
+		return new SignatureTree<E,C>(permutation);
+	}
+
+	/**
+	 * Use a tiny fanout to exercise node splits and removals over many tree levels.
+	 */
+	@Test
+	public void testSmallFanout()
+	{
+		final Random random = new Random(0);
+		final Set<Integer> universe = IntStream.range(0, 20).boxed().collect(Collectors.toSet());
+		final ImmutableBiMap<Integer, Integer> permutation = PermutationUtils.makePermutation(universe);
+
+		final IContainmentCache<Integer, SimpleCacheSet<Integer>> cache = new SignatureTree<Integer, SimpleCacheSet<Integer>>(permutation, 2);
+		final IContainmentCache<Integer, SimpleCacheSet<Integer>> reference = new SimpleBitSetCache<Integer, SimpleCacheSet<Integer>>(permutation);
+
+		final List<SimpleCacheSet<Integer>> sets = TestUtils.generateRandomSets(random, 500, permutation);
+		for(int i=0;i<sets.size();i++)
+		{
+			cache.add(sets.get(i));
+			reference.add(sets.get(i));
+			if(i % 3 == 2)
+			{
+				cache.remove(sets.get(i-1));
+				reference.remove(sets.get(i-1));
+			}
+			final SimpleCacheSet<Integer> query = TestUtils.generateRandomSet(random, permutation);
+			assertEquals(reference.getNumberSubsets(query), cache.getNumberSubsets(query));
+			assertEquals(reference.getNumberSupersets(query), cache.getNumberSupersets(query));
+		}
+		for(SimpleCacheSet<Integer> set : sets)
+		{
+			cache.remove(set);
+		}
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getNumberSupersets(new SimpleCacheSet<Integer>(Collections.<Integer>emptySet(), permutation)));
+	}
+
+}
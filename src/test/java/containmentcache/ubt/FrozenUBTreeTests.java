@@ -0,0 +1,69 @@
+package containmentcache.ubt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.ImmutableSet;
+
+import containmentcache.SimpleCacheSet;
+import containmentcache.TestUtils;
+import containmentcache.util.PermutationUtils;
+
+public class FrozenUBTreeTests {
+
+	private static final long SEED = 0;
+
+	/**
+	 * Freeze a populated tree and check that it answers every query as the original one.
+	 */
+	@Test
+	public void testFreeze()
+	{
+		final Random random = new Random(SEED);
+		final Set<Integer> universe = IntStream.range(0, 100).boxed().collect(Collectors.toSet());
+		final ImmutableBiMap<Integer, Integer> permutation = PermutationUtils.makePermutation(universe);
+
+		final UBTree<Integer, SimpleCacheSet<Integer>> tree = new UBTree<Integer, SimpleCacheSet<Integer>>(permutation);
+		final List<SimpleCacheSet<Integer>> sets = TestUtils.generateRandomSets(random, 500, permutation);
+		sets.forEach(tree::add);
+		tree.add(new SimpleCacheSet<Integer>(ImmutableSet.<Integer>of(), permutation));
+
+		final FrozenUBTree<Integer, SimpleCacheSet<Integer>> frozen = tree.freeze();
+		assertEquals(HashMultiset.create(tree.getSets()), HashMultiset.create(frozen.getSets()));
+		sets.forEach(set -> assertTrue(frozen.contains(set)));
+
+		for(int i=0;i<100;i++)
+		{
+			//Queries around cached sets, so that they have sub/supersets.
+			final BitSet bs = (BitSet) sets.get(random.nextInt(sets.size())).getBitSet().clone();
+			bs.flip(random.nextInt(universe.size()));
+			final SimpleCacheSet<Integer> query = new SimpleCacheSet<Integer>(TestUtils.bitSetToSet(bs), permutation);
+
+			assertEquals(tree.contains(query), frozen.contains(query));
+			assertEquals(tree.getNumberSubsets(query), frozen.getNumberSubsets(query));
+			assertEquals(tree.getNumberSupersets(query), frozen.getNumberSupersets(query));
+			assertEquals(HashMultiset.create(tree.getSubsets(query)), HashMultiset.create(frozen.getSubsets(query)));
+			assertEquals(HashMultiset.create(tree.getSupersets(query)), HashMultiset.create(frozen.getSupersets(query)));
+		}
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testAddFrozen()
+	{
+		final ImmutableBiMap<Integer, Integer> permutation = PermutationUtils.makePermutation(IntStream.range(0, 10).boxed().collect(Collectors.toSet()));
+		final UBTree<Integer, SimpleCacheSet<Integer>> tree = new UBTree<Integer, SimpleCacheSet<Integer>>(permutation);
+		tree.freeze().add(TestUtils.generateRandomSet(new Random(SEED), permutation));
+	}
+
+}
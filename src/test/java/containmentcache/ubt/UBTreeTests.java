@@ -1,18 +1,540 @@
 package containmentcache.ubt;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
 
 import com.google.common.collect.BiMap;
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 import containmentcache.AContainmentCacheTests;
 import containmentcache.ICacheEntry;
 import containmentcache.IContainmentCache;
+import containmentcache.SimpleCacheSet;
+import containmentcache.TaggedCacheSet;
+import containmentcache.TestUtils;
+import containmentcache.util.PermutationUtils;
 
 public class UBTreeTests extends AContainmentCacheTests {
 
 	@Override
 	protected <E, C extends ICacheEntry<E>> IContainmentCache<E, C> getCache(BiMap<E, Integer> permutation, Comparator<E> comparator) {
-		return new UBTree<E,C>(comparator);
+		return new UBTree<E,C>(permutation);
+	}
+
+	/**
+	 * Check that sets much larger than the call stack would allow with recursive walks are supported.
+	 */
+	@Test
+	public void testLargeSets()
+	{
+		final int size = 20000;
+		final Fixture fixture = new Fixture(size);
+
+		final UBTree<Integer, SimpleCacheSet<Integer>> tree = fixture.newTree();
+		final SimpleCacheSet<Integer> set = fixture.set(fixture.universe);
+		final SimpleCacheSet<Integer> evens = fixture.set(IntStream.range(0, size/2).map(i -> 2*i).boxed().collect(Collectors.toSet()));
+		tree.add(set);
+		tree.add(evens);
+
+		assertTrue(tree.contains(set));
+		assertEquals(2, tree.getNumberSubsets(set));
+		assertEquals(1, tree.getNumberSupersets(set));
+		assertEquals(1, tree.getNumberSubsets(evens));
+		assertEquals(2, tree.getNumberSupersets(evens));
+
+		tree.remove(set);
+		assertFalse(tree.contains(set));
+		assertEquals(1, tree.size());
+		assertEquals(1, tree.getNumberSubsets(set));
+	}
+
+	/**
+	 * Check queries against a linear scan on sparse sets, so that nodes have both few and many children.
+	 */
+	@Test
+	public void testChildrenFanOut()
+	{
+		final Fixture fixture = new Fixture(200);
+		final UBTree<Integer, SimpleCacheSet<Integer>> tree = fixture.newTree();
+		final Set<SimpleCacheSet<Integer>> sets = fixture.fill(tree, 2000, 20);
+		fixture.assertQueries(tree, sets, 200);
+	}
+
+	/**
+	 * Check that nodes are split where a new set's path diverges or ends, and merged back with their only child once they have no entries.
+	 */
+	@Test
+	public void testSplitNodeCounts()
+	{
+		final Fixture fixture = new Fixture(10);
+		final UBTree<Integer, SimpleCacheSet<Integer>> tree = fixture.newTree();
+		final SimpleCacheSet<Integer> long1234 = fixture.set(ImmutableSet.of(1, 2, 3, 4));
+		final SimpleCacheSet<Integer> prefix12 = fixture.set(ImmutableSet.of(1, 2));
+		final SimpleCacheSet<Integer> branch125 = fixture.set(ImmutableSet.of(1, 2, 5));
+		final SimpleCacheSet<Integer> branch13 = fixture.set(ImmutableSet.of(1, 3));
+
+		//Root and a single compressed node.
+		tree.add(long1234);
+		assertEquals(2, tree.getNumberNodes());
+		//The path ends in the node: {1,2} then {3,4}.
+		tree.add(prefix12);
+		assertEquals(3, tree.getNumberNodes());
+		//New child {5} of {1,2}.
+		tree.add(branch125);
+		assertEquals(4, tree.getNumberNodes());
+		//The path diverges in the node: {1} then {2} and {3}.
+		tree.add(branch13);
+		assertEquals(6, tree.getNumberNodes());
+		fixture.assertQueries(tree, ImmutableSet.of(long1234, prefix12, branch125, branch13), 20);
+
+		//{1} is left with its only child {2}, and merged back into {1,2}.
+		tree.remove(branch13);
+		assertEquals(4, tree.getNumberNodes());
+		tree.remove(branch125);
+		assertEquals(3, tree.getNumberNodes());
+		//{1,2} is left with its only child {3,4}, and merged back into {1,2,3,4}.
+		tree.remove(prefix12);
+		assertEquals(2, tree.getNumberNodes());
+		fixture.assertQueries(tree, ImmutableSet.of(long1234), 20);
+	}
+
+	/**
+	 * Check queries against a linear scan while adding and removing sets sharing long prefixes, so that nodes are split and merged.
+	 */
+	@Test
+	public void testPathCompression()
+	{
+		final int size = 60;
+		final Fixture fixture = new Fixture(size);
+		final Random random = fixture.random;
+
+		//A few long sorted sequences, whose prefixes are the sets.
+		final List<int[]> sequences = new ArrayList<int[]>();
+		for(int i=0;i<4;i++)
+		{
+			sequences.add(IntStream.range(0, size).filter(e -> random.nextInt(3) > 0).toArray());
+		}
+
+		final UBTree<Integer, SimpleCacheSet<Integer>> tree = fixture.newTree();
+		final Set<SimpleCacheSet<Integer>> sets = new HashSet<SimpleCacheSet<Integer>>();
+		for(int i=0;i<3000;i++)
+		{
+			if(!sets.isEmpty() && random.nextInt(3) == 0)
+			{
+				final SimpleCacheSet<Integer> set = new ArrayList<SimpleCacheSet<Integer>>(sets).get(random.nextInt(sets.size()));
+				sets.remove(set);
+				tree.remove(set);
+			}
+			else
+			{
+				final int[] sequence = sequences.get(random.nextInt(sequences.size()));
+				final Set<Integer> elements = Arrays.stream(sequence, 0, random.nextInt(sequence.length+1)).boxed().collect(Collectors.toSet());
+				if(random.nextBoolean())
+				{
+					//Diverge from the sequence.
+					elements.add(random.nextInt(size));
+				}
+				final SimpleCacheSet<Integer> set = fixture.set(elements);
+				sets.add(set);
+				tree.add(set);
+			}
+
+			if(i % 500 == 0)
+			{
+				fixture.assertQueries(tree, sets, 20);
+			}
+		}
+		fixture.assertQueries(tree, sets, 200);
+	}
+
+	/**
+	 * Check that removed sets leave no nodes behind, and that compaction removes unused child slots (except empty dense table slots) without changing queries.
+	 */
+	@Test
+	public void testReclamation()
+	{
+		final Fixture fixture = new Fixture(100);
+		final UBTree<Integer, SimpleCacheSet<Integer>> tree = fixture.newTree();
+		assertEquals(1, tree.getNumberNodes());
+
+		final List<SimpleCacheSet<Integer>> sets = new ArrayList<SimpleCacheSet<Integer>>(fixture.fill(tree, 2000, 10));
+		final int numnodes = tree.getNumberNodes();
+
+		//Remove most sets, and check that the tree shrinks.
+		Collections.shuffle(sets, fixture.random);
+		final Set<SimpleCacheSet<Integer>> remaining = new HashSet<SimpleCacheSet<Integer>>(sets);
+		for(SimpleCacheSet<Integer> set : sets.subList(0, sets.size()*9/10))
+		{
+			tree.remove(set);
+			remaining.remove(set);
+		}
+		assertTrue(tree.getNumberNodes() < numnodes / 4);
+		final long deadslots = tree.getNumberDeadSlots();
+
+		tree.compact();
+		assertTrue(tree.getNumberDeadSlots() < deadslots);
+		fixture.assertQueries(tree, remaining, 100);
+
+		//Removing everything leaves the root only.
+		for(SimpleCacheSet<Integer> set : sets)
+		{
+			tree.remove(set);
+		}
+		assertEquals(0, tree.size());
+		assertEquals(1, tree.getNumberNodes());
+		tree.compact();
+		assertEquals(0, tree.getNumberDeadSlots());
+	}
+
+	/**
+	 * Check superset queries on supersets hidden deep below labels smaller than the query's, next to many subtrees that must be pruned,
+	 * while summaries grow along existing paths and shrink as the supersets are removed.
+	 */
+	@Test
+	public void testSupersetPruning()
+	{
+		final Fixture fixture = new Fixture(100);
+		final UBTree<Integer, SimpleCacheSet<Integer>> tree = fixture.newTree();
+		//Subtrees below {0} and {5} without the query's elements, some with one of them only.
+		for(int e=1;e<100;e++)
+		{
+			if(e != 50 && e != 51)
+			{
+				tree.add(fixture.set(ImmutableSet.of(0, e)));
+				tree.add(fixture.set(ImmutableSet.of(5, e, 50)));
+			}
+		}
+		final SimpleCacheSet<Integer> query = fixture.set(ImmutableSet.of(50, 51));
+		assertSupersets(tree, query);
+
+		//Supersets below existing paths, whose summaries must grow.
+		final SimpleCacheSet<Integer> deep = fixture.set(ImmutableSet.of(0, 10, 20, 50, 51));
+		final SimpleCacheSet<Integer> deeper = fixture.set(ImmutableSet.of(5, 20, 30, 50, 51, 60));
+		final SimpleCacheSet<Integer> shallow = fixture.set(ImmutableSet.of(0, 50, 51));
+		tree.add(deep);
+		assertSupersets(tree, query, deep);
+		tree.add(deeper);
+		tree.add(shallow);
+		assertSupersets(tree, query, deep, deeper, shallow);
+
+		//Removed supersets, whose paths' summaries must shrink without losing the other supersets.
+		tree.remove(shallow);
+		assertSupersets(tree, query, deep, deeper);
+		tree.remove(deep);
+		assertSupersets(tree, query, deeper);
+		tree.add(deep);
+		tree.remove(deeper);
+		assertSupersets(tree, query, deep);
+		tree.remove(deep);
+		assertSupersets(tree, query);
+	}
+
+	/**
+	 * Check that the superset query cost estimate is bounded by the root's subtrees that may contain the query.
+	 */
+	@Test
+	public void testSupersetQueryCost()
+	{
+		final Fixture fixture = new Fixture(100);
+		final UBTree<Integer, SimpleCacheSet<Integer>> tree = fixture.newTree();
+		for(int e=1;e<50;e++)
+		{
+			tree.add(fixture.set(ImmutableSet.of(0, e)));
+		}
+		tree.add(fixture.set(ImmutableSet.of(60, 61)));
+		final SimpleCacheSet<Integer> query = fixture.set(ImmutableSet.of(50, 51));
+		//No subtree has both elements.
+		assertEquals(0, tree.estimateSupersetQueryCost(query));
+		assertEquals(tree.size(), tree.estimateSupersetQueryCost(fixture.set(Collections.<Integer>emptySet())));
+
+		//Only the subtree below {0} may have supersets.
+		final SimpleCacheSet<Integer> superset = fixture.set(ImmutableSet.of(0, 50, 51));
+		tree.add(superset);
+		assertEquals(50, tree.estimateSupersetQueryCost(query));
+		assertTrue(tree.estimateSupersetQueryCost(query) >= tree.getNumberSupersets(query));
+
+		//The cost counts distinct sets, not entries.
+		final TaggedCacheSet<Integer> duplicate = new TaggedCacheSet<Integer>(ImmutableSet.of(0, 50, 51), fixture.permutation, 1);
+		tree.add(duplicate);
+		assertEquals(50, tree.estimateSupersetQueryCost(query));
+		tree.remove(superset);
+		assertEquals(50, tree.estimateSupersetQueryCost(query));
+
+		tree.remove(duplicate);
+		assertEquals(0, tree.estimateSupersetQueryCost(query));
+	}
+
+	@SafeVarargs
+	private static void assertSupersets(UBTree<Integer, SimpleCacheSet<Integer>> tree, SimpleCacheSet<Integer> query, SimpleCacheSet<Integer>... supersets)
+	{
+		assertEquals(supersets.length, tree.getNumberSupersets(query));
+		assertEquals(ImmutableSet.copyOf(supersets), Sets.newHashSet(tree.getSupersets(query)));
+	}
+
+	/**
+	 * Check that superset queries, which prune subtrees by their summaries, stay correct while sets are added and removed in turn.
+	 */
+	@Test
+	public void testSummariesUnderChurn()
+	{
+		final Fixture fixture = new Fixture(150);
+		final Random random = fixture.random;
+		final UBTree<Integer, SimpleCacheSet<Integer>> tree = fixture.newTree();
+		final List<SimpleCacheSet<Integer>> sets = new ArrayList<SimpleCacheSet<Integer>>();
+		final Set<SimpleCacheSet<Integer>> present = new HashSet<SimpleCacheSet<Integer>>();
+		for(int round=0;round<10;round++)
+		{
+			for(int i=0;i<300;i++)
+			{
+				//Skewed sets, sharing long prefixes of small labels.
+				final SimpleCacheSet<Integer> set = fixture.set(fixture.universe.stream().filter(e -> random.nextInt(e < 20 ? 2 : 15) == 0).collect(Collectors.toSet()));
+				sets.add(set);
+				present.add(set);
+				tree.add(set);
+			}
+			Collections.shuffle(sets, random);
+			for(SimpleCacheSet<Integer> set : sets.subList(0, 200))
+			{
+				tree.remove(set);
+				present.remove(set);
+			}
+			sets.subList(0, 200).clear();
+			fixture.assertQueries(tree, present, 30);
+		}
+	}
+
+	/**
+	 * Check that superset counts, which add up the subtree entry counts below the query, are kept right by repeated adds and removes of absent sets.
+	 */
+	@Test
+	public void testSubtreeEntryCounts()
+	{
+		final Fixture fixture = new Fixture(60);
+		final UBTree<Integer, SimpleCacheSet<Integer>> tree = fixture.newTree();
+		final Set<SimpleCacheSet<Integer>> sets = new HashSet<SimpleCacheSet<Integer>>();
+		for(int i=0;i<1000;i++)
+		{
+			final SimpleCacheSet<Integer> set = fixture.randomSet(6);
+			tree.add(set);
+			tree.add(set);
+			if(fixture.random.nextBoolean())
+			{
+				sets.add(set);
+			}
+			else
+			{
+				tree.remove(set);
+				tree.remove(set);
+			}
+		}
+		assertEquals(sets.size(), tree.getNumberSupersets(fixture.set(Collections.<Integer>emptySet())));
+		fixture.assertQueries(tree, sets, 200);
+	}
+
+	/**
+	 * Check that queries sharing the thread's traversal stack, including interleaved and abandoned ones, do not interfere.
+	 */
+	@Test
+	public void testReusedStacks()
+	{
+		final Fixture fixture = new Fixture(50);
+		final UBTree<Integer, SimpleCacheSet<Integer>> tree = new UBTree<Integer, SimpleCacheSet<Integer>>(fixture.permutation, true);
+		final Set<SimpleCacheSet<Integer>> sets = fixture.fill(tree, 500, 5);
+		fixture.assertQueries(tree, sets, 100);
+
+		final SimpleCacheSet<Integer> query = fixture.set(fixture.universe.stream().filter(e -> e % 2 == 0).collect(Collectors.toSet()));
+		final Set<SimpleCacheSet<Integer>> subsets = Sets.newHashSet(tree.getSubsets(query));
+
+		//Abandon an iterator half way, and interleave two others with queries.
+		final Iterator<SimpleCacheSet<Integer>> abandoned = tree.getSets().iterator();
+		for(int i=0;i<sets.size()/2;i++)
+		{
+			abandoned.next();
+		}
+		final Iterator<SimpleCacheSet<Integer>> first = tree.getSubsets(query).iterator();
+		final Iterator<SimpleCacheSet<Integer>> second = tree.getSubsets(query).iterator();
+		final Set<SimpleCacheSet<Integer>> firstsubsets = new HashSet<SimpleCacheSet<Integer>>();
+		final Set<SimpleCacheSet<Integer>> secondsubsets = new HashSet<SimpleCacheSet<Integer>>();
+		while(first.hasNext() || second.hasNext())
+		{
+			if(first.hasNext())
+			{
+				firstsubsets.add(first.next());
+			}
+			assertEquals(subsets.size(), tree.getNumberSubsets(query));
+			if(second.hasNext())
+			{
+				secondsubsets.add(second.next());
+			}
+		}
+		assertEquals(subsets, firstsubsets);
+		assertEquals(subsets, secondsubsets);
+		fixture.assertQueries(tree, sets, 100);
+	}
+
+	/**
+	 * Check that queries split in parallel tasks on a multi-threaded pool, issued by several threads at once, match a sequential tree,
+	 * entries being returned once and in the same order.
+	 */
+	@Test
+	public void testParallelQueries() throws Exception
+	{
+		final int numCallers = 4;
+		final Fixture fixture = new Fixture(40);
+
+		final ForkJoinPool pool = new ForkJoinPool(4);
+		final ExecutorService callers = Executors.newFixedThreadPool(numCallers);
+		try
+		{
+			final UBTree<Integer, SimpleCacheSet<Integer>> tree = new UBTree<Integer, SimpleCacheSet<Integer>>(fixture.permutation, true, pool);
+			final UBTree<Integer, SimpleCacheSet<Integer>> sequentialtree = fixture.newTree();
+			final Set<SimpleCacheSet<Integer>> sets = fixture.fill(tree, 10000, 4);
+			sets.forEach(sequentialtree::add);
+			//Large enough for queries to fork tasks.
+			assertTrue(pool.getParallelism() > 1);
+			assertTrue(tree.size() >= UBTree.PARALLEL_MIN_SUBTREE_ENTRIES);
+
+			final SimpleCacheSet<Integer> empty = fixture.set(Collections.<Integer>emptySet());
+			final List<SimpleCacheSet<Integer>> queries = new ArrayList<SimpleCacheSet<Integer>>();
+			queries.add(empty);
+			for(int i=0;i<50;i++)
+			{
+				queries.add(fixture.randomSet(2));
+			}
+
+			final List<Future<?>> results = new ArrayList<Future<?>>();
+			for(int c=0;c<numCallers;c++)
+			{
+				final List<SimpleCacheSet<Integer>> callerqueries = new ArrayList<SimpleCacheSet<Integer>>(queries);
+				Collections.shuffle(callerqueries, new Random(c));
+				results.add(callers.submit(() -> {
+					for(SimpleCacheSet<Integer> query : callerqueries)
+					{
+						assertEquals(Lists.newArrayList(sequentialtree.getSubsets(query)), Lists.newArrayList(tree.getSubsets(query)));
+						assertEquals(Lists.newArrayList(sequentialtree.getSupersets(query)), Lists.newArrayList(tree.getSupersets(query)));
+						assertEquals(sequentialtree.getNumberSubsets(query), tree.getNumberSubsets(query));
+						assertEquals(sequentialtree.getNumberSupersets(query), tree.getNumberSupersets(query));
+					}
+				}));
+			}
+			for(Future<?> result : results)
+			{
+				result.get();
+			}
+			assertEquals(sets.size(), tree.getNumberSupersets(empty));
+			fixture.assertQueries(tree, sets, 20);
+		}
+		finally
+		{
+			callers.shutdown();
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * The permutation of a universe of integers, with a seeded random source to draw sets on it and check trees against a linear scan.
+	 */
+	private static class Fixture
+	{
+		private final Random random = new Random(0);
+		private final Set<Integer> universe;
+		private final ImmutableBiMap<Integer, Integer> permutation;
+
+		public Fixture(int universeSize)
+		{
+			universe = IntStream.range(0, universeSize).boxed().collect(Collectors.toSet());
+			permutation = PermutationUtils.makePermutation(universe);
+		}
+
+		public UBTree<Integer, SimpleCacheSet<Integer>> newTree()
+		{
+			return new UBTree<Integer, SimpleCacheSet<Integer>>(permutation);
+		}
+
+		public SimpleCacheSet<Integer> set(Collection<Integer> elements)
+		{
+			return new SimpleCacheSet<Integer>(new HashSet<Integer>(elements), permutation);
+		}
+
+		/**
+		 * @return a random set, containing every element of the universe with probability 1/sparsity.
+		 */
+		public SimpleCacheSet<Integer> randomSet(int sparsity)
+		{
+			return set(universe.stream().filter(e -> random.nextInt(sparsity) == 0).collect(Collectors.toSet()));
+		}
+
+		/**
+		 * Add the given number of random sets to the given tree.
+		 * @return the distinct sets added.
+		 */
+		public Set<SimpleCacheSet<Integer>> fill(UBTree<Integer, SimpleCacheSet<Integer>> tree, int numSets, int sparsity)
+		{
+			final Set<SimpleCacheSet<Integer>> sets = new HashSet<SimpleCacheSet<Integer>>();
+			for(int i=0;i<numSets;i++)
+			{
+				final SimpleCacheSet<Integer> set = randomSet(sparsity);
+				sets.add(set);
+				tree.add(set);
+			}
+			return sets;
+		}
+
+		/**
+		 * Check random queries around the given sets against a linear scan of them.
+		 */
+		public void assertQueries(UBTree<Integer, SimpleCacheSet<Integer>> tree, Set<SimpleCacheSet<Integer>> sets, int numQueries)
+		{
+			assertEquals(sets.size(), tree.size());
+			assertEquals(sets, Sets.newHashSet(tree.getSets()));
+			if(sets.isEmpty())
+			{
+				return;
+			}
+
+			final List<SimpleCacheSet<Integer>> setlist = new ArrayList<SimpleCacheSet<Integer>>(sets);
+			for(int i=0;i<numQueries;i++)
+			{
+				final Set<Integer> elements = new HashSet<Integer>(TestUtils.bitSetToSet(setlist.get(random.nextInt(setlist.size())).getBitSet()));
+				final Integer element = random.nextInt(permutation.size());
+				if(!elements.remove(element))
+				{
+					elements.add(element);
+				}
+				final SimpleCacheSet<Integer> query = set(elements);
+				final Set<SimpleCacheSet<Integer>> subsets = sets.stream().filter(set -> elements.containsAll(TestUtils.bitSetToSet(set.getBitSet()))).collect(Collectors.toSet());
+				final Set<SimpleCacheSet<Integer>> supersets = sets.stream().filter(set -> TestUtils.bitSetToSet(set.getBitSet()).containsAll(elements)).collect(Collectors.toSet());
+
+				assertEquals(sets.contains(query), tree.contains(query));
+				assertEquals(subsets.size(), tree.getNumberSubsets(query));
+				assertEquals(supersets.size(), tree.getNumberSupersets(query));
+				assertEquals(subsets, Sets.newHashSet(tree.getSubsets(query)));
+				assertEquals(supersets, Sets.newHashSet(tree.getSupersets(query)));
+			}
+		}
 	}
 
 }
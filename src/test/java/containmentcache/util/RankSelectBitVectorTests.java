@@ -0,0 +1,69 @@
+package containmentcache.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RankSelectBitVectorTests {
+
+	/**
+	 * Compare rank and select with a naive computation, over several blocks and a length that is not a multiple of a word.
+	 */
+	@Test
+	public void testRankSelect()
+	{
+		final Random random = new Random(0);
+		final int length = 5000;
+		final BitSet bits = new BitSet();
+		for(int i=0;i<length;i++)
+		{
+			if(random.nextInt(3) == 0)
+			{
+				bits.set(i);
+			}
+		}
+		final RankSelectBitVector vector = new RankSelectBitVector(bits, length);
+		assertEquals(length, vector.length());
+		assertEquals(bits.cardinality(), vector.cardinality());
+
+		int ones = 0;
+		int zeros = 0;
+		for(int i=0;i<length;i++)
+		{
+			assertEquals(ones, vector.rank1(i));
+			assertEquals(zeros, vector.rank0(i));
+			assertEquals(bits.get(i), vector.get(i));
+			if(bits.get(i))
+			{
+				ones++;
+				assertEquals(i, vector.select1(ones));
+			}
+			else
+			{
+				zeros++;
+				assertEquals(i, vector.select0(zeros));
+			}
+		}
+		assertEquals(ones, vector.rank1(length));
+	}
+
+	@Test
+	public void testEmpty()
+	{
+		final RankSelectBitVector vector = new RankSelectBitVector(new BitSet(), 0);
+		assertEquals(0, vector.rank1(0));
+		assertEquals(0, vector.cardinality());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSelectOutOfBounds()
+	{
+		final BitSet bits = new BitSet();
+		bits.set(3);
+		new RankSelectBitVector(bits, 64).select1(2);
+	}
+
+}
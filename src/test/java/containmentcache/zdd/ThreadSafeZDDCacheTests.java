@@ -0,0 +1,19 @@
+package containmentcache.zdd;
+
+import java.util.Comparator;
+
+import com.google.common.collect.BiMap;
+
+import containmentcache.AThreadSafeContainmentCacheTests;
+import containmentcache.ICacheEntry;
+import containmentcache.ILockableContainmentCache;
+import containmentcache.decorators.ThreadSafeContainmentCacheDecorator;
+
+public class ThreadSafeZDDCacheTests extends AThreadSafeContainmentCacheTests {
+
+	@Override
+	protected <E, C extends ICacheEntry<E>> ILockableContainmentCache<E, C> getCache(BiMap<E, Integer> permutation, Comparator<E> comparator) {
+		return ThreadSafeContainmentCacheDecorator.makeThreadSafe(new ZDDCache<E,C>(permutation));
+	}
+
+}
@@ -0,0 +1,82 @@
+package containmentcache.zdd;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import com.google.common.collect.BiMap;
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.Iterables;
+
+import containmentcache.AContainmentCacheTests;
+import containmentcache.ICacheEntry;
+import containmentcache.IContainmentCache;
+import containmentcache.TaggedCacheSet;
+import containmentcache.TestUtils;
+import containmentcache.util.PermutationUtils;
+
+public class ZDDCacheTests extends AContainmentCacheTests {
+
+	@Override
+	protected <E, C extends ICacheEntry<E>> IContainmentCache<E, C> getCache(BiMap<E, Integer> permutation, Comparator<E> comparator) {
+		return new ZDDCache<E,C>(permutation);
+	}
+	
+	/**
+	 * Check that counts include every entry of sets with several entries, through additions and removals.
+	 */
+	@Test
+	public void testSetMultiplicities()
+	{
+		final Random random = new Random(0);
+		final Set<Integer> universe = IntStream.range(0, 30).boxed().collect(Collectors.toSet());
+		final ImmutableBiMap<Integer, Integer> permutation = PermutationUtils.makePermutation(universe);
+		
+		final ZDDCache<Integer, TaggedCacheSet<Integer>> cache = new ZDDCache<Integer, TaggedCacheSet<Integer>>(permutation);
+		final List<TaggedCacheSet<Integer>> entries = new ArrayList<TaggedCacheSet<Integer>>();
+		for(int i=0;i<200;i++)
+		{
+			final Set<Integer> elements = universe.stream().filter(e -> random.nextInt(4) == 0).collect(Collectors.toSet());
+			for(int tag=0;tag<=random.nextInt(3);tag++)
+			{
+				final TaggedCacheSet<Integer> entry = new TaggedCacheSet<Integer>(elements, permutation, tag);
+				entries.add(entry);
+				cache.add(entry);
+			}
+		}
+		//Remove some entries, including some of sets with other entries.
+		for(int i=0;i<100;i++)
+		{
+			cache.remove(entries.remove(random.nextInt(entries.size())));
+		}
+		assertEquals(entries.size(), cache.size());
+		
+		for(int i=0;i<100;i++)
+		{
+			final BitSet bs = (BitSet) entries.get(random.nextInt(entries.size())).getBitSet().clone();
+			bs.flip(random.nextInt(universe.size()));
+			final TaggedCacheSet<Integer> query = new TaggedCacheSet<Integer>(TestUtils.bitSetToSet(bs), permutation, -1);
+			final long numsubsets = entries.stream().filter(entry -> isSubset(entry.getBitSet(), bs)).count();
+			final long numsupersets = entries.stream().filter(entry -> isSubset(bs, entry.getBitSet())).count();
+			assertEquals(numsubsets, cache.getNumberSubsets(query));
+			assertEquals(numsupersets, cache.getNumberSupersets(query));
+			assertEquals(numsubsets, Iterables.size(cache.getSubsets(query)));
+			assertEquals(numsupersets, Iterables.size(cache.getSupersets(query)));
+		}
+	}
+	
+	private static boolean isSubset(BitSet a, BitSet b)
+	{
+		return a.stream().allMatch(b::get);
+	}
+
+}